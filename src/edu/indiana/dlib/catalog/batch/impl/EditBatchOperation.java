@@ -42,6 +42,7 @@ import org.apache.log4j.Logger;
 import edu.indiana.dlib.catalog.accesscontrol.UserInfo;
 import edu.indiana.dlib.catalog.asynchronous.Dialog;
 import edu.indiana.dlib.catalog.asynchronous.Operation;
+import edu.indiana.dlib.catalog.config.BulkSavePipeline;
 import edu.indiana.dlib.catalog.config.CollectionConfiguration;
 import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.FieldData;
@@ -49,8 +50,6 @@ import edu.indiana.dlib.catalog.config.Item;
 import edu.indiana.dlib.catalog.config.ItemManager;
 import edu.indiana.dlib.catalog.config.ItemMetadata;
 import edu.indiana.dlib.catalog.config.NameValuePair;
-import edu.indiana.dlib.catalog.config.OptimisticLockingException;
-import edu.indiana.dlib.catalog.config.RepositoryException;
 
 /**
  * An asynchronous Operation implementation that updates 
@@ -114,6 +113,11 @@ public class EditBatchOperation implements Operation {
     
     private Thread sleepingThread;
     
+    /**
+     * The pipeline through which items are currently being saved.
+     */
+    private volatile BulkSavePipeline pipeline;
+    
     private UserInfo user;
 
     private Dialog pendingDialog;
@@ -213,70 +217,11 @@ public class EditBatchOperation implements Operation {
     }
 
     public void run() {
-        for (int cursor = 0; cursor < idsToUpdate.size(); cursor ++) {
-            if (triggerAbort) {
-                break;
-            }
-            String id = idsToUpdate.get(cursor);
-            try {
-                // fetch the item
-                Item item = im.fetchItem(id);
-                ItemMetadata metadata = item.getMetadata();
-                
-                // update any changed fields
-                boolean wasUpdated = false;
-                boolean requiresApproval = false;
-                for (FieldData newData : changesToMake) {
-                    FieldData oldData = metadata.getFieldData(newData.getFieldType());
-                    if (oldData == null) {
-                        // no value existed, so we'll add the new value without conflict
-                        metadata.setFieldValue(newData.getFieldType(), newData);
-                        wasUpdated = true;
-                    } else if (fieldTypesToSkipIfPresent.contains(newData.getFieldType())) {
-                        // we don't want to update this field
-                    } else {
-                        FieldConfiguration config = collectionConfiguration.getFieldConfiguration(newData.getFieldType());
-                        if (fieldTypesToOverwrite.contains(config.getFieldType())) {
-                            // simple overwrite
-                            metadata.setFieldValue(newData.getFieldType(), newData);
-                            wasUpdated = true;
-                        } else if (config.isRepeatable() && repeatableFieldTypesToCombine.contains(config.getFieldType())) {
-                            // walk through and see what values need to be added to the existing list
-                            List<List<NameValuePair>> uniqueValues = getNewValues(newData.getParts(), oldData.getParts());
-                            if (!uniqueValues.isEmpty()) {
-                                oldData.addValues(uniqueValues);
-                                wasUpdated = true;
-                            }
-                        } else if (newData.equals(oldData)) { 
-                            // fall through and don't worry about this field
-                        } else {
-                            requiresApproval = true;
-                            break;
-                        }
-                    }
-                }
-                
-                // store the updated item
-                if (requiresApproval) {
-                    idsRequiringApproval.add(id);
-                } else if (wasUpdated) {
-                    im.saveItemMetadata(item, user);
-                    updatedIds.add(id);
-                } else {
-                    idsRequiringNoChanges.add(id);
-                }
-            } catch (RepositoryException ex) {
-                LOGGER.warn("Exception while updating an item in a batch operation!", ex);
-                exceptionIds.add(id);
-            } catch (OptimisticLockingException ex) {
-                // We should try again, because if unrelated fields were updated 
-                // our update should succeed if we try again.  (Also this is *extremely* unlikely
-                // because it would require a user to save the exact item we're working on
-                // in the time it takes us to read, update and write the object.
-                cursor --;
-                LOGGER.info("Optimistic locking exception for batch operation... will try again.", ex);
-            }
+        List<BatchUpdate> updates = new ArrayList<BatchUpdate>(idsToUpdate.size());
+        for (String id : idsToUpdate) {
+            updates.add(new BatchUpdate(id, false));
         }
+        runPipeline(updates);
         while (!idsRequiringApproval.isEmpty()) {
             if (triggerAbort) {
                 break;
@@ -296,66 +241,138 @@ public class EditBatchOperation implements Operation {
         }
         
         synchronized (approvedIds) {
-            for (int cursor = 0; cursor < approvedIds.size(); cursor ++) {
-                String id = approvedIds.get(cursor);
-                if (triggerAbort) {
-                    break;
+            updates.clear();
+            for (String id : approvedIds) {
+                updates.add(new BatchUpdate(id, true));
+            }
+            runPipeline(updates);
+        }
+    }
+    
+    /**
+     * Saves the given updates (several at a time) and records the
+     * result of each, in order, in the lists of ids.
+     */
+    private void runPipeline(List<BatchUpdate> updates) {
+        if (triggerAbort) {
+            return;
+        }
+        pipeline = new BulkSavePipeline(im, user);
+        if (triggerAbort) {
+            return;
+        }
+        pipeline.run(updates.iterator(), new BulkSavePipeline.ResultListener() {
+            public void resultAvailable(BulkSavePipeline.Result result) {
+                switch (result.getStatus()) {
+                    case UPDATED:
+                        updatedIds.add(result.getId());
+                        break;
+                    case UNCHANGED:
+                        idsRequiringNoChanges.add(result.getId());
+                        break;
+                    case DEFERRED:
+                        idsRequiringApproval.add(result.getId());
+                        break;
+                    default:
+                        exceptionIds.add(result.getId());
                 }
-                try {
-                    // fetch the item
-                    Item item = im.fetchItem(id);
-                    ItemMetadata metadata = item.getMetadata();
-                    
-                    // update any changed fields
-                    boolean wasUpdated = false;
-                    for (FieldData newData : changesToMake) {
-                        FieldData oldData = metadata.getFieldData(newData.getFieldType());
-                        if (oldData == null) {
-                            // no value existed, so we'll add the new value without conflict
-                            metadata.setFieldValue(newData.getFieldType(), newData);
-                            wasUpdated = true;
-                        } else {
-                            FieldConfiguration config = collectionConfiguration.getFieldConfiguration(newData.getFieldType());
-                            if (config.isRepeatable()) {
-                                if (!newData.getAttributes().isEmpty() && !newData.getAttributes().equals(oldData.getAttributes())) {
-                                    oldData.setAttributes(newData.getAttributes());
-                                    wasUpdated = true;
-                                }
-                                // walk through and see what values need to be added to the existing list
-                                List<List<NameValuePair>> uniqueValues = getNewValues(newData.getParts(), oldData.getParts());
-                                if (!uniqueValues.isEmpty()) {
-                                    oldData.addValues(uniqueValues);
-                                    wasUpdated = true;
-                                }
-                            } else {
-                                // see if we can replace the existing value or whether we need to ask for
-                                // approval
-                                metadata.setFieldValue(newData.getFieldType(), newData);
-                                wasUpdated = true;
-                            }
-                        }
+            }});
+    }
+    
+    /**
+     * Applies the changesToMake to an item.  Before approval, 
+     * values are only added to empty fields or combined or 
+     * overwritten according to the rules set for the field; a
+     * change to any other existing value defers the update until
+     * the user has approved it.  Once approved, values of 
+     * non-repeatable fields are replaced and values of repeatable
+     * fields are combined.
+     */
+    private class BatchUpdate implements BulkSavePipeline.ItemUpdate {
+        
+        private String id;
+        
+        private boolean approved;
+        
+        public BatchUpdate(String id, boolean approved) {
+            this.id = id;
+            this.approved = approved;
+        }
+        
+        public String getId() {
+            return id;
+        }
+        
+        public BulkSavePipeline.Status apply(Item item) {
+            return approved ? applyApprovedChanges(item.getMetadata()) : applyChanges(item.getMetadata());
+        }
+    }
+    
+    private BulkSavePipeline.Status applyChanges(ItemMetadata metadata) {
+        // update any changed fields
+        boolean wasUpdated = false;
+        for (FieldData newData : changesToMake) {
+            FieldData oldData = metadata.getFieldData(newData.getFieldType());
+            if (oldData == null) {
+                // no value existed, so we'll add the new value without conflict
+                metadata.setFieldValue(newData.getFieldType(), newData);
+                wasUpdated = true;
+            } else if (fieldTypesToSkipIfPresent.contains(newData.getFieldType())) {
+                // we don't want to update this field
+            } else {
+                FieldConfiguration config = collectionConfiguration.getFieldConfiguration(newData.getFieldType());
+                if (fieldTypesToOverwrite.contains(config.getFieldType())) {
+                    // simple overwrite
+                    metadata.setFieldValue(newData.getFieldType(), newData);
+                    wasUpdated = true;
+                } else if (config.isRepeatable() && repeatableFieldTypesToCombine.contains(config.getFieldType())) {
+                    // walk through and see what values need to be added to the existing list
+                    List<List<NameValuePair>> uniqueValues = getNewValues(newData.getParts(), oldData.getParts());
+                    if (!uniqueValues.isEmpty()) {
+                        oldData.addValues(uniqueValues);
+                        wasUpdated = true;
                     }
-                    
-                    // store the updated item
-                    if (wasUpdated) {
-                        im.saveItemMetadata(item, user);
-                        updatedIds.add(id);
-                    } else {
-                        idsRequiringNoChanges.add(id);
+                } else if (newData.equals(oldData)) { 
+                    // fall through and don't worry about this field
+                } else {
+                    return BulkSavePipeline.Status.DEFERRED;
+                }
+            }
+        }
+        return wasUpdated ? BulkSavePipeline.Status.UPDATED : BulkSavePipeline.Status.UNCHANGED;
+    }
+    
+    private BulkSavePipeline.Status applyApprovedChanges(ItemMetadata metadata) {
+        // update any changed fields
+        boolean wasUpdated = false;
+        for (FieldData newData : changesToMake) {
+            FieldData oldData = metadata.getFieldData(newData.getFieldType());
+            if (oldData == null) {
+                // no value existed, so we'll add the new value without conflict
+                metadata.setFieldValue(newData.getFieldType(), newData);
+                wasUpdated = true;
+            } else {
+                FieldConfiguration config = collectionConfiguration.getFieldConfiguration(newData.getFieldType());
+                if (config.isRepeatable()) {
+                    if (!newData.getAttributes().isEmpty() && !newData.getAttributes().equals(oldData.getAttributes())) {
+                        oldData.setAttributes(newData.getAttributes());
+                        wasUpdated = true;
+                    }
+                    // walk through and see what values need to be added to the existing list
+                    List<List<NameValuePair>> uniqueValues = getNewValues(newData.getParts(), oldData.getParts());
+                    if (!uniqueValues.isEmpty()) {
+                        oldData.addValues(uniqueValues);
+                        wasUpdated = true;
                     }
-                } catch (RepositoryException ex) {
-                    LOGGER.warn("Exception while updating an item in a batch operation!", ex);
-                    exceptionIds.add(id);
-                } catch (OptimisticLockingException ex) {
-                    // We should try again, because if unrelated fields were updated 
-                    // our update should succeed if we try again.  (Also this is *extremely* unlikely
-                    // because it would require a user to save the exact item we're working on
-                    // in the time it takes us to read, update and write the object.
-                    cursor --;
-                    LOGGER.info("Optimistic locking exception for batch operation... will try again.", ex);
+                } else {
+                    // see if we can replace the existing value or whether we need to ask for
+                    // approval
+                    metadata.setFieldValue(newData.getFieldType(), newData);
+                    wasUpdated = true;
                 }
             }
         }
+        return wasUpdated ? BulkSavePipeline.Status.UPDATED : BulkSavePipeline.Status.UNCHANGED;
     }
     
     /**
@@ -364,6 +381,9 @@ public class EditBatchOperation implements Operation {
      */
     public synchronized void abort() {
         triggerAbort = true;
+        if (pipeline != null) {
+            pipeline.abort();
+        }
         if (sleepingThread != null) {
             sleepingThread.interrupt();
             sleepingThread = null;
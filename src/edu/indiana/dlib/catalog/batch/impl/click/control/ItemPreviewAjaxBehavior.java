@@ -47,6 +47,7 @@ import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.Item;
 import edu.indiana.dlib.catalog.config.ItemManager;
 import edu.indiana.dlib.catalog.config.RepositoryException;
+import edu.indiana.dlib.catalog.servlets.ImageProxyServlet;
 
 /**
  * An AjaxBehavior implementation that returns a snippet of HTML
@@ -111,7 +112,7 @@ public class ItemPreviewAjaxBehavior extends DefaultAjaxBehavior {
                         buffer.closeTag();
                         buffer.elementStart("td");
                         buffer.elementStart("img");
-                        buffer.appendAttribute("src", item.getPreview().getURL());
+                        buffer.appendAttribute("src", ImageProxyServlet.getImageUrl(Context.getThreadLocalContext().getRequest().getContextPath(), item.getId(), ImageProxyServlet.THUMBNAIL));
                         buffer.appendAttribute("alt", "preview image");
                         buffer.elementEnd();
                         buffer.elementEnd("td");
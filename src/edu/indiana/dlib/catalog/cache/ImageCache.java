@@ -0,0 +1,642 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.dlib.catalog.config.impl.fedora.XMLComparisonUtil;
+
+/**
+ * <p>
+ *   A size-bounded disk cache of image files (item previews and
+ *   other derivatives) fetched from the repository.  Each entry 
+ *   consists of the image file and a properties file recording 
+ *   the name of that file, where the image was fetched from, the 
+ *   validators (ETag and Last-Modified) returned by that source, 
+ *   the ETag computed for the cached content and when the entry was
+ *   last known to be current.  Entries survive restarts; when the 
+ *   total size of the images exceeds the maximum, the least recently
+ *   used entries are removed.
+ * </p>
+ * <p>
+ *   Every version of an image is written to a new file and image
+ *   files are never modified, so the file (and the size and ETag)
+ *   of an Entry remain valid while it is being sent, even if the
+ *   image is concurrently refreshed or evicted.  The file of a 
+ *   replaced or removed entry is only deleted once it has been
+ *   unused for RETIRED_FILE_LIFETIME, which allows sends that are 
+ *   in progress (including those handed to the container to be 
+ *   sent with sendfile) to complete.
+ * </p>
+ * <p>
+ *   The cache also remembers, for a limited time, the images whose
+ *   source couldn't be fetched (for instance because it requires 
+ *   the user to authenticate) so that callers needn't repeat the
+ *   attempt for every request.
+ * </p>
+ * <p>
+ *   Callers that find no entry (or a stale one) should obtain it 
+ *   through load(), which ensures that concurrent requests for the
+ *   same image result in a single fetch.  Until a cache directory 
+ *   is set (see SimpleCacheManager) nothing is cached.  This class 
+ *   is thread-safe.
+ * </p>
+ */
+public class ImageCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ImageCache.class);
+    
+    /**
+     * The default maximum total size of the cached images (200 MB).
+     */
+    public static final long DEFAULT_MAX_SIZE = 200L * 1024L * 1024L;
+    
+    private static final String IMAGE_SUFFIX = ".img";
+    
+    private static final String PROPERTIES_SUFFIX = ".properties";
+    
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    /**
+     * The number of milliseconds after an image file was replaced or 
+     * removed from the cache before it is deleted.
+     */
+    private static final long RETIRED_FILE_LIFETIME = 10 * 60 * 1000;
+    
+    /**
+     * The maximum number of unavailable sources that are remembered.
+     */
+    private static final int MAX_UNAVAILABLE_SOURCES = 10000;
+    
+    private static ImageCache INSTANCE;
+    
+    public static synchronized ImageCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new ImageCache();
+        }
+        return INSTANCE;
+    }
+    
+    /**
+     * A cached image.  Instances are immutable except for the time
+     * at which they were last validated; a changed image results in
+     * a new Entry.
+     */
+    public static class Entry {
+        
+        private String name;
+        
+        private File file;
+        
+        private Properties properties;
+        
+        private volatile long validatedAt;
+        
+        private Entry(String name, File file, Properties properties) {
+            this.name = name;
+            this.file = file;
+            this.properties = properties;
+            this.validatedAt = Long.parseLong(properties.getProperty("validated", "0"));
+        }
+        
+        /**
+         * Gets the file containing the cached image.
+         */
+        public File getFile() {
+            return file;
+        }
+        
+        public long getSize() {
+            return Long.parseLong(properties.getProperty("size"));
+        }
+        
+        public String getContentType() {
+            return properties.getProperty("content-type");
+        }
+        
+        /**
+         * Gets the (quoted) entity tag of the cached content.
+         */
+        public String getETag() {
+            return properties.getProperty("etag");
+        }
+        
+        /**
+         * Gets the last modification date of the image (as reported 
+         * by its source, or the time it was cached if the source 
+         * didn't report one).
+         */
+        public long getLastModified() {
+            return Long.parseLong(properties.getProperty("last-modified"));
+        }
+        
+        /**
+         * Gets the URL from which the image was fetched.
+         */
+        public String getSourceUrl() {
+            return properties.getProperty("source-url");
+        }
+        
+        /**
+         * Gets the ETag header returned by the source, or null.
+         */
+        public String getSourceETag() {
+            return properties.getProperty("source-etag");
+        }
+        
+        /**
+         * Gets the Last-Modified header returned by the source, or
+         * null.
+         */
+        public String getSourceLastModified() {
+            return properties.getProperty("source-last-modified");
+        }
+        
+        /**
+         * Gets the id of the collection to which the item whose
+         * image this is belongs.
+         */
+        public String getCollectionId() {
+            return properties.getProperty("collection-id");
+        }
+        
+        /**
+         * Gets the number of milliseconds since the image was 
+         * fetched or last confirmed to be current.
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - validatedAt;
+        }
+    }
+    
+    /**
+     * A record of an image that couldn't be fetched from its source.
+     */
+    public static class UnavailableSource {
+        
+        private String sourceUrl;
+        
+        private String collectionId;
+        
+        private long recordedAt;
+        
+        private UnavailableSource(String sourceUrl, String collectionId) {
+            this.sourceUrl = sourceUrl;
+            this.collectionId = collectionId;
+            this.recordedAt = System.currentTimeMillis();
+        }
+        
+        /**
+         * Gets the URL from which the image couldn't be fetched.
+         */
+        public String getSourceUrl() {
+            return sourceUrl;
+        }
+        
+        /**
+         * Gets the id of the collection to which the item whose
+         * image this is belongs.
+         */
+        public String getCollectionId() {
+            return collectionId;
+        }
+        
+        /**
+         * Gets the number of milliseconds since the failure was 
+         * recorded.
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - recordedAt;
+        }
+    }
+    
+    /**
+     * An image file that is no longer part of the cache but may 
+     * still be in the process of being sent.
+     */
+    private static class RetiredFile {
+        
+        private File file;
+        
+        private long retiredAt;
+        
+        public RetiredFile(File file) {
+            this.file = file;
+            this.retiredAt = System.currentTimeMillis();
+        }
+    }
+    
+    private File cacheDirectory;
+    
+    private long maxSize;
+    
+    private long size;
+    
+    /**
+     * A map from the file name (minus suffix) of every entry to 
+     * that entry, in access order.
+     */
+    private LinkedHashMap<String, Entry> entries;
+    
+    /**
+     * The image files awaiting deletion, in the order in which they
+     * were retired.
+     */
+    private List<RetiredFile> retiredFiles;
+    
+    /**
+     * A map from the file name (minus suffix) of images that couldn't 
+     * be fetched to the record of that failure.
+     */
+    private LinkedHashMap<String, UnavailableSource> unavailableSources;
+    
+    /**
+     * The loads currently in progress, by key.
+     */
+    private ConcurrentHashMap<String, FutureTask<Entry>> loading;
+    
+    private ImageCache() {
+        entries = new LinkedHashMap<String, Entry>(16, .75f, true);
+        retiredFiles = new ArrayList<RetiredFile>();
+        unavailableSources = new LinkedHashMap<String, UnavailableSource>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, UnavailableSource> eldest) {
+                return size() > MAX_UNAVAILABLE_SOURCES;
+            }
+        };
+        loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+    }
+    
+    /**
+     * Sets the directory in which images are cached.  Entries 
+     * already present from an earlier run are reused (least
+     * recently modified entries being the first evicted).
+     * @param maxSize the maximum total size in bytes of the cached
+     * images
+     */
+    public synchronized void setCacheDirectory(File directory, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory + "!");
+        }
+        this.cacheDirectory = directory;
+        this.maxSize = maxSize;
+        this.entries.clear();
+        this.retiredFiles.clear();
+        this.unavailableSources.clear();
+        this.size = 0;
+        List<Entry> found = new ArrayList<Entry>();
+        for (File propertiesFile : directory.listFiles()) {
+            String filename = propertiesFile.getName();
+            if (filename.endsWith(PROPERTIES_SUFFIX)) {
+                String name = filename.substring(0, filename.length() - PROPERTIES_SUFFIX.length());
+                try {
+                    Properties p = new Properties();
+                    InputStream is = new FileInputStream(propertiesFile);
+                    try {
+                        p.load(is);
+                    } finally {
+                        is.close();
+                    }
+                    // entries written before images were versioned
+                    // have no "file" property
+                    File image = new File(directory, p.getProperty("file", name + IMAGE_SUFFIX));
+                    Entry entry = new Entry(name, image, p);
+                    if (entry.getSize() != image.length()) {
+                        throw new IOException("Size mismatch!");
+                    }
+                    found.add(entry);
+                } catch (Exception ex) {
+                    LOGGER.warn("Discarding unreadable cache entry " + name + ".", ex);
+                    propertiesFile.delete();
+                }
+            }
+        }
+        Collections.sort(found, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                long diff = e1.getFile().lastModified() - e2.getFile().lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }});
+        Set<File> currentFiles = new HashSet<File>();
+        for (Entry entry : found) {
+            entries.put(entry.name, entry);
+            size += entry.getSize();
+            currentFiles.add(entry.getFile());
+        }
+        for (File file : directory.listFiles()) {
+            if (!file.getName().endsWith(PROPERTIES_SUFFIX) && !currentFiles.contains(file)) {
+                // an incomplete temporary file or an image that had
+                // been replaced or removed
+                file.delete();
+            }
+        }
+        evict();
+        // nothing has been sent from this directory yet
+        for (RetiredFile retired : retiredFiles) {
+            retired.file.delete();
+        }
+        retiredFiles.clear();
+        LOGGER.info("Image cache initialized at \"" + directory + "\" with " + entries.size() + " images (" + size + " bytes).");
+    }
+    
+    /**
+     * Determines whether a cache directory has been set.
+     */
+    public synchronized boolean isEnabled() {
+        return cacheDirectory != null;
+    }
+    
+    /**
+     * Gets the cached entry for the given key or null if there is
+     * none.
+     */
+    public synchronized Entry get(String key) {
+        return entries.get(getName(key));
+    }
+    
+    /**
+     * Gets the entry for the given key by invoking the given loader
+     * unless a load for the same key is already in progress, in 
+     * which case this method waits for and returns the result of 
+     * that load.
+     * @param loader a Callable that fetches (or revalidates) the 
+     * image and returns the resulting entry (possibly null)
+     */
+    public Entry load(String key, Callable<Entry> loader) throws IOException {
+        FutureTask<Entry> task = new FutureTask<Entry>(loader);
+        FutureTask<Entry> existing = loading.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+            existing = task;
+        }
+        try {
+            return existing.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + key + "!");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            } else {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+    }
+    
+    /**
+     * Gets the record of the most recent failure to fetch the image
+     * for the given key, or null if there is none.  The record is 
+     * cleared when an image is cached for the key.
+     */
+    public synchronized UnavailableSource getUnavailableSource(String key) {
+        return unavailableSources.get(getName(key));
+    }
+    
+    /**
+     * Records that the image for the given key couldn't be fetched.
+     * @param sourceUrl the URL from which the image couldn't be 
+     * fetched
+     * @param collectionId the collection of the item whose image 
+     * this is
+     */
+    public synchronized void markUnavailable(String key, String sourceUrl, String collectionId) {
+        unavailableSources.put(getName(key), new UnavailableSource(sourceUrl, collectionId));
+    }
+    
+    /**
+     * Records that the given entry was just confirmed to be current.
+     */
+    public void markValidated(Entry entry) {
+        entry.validatedAt = System.currentTimeMillis();
+    }
+    
+    /**
+     * Reads the image from the given stream into the cache, 
+     * replacing any existing entry for the key.
+     * @param key the key under which the image is cached
+     * @param is the image content (this stream is closed by this
+     * method)
+     * @param contentType the mime type of the image
+     * @param sourceUrl the URL from which the image was fetched
+     * @param sourceETag the ETag returned by the source (or null)
+     * @param sourceLastModified the Last-Modified header returned by
+     * the source (or null)
+     * @param lastModified the modification date of the image or 0 if
+     * unknown
+     * @param collectionId the collection of the item whose image 
+     * this is
+     * @return the new entry or null if no cache directory is set
+     */
+    public Entry put(String key, InputStream is, String contentType, String sourceUrl, String sourceETag, String sourceLastModified, long lastModified, String collectionId) throws IOException {
+        File tempFile = null;
+        String name = getName(key);
+        synchronized (this) {
+            if (cacheDirectory == null) {
+                is.close();
+                return null;
+            }
+            tempFile = File.createTempFile(name + "-", TEMP_SUFFIX, cacheDirectory);
+        }
+        try {
+            XMLComparisonUtil.HashOutputStream hash = new XMLComparisonUtil.HashOutputStream();
+            long length = 0;
+            OutputStream os = new FileOutputStream(tempFile);
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                    hash.write(buffer, 0, read);
+                    length += read;
+                }
+            } finally {
+                os.close();
+                is.close();
+            }
+            Properties p = new Properties();
+            p.setProperty("key", key);
+            p.setProperty("size", String.valueOf(length));
+            p.setProperty("etag", "\"" + hash.getMD5Hash() + "\"");
+            p.setProperty("last-modified", String.valueOf(lastModified > 0 ? lastModified : System.currentTimeMillis()));
+            p.setProperty("validated", String.valueOf(System.currentTimeMillis()));
+            p.setProperty("content-type", contentType == null ? "application/octet-stream" : contentType);
+            p.setProperty("source-url", sourceUrl);
+            if (sourceETag != null) {
+                p.setProperty("source-etag", sourceETag);
+            }
+            if (sourceLastModified != null) {
+                p.setProperty("source-last-modified", sourceLastModified);
+            }
+            if (collectionId != null) {
+                p.setProperty("collection-id", collectionId);
+            }
+            return store(name, tempFile, p);
+        } catch (IOException ex) {
+            tempFile.delete();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Removes the entry for the given key.
+     */
+    public synchronized void invalidate(String key) {
+        remove(getName(key));
+        deleteRetiredFiles();
+    }
+    
+    /**
+     * Gets the total size (in bytes) of the cached images.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * Makes the given temporary file the image for a new entry, 
+     * replacing (but not overwriting) the current image file for
+     * that entry if there is one.
+     */
+    private synchronized Entry store(String name, File tempFile, Properties p) throws IOException {
+        // the temporary file name is unique, so the image file name 
+        // derived from it is as well
+        String tempName = tempFile.getName();
+        File image = new File(cacheDirectory, tempName.substring(0, tempName.length() - TEMP_SUFFIX.length()) + IMAGE_SUFFIX);
+        if (!tempFile.renameTo(image)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + image + "!");
+        }
+        p.setProperty("file", image.getName());
+        File propertiesFile = new File(cacheDirectory, name + PROPERTIES_SUFFIX);
+        try {
+            OutputStream os = new FileOutputStream(propertiesFile);
+            try {
+                p.store(os, null);
+            } finally {
+                os.close();
+            }
+        } catch (IOException ex) {
+            image.delete();
+            remove(name);
+            throw ex;
+        }
+        Entry replaced = entries.remove(name);
+        if (replaced != null) {
+            size -= replaced.getSize();
+            retiredFiles.add(new RetiredFile(replaced.getFile()));
+        }
+        Entry entry = new Entry(name, image, p);
+        entries.put(name, entry);
+        size += entry.getSize();
+        unavailableSources.remove(name);
+        evict();
+        deleteRetiredFiles();
+        return entry;
+    }
+    
+    private synchronized void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            size -= entry.getSize();
+            retiredFiles.add(new RetiredFile(entry.getFile()));
+            new File(cacheDirectory, name + PROPERTIES_SUFFIX).delete();
+        }
+    }
+    
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            size -= eldest.getSize();
+            retiredFiles.add(new RetiredFile(eldest.getFile()));
+            new File(cacheDirectory, eldest.name + PROPERTIES_SUFFIX).delete();
+        }
+    }
+    
+    /**
+     * Deletes the retired image files that were retired more than 
+     * RETIRED_FILE_LIFETIME ago.  Files that can't be deleted (for
+     * instance because they're open on a platform that doesn't allow
+     * that) are retried the next time.
+     */
+    private synchronized void deleteRetiredFiles() {
+        long cutoff = System.currentTimeMillis() - RETIRED_FILE_LIFETIME;
+        Iterator<RetiredFile> it = retiredFiles.iterator();
+        while (it.hasNext()) {
+            RetiredFile retired = it.next();
+            if (retired.retiredAt > cutoff) {
+                break;
+            }
+            if (retired.file.delete() || !retired.file.exists()) {
+                it.remove();
+            }
+        }
+    }
+
+    
+    private static String getName(String key) {
+        try {
+            return XMLComparisonUtil.computeHash(key.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new AssertionError(ex);
+        }
+    }
+    
+}
@@ -36,6 +36,7 @@ import java.io.IOException;
 import org.apache.log4j.Logger;
 
 import edu.indiana.dlib.catalog.config.DocumentHelper;
+import edu.indiana.dlib.catalog.config.impl.fedora.HistoricDatastreamCache;
 
 public class SimpleCacheManager implements CacheManager {
 
@@ -48,22 +49,62 @@ public class SimpleCacheManager implements CacheManager {
      * be relative to the PHOTOCAT_HOME directory.
      */
     public SimpleCacheManager(String baseCacheDirectory) {
+        this(baseCacheDirectory, HistoricDatastreamCache.DEFAULT_MAX_SIZE);
+    }
+    
+    /**
+     * Constructs a cache location on disk, including a directory
+     * for cached past versions of fedora datastreams.
+     * @param historyCacheSize the maximum size (in bytes) of the
+     * cached past versions of datastreams
+     */
+    public SimpleCacheManager(String baseCacheDirectory, long historyCacheSize) {
+        this(baseCacheDirectory, historyCacheSize, ImageCache.DEFAULT_MAX_SIZE);
+    }
+    
+    /**
+     * Constructs a cache location on disk, including directories
+     * for cached past versions of fedora datastreams and for cached
+     * preview images.
+     * @param historyCacheSize the maximum size (in bytes) of the
+     * cached past versions of datastreams
+     * @param imageCacheSize the maximum size (in bytes) of the 
+     * cached images
+     */
+    public SimpleCacheManager(String baseCacheDirectory, long historyCacheSize, long imageCacheSize) {
         File schemaCacheDir = null;
+        File historyCacheDir = null;
+        File imageCacheDir = null;
         String photocatHome = System.getenv("PHOTOCAT_HOME");
         if (photocatHome != null && !baseCacheDirectory.startsWith("/")) {
             File homeDir = new File(photocatHome);
             schemaCacheDir = new File(homeDir, baseCacheDirectory);
+            historyCacheDir = new File(new File(homeDir, baseCacheDirectory), "history-cache");
+            imageCacheDir = new File(new File(homeDir, baseCacheDirectory), "image-cache");
         } else {
             schemaCacheDir = new File(new File(baseCacheDirectory), "schema-cache");
+            historyCacheDir = new File(new File(baseCacheDirectory), "history-cache");
+            imageCacheDir = new File(new File(baseCacheDirectory), "image-cache");
         }
         try {
             schemaCacheDir.mkdirs();
+            // the schema cache is kept between restarts so that the
+            // application can start without fetching the schemas
             DocumentHelper.getInstance().setCacheDirectory(schemaCacheDir);
-            DocumentHelper.getInstance().clearCache();
             LOGGER.info("Schema cache initialized at, \"" + schemaCacheDir + "\".");
         } catch (IOException ex) {
             LOGGER.error("Error setting DocumentHelper schema cache!", ex);
         }
+        try {
+            HistoricDatastreamCache.getInstance().setCacheDirectory(historyCacheDir, historyCacheSize);
+        } catch (IOException ex) {
+            LOGGER.error("Error setting the history cache!", ex);
+        }
+        try {
+            ImageCache.getInstance().setCacheDirectory(imageCacheDir, imageCacheSize);
+        } catch (IOException ex) {
+            LOGGER.error("Error setting the image cache!", ex);
+        }
     }
     
 }
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * An extension of ItemManager for implementations that can
+ * resolve the preview DataView for many items at once more
+ * efficiently than by fetching each Item individually.  Pages
+ * that already have the ItemMetadata for a set of items (like
+ * search results) should use this to avoid a full fetchItem()
+ * for every item that is displayed.
+ */
+public interface BatchPreviewItemManager extends ItemManager {
+
+    /**
+     * Gets the preview DataView for each of the items identified
+     * by the given ids.  Implementations may perform the lookups
+     * concurrently, but this method doesn't return until all have
+     * completed.
+     * @param ids the identifiers of the items whose previews are
+     * to be fetched
+     * @return a Map from item id to the preview for that item.  Items
+     * that have no preview (or whose preview couldn't be determined)
+     * will not have an entry in the map.
+     */
+    public Map<String, DataView> fetchPreviews(Collection<String> ids) throws RepositoryException;
+    
+}
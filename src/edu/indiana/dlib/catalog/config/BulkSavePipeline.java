@@ -0,0 +1,394 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import edu.indiana.dlib.catalog.accesscontrol.UserInfo;
+
+/**
+ * <p>
+ *   Applies a stream of updates to items, performing the 
+ *   fetch, merge and save steps for several items at once.  The
+ *   number of items in flight never exceeds the maximum given at
+ *   construction time, and within that bound it adapts to the 
+ *   repository: it grows by roughly one for each round of 
+ *   successful saves and is halved when a save fails or the 
+ *   recent latency rises well above the longer-term average.
+ * </p>
+ * <p>
+ *   Results are passed to the ResultListener in the order in 
+ *   which the updates were supplied (regardless of the order in 
+ *   which they complete) and always on the thread that called
+ *   run(), so listeners needn't be thread-safe.
+ * </p>
+ */
+public class BulkSavePipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(BulkSavePipeline.class);
+    
+    /**
+     * The maximum number of items in flight when no value is
+     * specified at construction time.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    
+    /**
+     * The number of times an update is attempted when saves fail
+     * because the item was concurrently modified.
+     */
+    private static final int MAX_ATTEMPTS = 5;
+    
+    /**
+     * The outcome of an update.
+     */
+    public static enum Status {
+        /**
+         * The update changed the item and it was saved.
+         */
+        UPDATED,
+        
+        /**
+         * The update made no changes so nothing was saved.
+         */
+        UNCHANGED,
+        
+        /**
+         * The update declined to change the item (for instance
+         * because the change requires approval) so nothing was 
+         * saved.
+         */
+        DEFERRED,
+        
+        /**
+         * No item exists with the given id.
+         */
+        NOT_FOUND,
+        
+        /**
+         * An exception was thrown while fetching, updating or 
+         * saving the item.
+         */
+        FAILED;
+    }
+    
+    /**
+     * A change to be made to a single item.
+     */
+    public static interface ItemUpdate {
+        
+        /**
+         * Gets the id of the item to update.
+         */
+        public String getId();
+        
+        /**
+         * Applies the change to the given, freshly fetched, item.  
+         * This method may be invoked more than once (each time on
+         * a newly fetched copy) if the save fails because the item
+         * was concurrently modified, and may be invoked on several
+         * threads at once for different updates.
+         * @return UPDATED if the item was changed and should be 
+         * saved, otherwise UNCHANGED or DEFERRED.
+         */
+        public Status apply(Item item);
+    }
+    
+    /**
+     * Receives the result of each update, in the order in which
+     * the updates were supplied.
+     */
+    public static interface ResultListener {
+        
+        public void resultAvailable(Result result);
+        
+    }
+    
+    public static class Result {
+        
+        private String id;
+        
+        private Status status;
+        
+        private Exception exception;
+        
+        private int attempts;
+        
+        private long elapsedTime;
+        
+        private Result(String id, Status status, Exception exception, int attempts, long elapsedTime) {
+            this.id = id;
+            this.status = status;
+            this.exception = exception;
+            this.attempts = attempts;
+            this.elapsedTime = elapsedTime;
+        }
+        
+        public String getId() {
+            return id;
+        }
+        
+        public Status getStatus() {
+            return status;
+        }
+        
+        /**
+         * Gets the exception that caused the update to fail or null
+         * if the status isn't FAILED.
+         */
+        public Exception getException() {
+            return exception;
+        }
+        
+        /**
+         * Gets the number of times the item was fetched and updated.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+        
+        /**
+         * Gets the number of milliseconds spent on this update (in 
+         * all attempts).
+         */
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+    }
+    
+    private ItemManager im;
+    
+    private UserInfo user;
+    
+    private int maxInFlight;
+    
+    private volatile boolean aborted;
+    
+    public BulkSavePipeline(ItemManager im, UserInfo user) {
+        this(im, user, DEFAULT_MAX_IN_FLIGHT);
+    }
+    
+    /**
+     * @param maxInFlight the maximum number of items that will be
+     * fetched, updated or saved at once
+     */
+    public BulkSavePipeline(ItemManager im, UserInfo user, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1!");
+        }
+        this.im = im;
+        this.user = user;
+        this.maxInFlight = maxInFlight;
+    }
+    
+    /**
+     * Performs every update (unless aborted) and returns once all
+     * results have been passed to the listener.
+     */
+    public void run(Iterator<? extends ItemUpdate> updates, ResultListener listener) {
+        ExecutorService executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bulk-save-worker");
+                thread.setDaemon(true);
+                return thread;
+            }});
+        CompletionService<Result> completionService = new ExecutorCompletionService<Result>(executor);
+        LinkedList<Future<Result>> pending = new LinkedList<Future<Result>>();
+        ConcurrencyLimit limit = new ConcurrencyLimit(maxInFlight);
+        int inFlight = 0;
+        try {
+            while (!aborted && updates.hasNext()) {
+                while (inFlight >= limit.get()) {
+                    limit.update(completionService.take().get());
+                    inFlight --;
+                    deliverCompletedResults(pending, listener);
+                }
+                pending.add(completionService.submit(new SaveTask(updates.next())));
+                inFlight ++;
+            }
+            while (inFlight > 0) {
+                limit.update(completionService.take().get());
+                inFlight --;
+                deliverCompletedResults(pending, listener);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.info("Interrupted with " + inFlight + " updates in flight.");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            // SaveTask catches all exceptions
+            throw new AssertionError(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Stops submitting updates.  Updates already in flight are
+     * completed and their results reported before run() returns.
+     */
+    public void abort() {
+        aborted = true;
+    }
+    
+    /**
+     * Passes the results of the oldest pending updates to the 
+     * listener, stopping at the first update that hasn't completed.
+     */
+    private void deliverCompletedResults(LinkedList<Future<Result>> pending, ResultListener listener) throws InterruptedException, ExecutionException {
+        while (!pending.isEmpty() && pending.getFirst().isDone()) {
+            listener.resultAvailable(pending.removeFirst().get());
+        }
+    }
+    
+    /**
+     * Fetches, updates and saves a single item, retrying if the 
+     * item was concurrently modified.
+     */
+    private class SaveTask implements Callable<Result> {
+        
+        private ItemUpdate update;
+        
+        public SaveTask(ItemUpdate update) {
+            this.update = update;
+        }
+        
+        public Result call() {
+            long start = System.currentTimeMillis();
+            int attempts = 0;
+            try {
+                while (true) {
+                    attempts ++;
+                    Item item = im.fetchItem(update.getId());
+                    if (item == null) {
+                        return new Result(update.getId(), Status.NOT_FOUND, null, attempts, System.currentTimeMillis() - start);
+                    }
+                    Status status = update.apply(item);
+                    if (status == Status.UPDATED && !item.getMetadata().isModified()) {
+                        // the update set the values the item already had
+                        status = Status.UNCHANGED;
+                    }
+                    if (status == Status.UPDATED) {
+                        try {
+                            im.saveItemMetadata(item, user);
+                        } catch (OptimisticLockingException ex) {
+                            if (attempts < MAX_ATTEMPTS) {
+                                // other fields may have been changed, so
+                                // applying the update again may succeed
+                                LOGGER.info("Optimistic locking exception for " + update.getId() + "... will try again.", ex);
+                                continue;
+                            }
+                            throw ex;
+                        }
+                    }
+                    return new Result(update.getId(), status, null, attempts, System.currentTimeMillis() - start);
+                }
+            } catch (Exception ex) {
+                LOGGER.warn("Exception while updating item " + update.getId() + "!", ex);
+                return new Result(update.getId(), Status.FAILED, ex, attempts, System.currentTimeMillis() - start);
+            }
+        }
+    }
+    
+    /**
+     * An additive-increase, multiplicative-decrease limit on the 
+     * number of items in flight.  Congestion is inferred from 
+     * failures and from a short-term average latency that exceeds
+     * the long-term average by LATENCY_TOLERANCE.  After a decrease,
+     * no further decrease is made until as many updates as the new
+     * limit have completed, so that the effect of one overloaded
+     * period isn't counted several times.  This class is only used
+     * by the thread that called run().
+     */
+    private static class ConcurrencyLimit {
+        
+        private static final double LATENCY_TOLERANCE = 2.0;
+        
+        private int max;
+        
+        private double limit;
+        
+        private double shortTermLatency;
+        
+        private double longTermLatency;
+        
+        private int completedSinceDecrease;
+        
+        public ConcurrencyLimit(int max) {
+            this.max = max;
+            this.limit = Math.min(2, max);
+            this.completedSinceDecrease = max;
+        }
+        
+        public int get() {
+            return (int) limit;
+        }
+        
+        public void update(Result result) {
+            completedSinceDecrease ++;
+            if (result.getStatus() == Status.FAILED) {
+                decrease();
+                return;
+            }
+            long latency = result.getElapsedTime() / result.getAttempts();
+            if (longTermLatency == 0) {
+                shortTermLatency = latency;
+                longTermLatency = latency;
+            } else {
+                shortTermLatency += (latency - shortTermLatency) * .5;
+                longTermLatency += (latency - longTermLatency) * .05;
+            }
+            if (shortTermLatency > longTermLatency * LATENCY_TOLERANCE) {
+                decrease();
+            } else {
+                limit = Math.min(max, limit + 1 / limit);
+            }
+        }
+        
+        private void decrease() {
+            if (completedSinceDecrease >= get()) {
+                limit = Math.max(1, limit / 2);
+                completedSinceDecrease = 0;
+                LOGGER.debug("Reduced concurrency limit to " + get() + ".");
+            }
+        }
+    }
+}
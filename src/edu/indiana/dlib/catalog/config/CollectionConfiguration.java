@@ -30,14 +30,20 @@
  */
 package edu.indiana.dlib.catalog.config;
 
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.indiana.dlib.catalog.fields.UIField;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 
 /**
  * A CollectionConfiguration which is bound the the appropriate 
@@ -49,8 +55,37 @@ public class CollectionConfiguration extends CollectionConfigurationData {
     
     private Map<String, FieldDefinition> typeToDefinitionMap;
     
+    /**
+     * A map from field type to the (first) merged configuration
+     * for that type.
+     */
+    private Map<String, FieldConfiguration> typeToConfigurationMap;
+    
+    /**
+     * A map from field type to the factory that creates UIField
+     * instances for that type.  Factories for configured fields 
+     * are created when this configuration is constructed and 
+     * others are added as they're needed.
+     */
+    private Map<String, UIFieldFactory> typeToFactoryMap;
+    
+    /**
+     * A map from field type to a shared UIField instance used to 
+     * generate value summaries for that type, created the first
+     * time a summary is requested.  Only types whose UIField
+     * implements ValueSummaryRenderer have entries.
+     */
+    private Map<String, ValueSummaryRenderer> typeToSummaryRendererMap;
+    
     private Definitions fieldDefintions;
     
+    /**
+     * A String that differs between any two configurations that
+     * would produce different summaries for the same item.  See 
+     * getSummaryVersion().
+     */
+    private String summaryVersion;
+    
     /**
      * A copy constructor to create a CollectionConfigurationData that
      * includes all values from the provided 'config' but replaces any
@@ -68,17 +103,108 @@ public class CollectionConfiguration extends CollectionConfigurationData {
         
         this.mergedFieldConfigurations = new ArrayList<FieldConfiguration>();
         this.typeToDefinitionMap = new HashMap<String, FieldDefinition>();
+        this.typeToConfigurationMap = new HashMap<String, FieldConfiguration>();
+        this.typeToFactoryMap = new ConcurrentHashMap<String, UIFieldFactory>();
+        this.typeToSummaryRendererMap = new ConcurrentHashMap<String, ValueSummaryRenderer>();
         for (FieldConfiguration field : super.listFieldConfigurations()) {
             FieldDefinition def = definitions.getFieldDefinition(field.getFieldType());
+            FieldConfiguration merged = field;
             if (def != null) {
-                this.mergedFieldConfigurations.add(new FieldConfiguration(field, def.getDefaultConfiguration()));
+                merged = new FieldConfiguration(field, def.getDefaultConfiguration());
                 this.typeToDefinitionMap.put(field.getFieldType(), def);
             } else {
                 // this field is undefined, meaning it is a configuration
                 // referencing a field that doesn't exist.
-                this.mergedFieldConfigurations.add(field);
+            }
+            this.mergedFieldConfigurations.add(merged);
+            if (!this.typeToConfigurationMap.containsKey(merged.getFieldType())) {
+                this.typeToConfigurationMap.put(merged.getFieldType(), merged);
             }
         }
+        for (FieldConfiguration field : this.typeToConfigurationMap.values()) {
+            FieldDefinition def = this.typeToDefinitionMap.get(field.getFieldType());
+            if (def != null) {
+                this.typeToFactoryMap.put(field.getFieldType(), new UIFieldFactory(def, field));
+            }
+        }
+        this.summaryVersion = computeSummaryVersion();
+    }
+    
+    /**
+     * Computes a hash of every part of this configuration that 
+     * is used when generating value summaries for the brief view:
+     * the field labels, whether fields are displayed in the brief
+     * view, the UIField implementations and the data specifications
+     * they summarize, and the default values that are summarized 
+     * when an item has no value for a field.
+     */
+    private String computeSummaryVersion() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(this.getCollectionMetadata().getId());
+        for (FieldConfiguration field : this.mergedFieldConfigurations) {
+            sb.append('\n');
+            sb.append(field.getFieldType());
+            sb.append('|');
+            sb.append(field.getDisplayLabel());
+            sb.append('|');
+            sb.append(field.isDisplayedInCatalogingBriefView());
+            FieldDefinition def = this.typeToDefinitionMap.get(field.getFieldType());
+            if (def != null) {
+                sb.append('|');
+                sb.append(def.getJavaImplementation().getJavaClassName());
+                sb.append('|');
+                sb.append(def.getDataSpecification().getValidPartNames());
+                sb.append('|');
+                sb.append(def.getDataSpecification().getValidAttributeNames());
+            }
+            FieldData defaultValue = this.getDefaultValue(field.getFieldType());
+            if (defaultValue != null) {
+                sb.append('|');
+                if (defaultValue.getAttributes() != null) {
+                    appendNameValuePairs(defaultValue.getAttributes(), sb);
+                }
+                if (defaultValue.getParts() != null) {
+                    for (List<NameValuePair> value : defaultValue.getParts()) {
+                        sb.append('|');
+                        appendNameValuePairs(value, sb);
+                    }
+                }
+            }
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(sb.toString().getBytes("UTF-8"));
+            StringBuffer hex = new StringBuffer(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Integer.toHexString((b & 0xF0) >> 4));
+                hex.append(Integer.toHexString(b & 0x0F));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // can't happen because MD5 is supported by all JVMs
+            throw new AssertionError(ex);
+        } catch (UnsupportedEncodingException ex) {
+            // can't happen because UTF-8 is supported by all JVMs
+            throw new AssertionError(ex);
+        }
+    }
+    
+    private static void appendNameValuePairs(List<NameValuePair> pairs, StringBuffer sb) {
+        for (NameValuePair pair : pairs) {
+            sb.append(pair.getName());
+            sb.append('=');
+            sb.append(pair.getValue());
+            sb.append(';');
+        }
+    }
+    
+    /**
+     * Gets a version identifier for the parts of this configuration
+     * that affect the value summaries (see computeSummaryVersion()).  
+     * Summaries that were generated and stored under a different 
+     * version should be regenerated.
+     */
+    public String getSummaryVersion() {
+        return this.summaryVersion;
     }
     
     public List<FieldConfiguration> listFieldConfigurations() {
@@ -98,12 +224,26 @@ public class CollectionConfiguration extends CollectionConfigurationData {
         try {
             if (item.getCollectionId().equals(this.getCollectionMetadata().getId())) {
                 if (this.getFieldConfiguration(fieldType) != null) {
-                    UIField field = this.newInstance(fieldType);
                     FieldData fieldData = item.getFieldData(fieldType);
                     if (fieldData == null) {
                         return null;
+                    }
+                    ValueSummaryRenderer renderer = this.typeToSummaryRendererMap.get(fieldType);
+                    if (renderer != null) {
+                        return renderer.getValueSummary(fieldData, this.getDefaultValue(fieldType));
+                    }
+                    UIField field = this.newInstance(fieldType);
+                    if (field instanceof ValueSummaryRenderer) {
+                        // keep this instance to summarize every other 
+                        // value of this field
+                        renderer = (ValueSummaryRenderer) field;
+                        this.typeToSummaryRendererMap.put(fieldType, renderer);
+                        return renderer.getValueSummary(fieldData, this.getDefaultValue(fieldType));
                     } else {
+                        // apply the defaults in the same order as the 
+                        // edit form so that the two agree
                         field.setFieldData(fieldData);
+                        field.setDefaultValue(this.getDefaultValue(fieldType));
                         return field.getValueSummary();
                     }
                 } else {
@@ -118,51 +258,21 @@ public class CollectionConfiguration extends CollectionConfigurationData {
     }
     
     public UIField newInstance(String fieldType) throws ConfigurationException {
-        // get the JavaImplementation
-        FieldDefinition def = this.fieldDefintions.getFieldDefinition(fieldType);
-        if (def == null) {
-            throw new IllegalArgumentException("Undefined fieldType, \"" + fieldType + "\".");
-        } else {
-            try {
-                // instantiate the class
-                Class fieldClass = Class.forName(def.getJavaImplementation().getJavaClassName());
-                if (UIField.class.isAssignableFrom(fieldClass)) {
-                    Object fieldClassInstance = fieldClass.getConstructor(FieldDefinition.class, FieldConfiguration.class).newInstance(def, this.getFieldConfiguration(def.getType()));
-                    // add any properties
-                    if (!def.getJavaImplementation().getJavaClassProperties().isEmpty()) {
-                        // implement this when we actually have a use case
-                        throw new UnsupportedOperationException("Properties are not yet supported!");
-                    }
-                    
-                    return (UIField) fieldClassInstance;
-                } else {
-                    throw new ConfigurationException("Configured class, \"" + def.getJavaImplementation().getJavaClassName() + "\" for fieldType \"" + fieldType + "\" is not an instance of " + UIField.class.getName() + ".");
-                }
-            } catch (ClassNotFoundException ex) {
-                throw new ConfigurationException(ex);
-            } catch (SecurityException ex) {
-                throw new ConfigurationException(ex);
-            } catch (IllegalArgumentException ex) {
-                throw new ConfigurationException(ex);
-            } catch (InstantiationException ex) {
-                throw new ConfigurationException(ex);
-            } catch (IllegalAccessException ex) {
-                throw new ConfigurationException(ex);
-            } catch (InvocationTargetException ex) {
-                throw new ConfigurationException(ex);
-            } catch (NoSuchMethodException ex) {
-                throw new ConfigurationException(ex);
-            } 
+        UIFieldFactory factory = this.typeToFactoryMap.get(fieldType);
+        if (factory == null) {
+            // get the JavaImplementation
+            FieldDefinition def = this.fieldDefintions.getFieldDefinition(fieldType);
+            if (def == null) {
+                throw new IllegalArgumentException("Undefined fieldType, \"" + fieldType + "\".");
+            }
+            factory = new UIFieldFactory(def, this.getFieldConfiguration(def.getType()));
+            this.typeToFactoryMap.put(fieldType, factory);
         }
+        return factory.newInstance();
     }
     
     public FieldConfiguration getFieldConfiguration(String fieldType) {
-        for (FieldConfiguration config : this.mergedFieldConfigurations) {
-            if (config.getFieldType().equals(fieldType)) {
-                return config;
-            }
-        }
-        return null;
+        return this.typeToConfigurationMap.get(fieldType);
     }
     
     public FieldDefinition getFieldDefinition(String fieldType) {
@@ -177,4 +287,64 @@ public class CollectionConfiguration extends CollectionConfigurationData {
         return this.fieldDefintions;
     }
 
+    /**
+     * Creates UIField instances for a field type.  The implementation 
+     * class and its constructor are resolved once (when the factory is
+     * created) rather than for every instance.  Any problem resolving
+     * them is reported by each call to newInstance().
+     */
+    private static class UIFieldFactory {
+        
+        private FieldDefinition def;
+        
+        private FieldConfiguration conf;
+        
+        private Constructor<?> constructor;
+        
+        private ConfigurationException error;
+        
+        public UIFieldFactory(FieldDefinition def, FieldConfiguration conf) {
+            this.def = def;
+            this.conf = conf;
+            try {
+                Class<?> fieldClass = Class.forName(def.getJavaImplementation().getJavaClassName());
+                if (UIField.class.isAssignableFrom(fieldClass)) {
+                    this.constructor = fieldClass.getConstructor(FieldDefinition.class, FieldConfiguration.class);
+                } else {
+                    this.error = new ConfigurationException("Configured class, \"" + def.getJavaImplementation().getJavaClassName() + "\" for fieldType \"" + def.getType() + "\" is not an instance of " + UIField.class.getName() + ".");
+                }
+            } catch (ClassNotFoundException ex) {
+                this.error = new ConfigurationException(ex);
+            } catch (SecurityException ex) {
+                this.error = new ConfigurationException(ex);
+            } catch (NoSuchMethodException ex) {
+                this.error = new ConfigurationException(ex);
+            }
+        }
+        
+        public UIField newInstance() throws ConfigurationException {
+            if (this.error != null) {
+                throw this.error;
+            }
+            try {
+                // instantiate the class
+                Object fieldClassInstance = this.constructor.newInstance(this.def, this.conf);
+                // add any properties
+                if (!this.def.getJavaImplementation().getJavaClassProperties().isEmpty()) {
+                    // implement this when we actually have a use case
+                    throw new UnsupportedOperationException("Properties are not yet supported!");
+                }
+                return (UIField) fieldClassInstance;
+            } catch (IllegalArgumentException ex) {
+                throw new ConfigurationException(ex);
+            } catch (InstantiationException ex) {
+                throw new ConfigurationException(ex);
+            } catch (IllegalAccessException ex) {
+                throw new ConfigurationException(ex);
+            } catch (InvocationTargetException ex) {
+                throw new ConfigurationException(ex);
+            }
+        }
+    }
+    
 }
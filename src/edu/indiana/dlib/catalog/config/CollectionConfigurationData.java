@@ -110,7 +110,7 @@ public abstract class CollectionConfigurationData {
         if (this.collectionMetadata != null) {
             throw new IllegalStateException("parseInputStream() may only be called once!");
         }
-        Document configurationDoc = DocumentHelper.getInstance().parseAndValidateDocument(xmlInputStream);
+        Document configurationDoc = DocumentHelper.getInstance().parseAndValidateDocument(xmlInputStream, XPathHelper.C_URI);
     
         XPath xpath = XPathHelper.getInstance().getXPath();
         try {
@@ -135,7 +135,7 @@ public abstract class Definitions {
         if (this.fieldTypes != null) {
             throw new IllegalStateException("parseInputStream() may only be called once!");
         }
-        Document definitionDoc = DocumentHelper.getInstance().parseAndValidateDocument(xmlInputStream);
+        Document definitionDoc = DocumentHelper.getInstance().parseAndValidateDocument(xmlInputStream, XPathHelper.D_URI);
     
         XPath xpath = XPathHelper.getInstance().getXPath();
         try {
@@ -34,18 +34,30 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
 
+import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -57,58 +69,143 @@ import edu.indiana.dlib.catalog.config.impl.SchemaCachingEntityResolver;
  * A crude utility class in which messy techniques for common
  * actions associated with DOM documents can be grouped to allow
  * later improvements in both performance and readability.
+ * 
+ * The photocat schemas are each compiled once (fetched through
+ * the schema cache if one has been set) and every thread keeps
+ * its own DocumentBuilders, so parsing is never serialized.
  */
 public class DocumentHelper {
     
-    private DocumentBuilder docBuilder;
+    private static final Logger LOGGER = Logger.getLogger(DocumentHelper.class);
+    
+    /**
+     * A mapping from the namespace of each photocat document type
+     * to the location of its schema.
+     */
+    private static final Map<String, String> SCHEMA_LOCATIONS = new HashMap<String, String>();
+    static {
+        SCHEMA_LOCATIONS.put(XPathHelper.D_URI, XPathHelper.D_XSD_LOC);
+        SCHEMA_LOCATIONS.put(XPathHelper.C_URI, XPathHelper.C_XSD_LOC);
+        SCHEMA_LOCATIONS.put(XPathHelper.M_URI, XPathHelper.M_XSD_LOC);
+    }
+    
+    /**
+     * An ErrorHandler that treats every error as fatal.  It holds
+     * no state, so it's shared by all the DocumentBuilders.
+     */
+    private static final ErrorHandler STRICT_ERROR_HANDLER = new ErrorHandler() {
+
+        public void error(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
+
+        public void fatalError(SAXParseException exception) throws SAXException {
+            throw exception;
+        }
 
-    private SchemaCachingEntityResolver schemaCache;
+        public void warning(SAXParseException exception) throws SAXException {
+            // skip
+        }};
+    
+    private volatile SchemaCachingEntityResolver schemaCache;
+    
+    /**
+     * The compiled schemas, keyed by namespace.  Schema objects
+     * are immutable and thread-safe.
+     */
+    private Map<String, Schema> schemaMap;
+    
+    /**
+     * A non-validating DocumentBuilder for each thread.
+     */
+    private ThreadLocal<DocumentBuilder> parser;
+    
+    /**
+     * For each thread, a mapping from namespace to a DocumentBuilder
+     * that validates against the compiled schema for that namespace.
+     */
+    private ThreadLocal<Map<String, DocumentBuilder>> validatingParsers;
     
     private static DocumentHelper INSTANCE;
     
     private DocumentHelper() {
         schemaCache = null;
-        docBuilder = null;
+        schemaMap = new ConcurrentHashMap<String, Schema>();
+        parser = new ThreadLocal<DocumentBuilder>();
+        validatingParsers = new ThreadLocal<Map<String, DocumentBuilder>>() {
+            protected Map<String, DocumentBuilder> initialValue() {
+                return new HashMap<String, DocumentBuilder>();
+            }
+        };
     }
     
+    /**
+     * Sets the directory in which schema files are cached.  Any
+     * schemas compiled before this call are discarded.
+     */
     public synchronized void setCacheDirectory(File directory) throws IOException {
         schemaCache = new SchemaCachingEntityResolver(directory);
-        if (docBuilder != null) {
-            docBuilder.setEntityResolver(this.schemaCache);
-        }
+        schemaMap.clear();
     }
     
+    /**
+     * Clears the schema cache, so that the schemas will be fetched
+     * and compiled again the next time a document is validated.
+     */
     public synchronized void clearCache() throws IOException {
         if (schemaCache != null) {
             schemaCache.clearCache();
         }
+        schemaMap.clear();
     }
     
-    public Document parseAndValidateDocument(InputStream is) throws IOException, DataFormatException {
+    /**
+     * Parses and validates the XML document from the given stream
+     * against the photocat schema for the given namespace.  This
+     * should be used for any document that may have been written 
+     * by hand or by another application.
+     * @param namespace the namespace of the document's root element, 
+     * one of XPathHelper.D_URI, XPathHelper.C_URI or XPathHelper.M_URI
+     * @throws DataFormatException if the document isn't well-formed 
+     * or isn't valid, or if the schema couldn't be loaded
+     */
+    public Document parseAndValidateDocument(InputStream is, String namespace) throws IOException, DataFormatException {
         try {
-            if (docBuilder == null) {
+            Schema schema = getSchema(namespace);
+            Map<String, DocumentBuilder> builders = validatingParsers.get();
+            DocumentBuilder docBuilder = builders.get(namespace);
+            if (docBuilder == null || docBuilder.getSchema() != schema) {
                 DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                dbf.setValidating(true);
                 dbf.setNamespaceAware(true);
-                dbf.setAttribute("http://java.sun.com/xml/jaxp/properties/schemaLanguage", 
-                    "http://www.w3.org/2001/XMLSchema");
+                dbf.setSchema(schema);
                 docBuilder = dbf.newDocumentBuilder();
-                if (schemaCache != null) {
-                    docBuilder.setEntityResolver(this.schemaCache);
-                }
-                docBuilder.setErrorHandler(new ErrorHandler() {
-    
-                    public void error(SAXParseException exception) throws SAXException {
-                        throw exception;
-                    }
-    
-                    public void fatalError(SAXParseException exception) throws SAXException {
-                        throw exception;
-                    }
+                docBuilder.setErrorHandler(STRICT_ERROR_HANDLER);
+                builders.put(namespace, docBuilder);
+            }
+            return docBuilder.parse(new InputSource(is));
+        } catch (ParserConfigurationException ex) {
+            throw new DataFormatException(ex);
+        } catch (SAXException ex) {
+            throw new DataFormatException(ex);
+        }
+    }
     
-                    public void warning(SAXParseException exception) throws SAXException {
-                        // skip
-                    }});
+    /**
+     * Parses the XML document from the given stream without 
+     * validating it.  This is appropriate for documents that
+     * were written by this application and have not been modified
+     * since.
+     * @throws DataFormatException if the document isn't well-formed
+     */
+    public Document parseDocument(InputStream is) throws IOException, DataFormatException {
+        try {
+            DocumentBuilder docBuilder = parser.get();
+            if (docBuilder == null) {
+                DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+                dbf.setNamespaceAware(true);
+                docBuilder = dbf.newDocumentBuilder();
+                docBuilder.setErrorHandler(STRICT_ERROR_HANDLER);
+                parser.set(docBuilder);
             }
             return docBuilder.parse(new InputSource(is));
         } catch (ParserConfigurationException ex) {
@@ -118,22 +215,118 @@ public class DocumentHelper {
         }
     }
     
-    public static DocumentHelper getInstance() {
+    /**
+     * Gets the compiled schema for the given namespace, compiling
+     * it if it hasn't been compiled since the cache was last set
+     * or cleared.
+     */
+    private Schema getSchema(String namespace) throws IOException, SAXException {
+        Schema schema = schemaMap.get(namespace);
+        if (schema != null) {
+            return schema;
+        }
+        synchronized (this) {
+            schema = schemaMap.get(namespace);
+            if (schema == null) {
+                String location = SCHEMA_LOCATIONS.get(namespace);
+                if (location == null) {
+                    throw new IllegalArgumentException("No schema is known for namespace \"" + namespace + "\"!");
+                }
+                SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                sf.setErrorHandler(STRICT_ERROR_HANDLER);
+                if (schemaCache != null) {
+                    sf.setResourceResolver(new CachingResourceResolver(schemaCache));
+                    InputSource source = schemaCache.resolveEntity(null, location);
+                    schema = sf.newSchema(new StreamSource(source.getByteStream(), location));
+                } else {
+                    schema = sf.newSchema(new URL(location));
+                }
+                LOGGER.debug("Compiled schema for \"" + namespace + "\" from \"" + location + "\".");
+                schemaMap.put(namespace, schema);
+            }
+            return schema;
+        }
+    }
+    
+    /**
+     * An LSResourceResolver that fetches schemas imported or
+     * included by the photocat schemas through the schema cache.
+     */
+    private static class CachingResourceResolver implements LSResourceResolver {
+        
+        private SchemaCachingEntityResolver schemaCache;
+        
+        private DOMImplementationLS ls;
+        
+        public CachingResourceResolver(SchemaCachingEntityResolver schemaCache) throws SAXException {
+            this.schemaCache = schemaCache;
+            try {
+                this.ls = (DOMImplementationLS) DocumentBuilderFactory.newInstance().newDocumentBuilder().getDOMImplementation();
+            } catch (ParserConfigurationException ex) {
+                throw new SAXException(ex);
+            }
+        }
+
+        public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, String baseURI) {
+            if (systemId == null) {
+                return null;
+            }
+            try {
+                String location = (baseURI == null ? new URL(systemId) : new URL(new URL(baseURI), systemId)).toString();
+                InputSource source = schemaCache.resolveEntity(publicId, location);
+                LSInput input = ls.createLSInput();
+                input.setPublicId(publicId);
+                input.setSystemId(location);
+                input.setBaseURI(baseURI);
+                input.setByteStream(source.getByteStream());
+                return input;
+            } catch (Exception ex) {
+                // fall back to having the SchemaFactory fetch it
+                LOGGER.warn("Unable to resolve \"" + systemId + "\" through the schema cache!", ex);
+                return null;
+            }
+        }
+        
+    }
+    
+    public static synchronized DocumentHelper getInstance() {
         if (INSTANCE == null) {
             INSTANCE = new DocumentHelper();
         }
         return INSTANCE;
     }
 
+    /**
+     * Gets the child elements of the given node that have the 
+     * given namespace and local name, in document order.  This
+     * is a far cheaper alternative to evaluating an XPath 
+     * expression for simple paths.
+     */
+    public static List<Element> getChildElements(Node parent, String namespace, String localName) {
+        List<Element> children = new ArrayList<Element>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && localName.equals(child.getLocalName()) && namespace.equals(child.getNamespaceURI())) {
+                children.add((Element) child);
+            }
+        }
+        return children;
+    }
+    
+    /**
+     * Gets the first child element of the given node that has the
+     * given namespace and local name, or null if there is none.
+     */
+    public static Element getChildElement(Node parent, String namespace, String localName) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && localName.equals(child.getLocalName()) && namespace.equals(child.getNamespaceURI())) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
     public static void writeOutDocument(OutputStream os, Document doc) throws TransformerException, IOException {
-        DOMSource source = new DOMSource(doc);
-        StreamResult sResult = new StreamResult(os);
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer t = tFactory.newTransformer();
-        t.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-        t.setOutputProperty(OutputKeys.METHOD, "xml");
-        t.setOutputProperty(OutputKeys.INDENT, "yes");
-        t.transform(source, sResult);
-        sResult.getOutputStream().close();
+        TransformationHelper.getInstance().serialize(doc, new StreamResult(os), true);
+        os.close();
     }
 }
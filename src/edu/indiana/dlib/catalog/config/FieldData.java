@@ -30,16 +30,18 @@
  */
 package edu.indiana.dlib.catalog.config;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 /**
  * A data structure (class) that contains the structured data
@@ -57,22 +59,67 @@ import org.w3c.dom.NodeList;
  *  of everyone in the picture, followed by one "value" for every
  *  person, each consisting of "parts" for "family name", "given name"
  *  and "nick name".
+ *  
+ * FieldData that is parsed or copied is held in a compact form: 
+ * the names and values are kept in flat arrays (with the field 
+ * type and every name interned) and the lists returned by the
+ * accessors are views of those arrays.  The first modification
+ * through any of those lists or through the methods that modify 
+ * the values expands the data into ordinary lists.  The arrays are
+ * never modified, so copies of compact FieldData share them.
  */
 public class FieldData {
 
+    private static final String[] NO_STRINGS = new String[0];
+    
+    private static final int[] NO_VALUES = new int[] { 0 };
+    
     /**
      * The field type for this field.
      */
     private String fieldType;
     
+    /**
+     * The names of the attributes, while this FieldData is compact
+     * (otherwise null).
+     */
+    private String[] attributeNames;
+    
+    /**
+     * The values of the attributes, while this FieldData is compact
+     * (otherwise null).
+     */
+    private String[] attributeValues;
+    
+    /**
+     * The index in partNames and partValues of the first part of
+     * each value followed by the total number of parts, while this
+     * FieldData is compact (otherwise null).
+     */
+    private int[] valueOffsets;
+    
+    /**
+     * The names of the parts of every value, while this FieldData 
+     * is compact (otherwise null).
+     */
+    private String[] partNames;
+    
+    /**
+     * The values of the parts of every value, while this FieldData 
+     * is compact (otherwise null).
+     */
+    private String[] partValues;
+    
     /**
      * This is the part of the entered value or values that apply
-     * to all (if repeatable) of the "field".
+     * to all (if repeatable) of the "field".  This is null while
+     * this FieldData is compact.
      */
     private List<NameValuePair> attributes;
     
     /**
-     * This is the entered values.
+     * This is the entered values.  This is null while this 
+     * FieldData is compact.
      */
     private List<List<NameValuePair>> values;
 
@@ -84,16 +131,51 @@ public class FieldData {
         if (fieldType == null) {
             throw new IllegalArgumentException("FieldType must not be null!");
         }
-
-        if (values == null) {
-            values = new ArrayList<List<NameValuePair>>();
+        this.fieldType = fieldType.intern();
+        if (values == null && attributes == null) {
+            this.attributeNames = NO_STRINGS;
+            this.attributeValues = NO_STRINGS;
+            this.valueOffsets = NO_VALUES;
+            this.partNames = NO_STRINGS;
+            this.partValues = NO_STRINGS;
+        } else {
+            if (values == null) {
+                values = new ArrayList<List<NameValuePair>>();
+            }
+            if (attributes == null) {
+                attributes = new ArrayList<NameValuePair>();
+            }
+            this.attributes = attributes;
+            this.values = values;
         }
-        if (attributes == null) {
-            attributes = new ArrayList<NameValuePair>();
+    }
+    
+    /**
+     * Constructs a FieldData object that is a deep copy of the
+     * given FieldData.  The copy is compact, sharing the arrays
+     * of the original if it is compact.
+     */
+    public FieldData(FieldData original) {
+        this.fieldType = original.fieldType;
+        if (original.values == null) {
+            this.attributeNames = original.attributeNames;
+            this.attributeValues = original.attributeValues;
+            this.valueOffsets = original.valueOffsets;
+            this.partNames = original.partNames;
+            this.partValues = original.partValues;
+        } else {
+            CompactBuilder builder = new CompactBuilder();
+            for (NameValuePair attribute : original.attributes) {
+                builder.addAttribute(attribute.getName(), attribute.getValue());
+            }
+            for (List<NameValuePair> parts : original.values) {
+                builder.startValue();
+                for (NameValuePair part : parts) {
+                    builder.addPart(part.getName(), part.getValue());
+                }
+            }
+            builder.build(this);
         }
-        this.fieldType = fieldType;
-        this.attributes = attributes;
-        this.values = values;
     }
     
     /**
@@ -103,34 +185,62 @@ public class FieldData {
      * info:photocat/metadata. 
      */
     public FieldData(Element fieldElement) throws DataFormatException {
-        XPath xpath = XPathHelper.getInstance().getXPath();
-        try {
-            this.fieldType = (String) xpath.evaluate("@fieldType", fieldElement, XPathConstants.STRING);
-            
-            NodeList attributesNl = (NodeList) xpath.evaluate("m:attribute", fieldElement, XPathConstants.NODESET);
-            this.attributes = new ArrayList<NameValuePair>();
-            for (int i = 0; i < attributesNl.getLength(); i ++) {
-                Element attributeEl = (Element) attributesNl.item(i);
-                this.attributes.add(new NameValuePair(attributeEl.getAttribute("name"), (String) xpath.evaluate(".", attributeEl, XPathConstants.STRING)));
+        this.fieldType = fieldElement.getAttribute("fieldType").intern();
+        
+        CompactBuilder builder = new CompactBuilder();
+        for (Element attributeEl : DocumentHelper.getChildElements(fieldElement, XPathHelper.M_URI, "attribute")) {
+            builder.addAttribute(attributeEl.getAttribute("name"), attributeEl.getTextContent());
+        }
+        
+        for (Element valuesEl : DocumentHelper.getChildElements(fieldElement, XPathHelper.M_URI, "values")) {
+            for (Element valueEl : DocumentHelper.getChildElements(valuesEl, XPathHelper.M_URI, "value")) {
+                builder.startValue();
+                for (Element partEl : DocumentHelper.getChildElements(valueEl, XPathHelper.M_URI, "part")) {
+                    builder.addPart(partEl.getAttribute("property"), partEl.getTextContent());
+                }
             }
-            
-            NodeList valueNl = (NodeList) xpath.evaluate("m:values/m:value", fieldElement, XPathConstants.NODESET);
-            this.values = new ArrayList<List<NameValuePair>>();
-            for (int inputIndex = 0; inputIndex < valueNl.getLength(); inputIndex ++) {
-                List<NameValuePair> parts = new ArrayList<NameValuePair>();
-                NodeList partsNl = (NodeList) xpath.evaluate("m:part", valueNl.item(inputIndex), XPathConstants.NODESET);
-                for (int i = 0; i < partsNl.getLength(); i ++) {
-                    Element partEl = (Element) partsNl.item(i);
-                    parts.add(new NameValuePair(partEl.getAttribute("property"), (String) xpath.evaluate(".", partEl, XPathConstants.STRING)));
+        }
+        builder.build(this);
+    }
+    
+    /**
+     * Constructs a FieldData object from the field element at 
+     * which the given reader is positioned (as a START_ELEMENT)
+     * in a single pass, leaving the reader positioned at the end
+     * of that element.  Unrecognized elements are skipped.
+     */
+    public FieldData(XMLStreamReader reader) throws XMLStreamException, DataFormatException {
+        String fieldType = reader.getAttributeValue(null, "fieldType");
+        if (fieldType == null) {
+            throw new DataFormatException("Required attribute \"fieldType\" was not found!");
+        }
+        this.fieldType = fieldType.intern();
+        CompactBuilder builder = new CompactBuilder();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (isMetadataElement(reader, "attribute")) {
+                String name = reader.getAttributeValue(null, "name");
+                builder.addAttribute(name, reader.getElementText());
+            } else if (isMetadataElement(reader, "values")) {
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (isMetadataElement(reader, "value")) {
+                        builder.startValue();
+                        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                            if (isMetadataElement(reader, "part")) {
+                                String property = reader.getAttributeValue(null, "property");
+                                builder.addPart(property, reader.getElementText());
+                            } else {
+                                skipElement(reader);
+                            }
+                        }
+                    } else {
+                        skipElement(reader);
+                    }
                 }
-                this.values.add(parts);
+            } else {
+                skipElement(reader);
             }
-        } catch (XPathExpressionException ex) {
-            // This won't happen except in the even of
-            // a programming error since the xpath 
-            // expression isn't built from run-time data.
-            throw new RuntimeException(ex);
         }
+        builder.build(this);
     }
     
     /**
@@ -144,7 +254,7 @@ public class FieldData {
         Element fieldEl = doc.createElementNS(XPathHelper.M_URI, "m:field");
         fieldEl.setAttribute("fieldType", this.fieldType);
         
-        for (NameValuePair attribute : this.attributes) {
+        for (NameValuePair attribute : getAttributes()) {
             Element attributeEl = doc.createElementNS(XPathHelper.M_URI, "m:attribute");
             attributeEl.setAttribute("name", attribute.getName());
             attributeEl.appendChild(doc.createTextNode(attribute.getValue()));
@@ -152,7 +262,7 @@ public class FieldData {
         }
         
         Element valuesEl = doc.createElementNS(XPathHelper.M_URI, "m:values");
-        for (List<NameValuePair> parts : this.values) {
+        for (List<NameValuePair> parts : getParts()) {
             Element valueEl = doc.createElementNS(XPathHelper.M_URI, "m:value");
             for (NameValuePair part : parts) {
                 Element partEl = doc.createElementNS(XPathHelper.M_URI, "m:part");
@@ -171,6 +281,54 @@ public class FieldData {
         return fieldEl;
     }
     
+    /**
+     * Writes the same field element produced by toFieldEl() to
+     * the given XMLStreamWriter without building a DOM.  The
+     * "m" prefix must already be bound to the metadata namespace
+     * and nothing is written if the field would have no child
+     * nodes (the same condition under which ItemMetadata omits
+     * the element from its generated document).
+     */
+    public void writeFieldEl(XMLStreamWriter writer) throws XMLStreamException {
+        List<NameValuePair> attributes = getAttributes();
+        List<List<NameValuePair>> values = getParts();
+        boolean hasValues = false;
+        for (List<NameValuePair> parts : values) {
+            if (!parts.isEmpty()) {
+                hasValues = true;
+                break;
+            }
+        }
+        if (!hasValues && attributes.isEmpty()) {
+            return;
+        }
+        writer.writeStartElement("m", "field", XPathHelper.M_URI);
+        writer.writeAttribute("fieldType", this.fieldType);
+        for (NameValuePair attribute : attributes) {
+            writer.writeStartElement("m", "attribute", XPathHelper.M_URI);
+            writer.writeAttribute("name", attribute.getName());
+            writer.writeCharacters(attribute.getValue());
+            writer.writeEndElement();
+        }
+        if (hasValues) {
+            writer.writeStartElement("m", "values", XPathHelper.M_URI);
+            for (List<NameValuePair> parts : values) {
+                if (!parts.isEmpty()) {
+                    writer.writeStartElement("m", "value", XPathHelper.M_URI);
+                    for (NameValuePair part : parts) {
+                        writer.writeStartElement("m", "part", XPathHelper.M_URI);
+                        writer.writeAttribute("property", part.getName());
+                        writer.writeCharacters(part.getValue());
+                        writer.writeEndElement();
+                    }
+                    writer.writeEndElement();
+                }
+            }
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+    
     /**
      * Gets the field type.
      */
@@ -185,10 +343,16 @@ public class FieldData {
      * alternate channels.  For complex fields, this may 
      */
     public int getEnteredValueCount() {
+        if (this.values == null) {
+            return this.valueOffsets.length - 1;
+        }
         return values.size();
     }
     
     public List<List<NameValuePair>> getParts() {
+        if (this.values == null) {
+            return new ValuesView();
+        }
         return values;
     }
     
@@ -199,7 +363,7 @@ public class FieldData {
      * @return an unmodifiable List of the parts
      */
     public List<NameValuePair> getParts(int valueIndex) {
-        return values.get(valueIndex);
+        return getParts().get(valueIndex);
     }
 
     /**
@@ -208,6 +372,14 @@ public class FieldData {
      */
     public List<String> getPartValues(String partName) {
         List<String> partValues = new ArrayList<String>();
+        if (this.values == null) {
+            for (int i = 0; i < this.partNames.length; i ++) {
+                if (this.partNames[i].equals(partName)) {
+                    partValues.add(this.partValues[i]);
+                }
+            }
+            return partValues;
+        }
         for (List<NameValuePair> value : this.values) {
             for (NameValuePair part : value) { 
                 if (part.getName().equals(partName)) {
@@ -226,6 +398,9 @@ public class FieldData {
      * @return the attributes for this field
      */
     public List<NameValuePair> getAttributes() {
+        if (this.attributes == null) {
+            return new AttributesView();
+        }
         return this.attributes;
     }
     
@@ -233,6 +408,7 @@ public class FieldData {
      * Removes the value (all parts) at the given index.
      */
     public List<NameValuePair> removeValue(int index) {
+        expand();
         return this.values.remove(index);
     }
 
@@ -240,6 +416,7 @@ public class FieldData {
      * Adds the value to the beginning.
      */
     public void addValue(NameValuePair ...parts) {
+        expand();
         List<NameValuePair> newValue = new ArrayList<NameValuePair>();
         for (NameValuePair part : parts) {
             newValue.add(part);
@@ -248,19 +425,260 @@ public class FieldData {
     }
     
     public void addValues(List<List<NameValuePair>> values) {
+        expand();
         this.values.addAll(values);
     }
 
     public void setAttributes(List<NameValuePair> attributes) {
+        expand();
+        this.attributes = attributes;
+    }
+    
+    /**
+     * Converts this FieldData from the compact form into ordinary
+     * lists so that it may be modified.  This does nothing if it
+     * has already been expanded.
+     */
+    private void expand() {
+        if (this.values != null) {
+            return;
+        }
+        List<NameValuePair> attributes = new ArrayList<NameValuePair>(this.attributeNames.length);
+        for (int i = 0; i < this.attributeNames.length; i ++) {
+            attributes.add(new NameValuePair(this.attributeNames[i], this.attributeValues[i]));
+        }
+        List<List<NameValuePair>> values = new ArrayList<List<NameValuePair>>(this.valueOffsets.length - 1);
+        for (int v = 0; v < this.valueOffsets.length - 1; v ++) {
+            List<NameValuePair> parts = new ArrayList<NameValuePair>(this.valueOffsets[v + 1] - this.valueOffsets[v]);
+            for (int i = this.valueOffsets[v]; i < this.valueOffsets[v + 1]; i ++) {
+                parts.add(new NameValuePair(this.partNames[i], this.partValues[i]));
+            }
+            values.add(parts);
+        }
         this.attributes = attributes;
+        this.values = values;
+        this.attributeNames = null;
+        this.attributeValues = null;
+        this.valueOffsets = null;
+        this.partNames = null;
+        this.partValues = null;
+    }
+    
+    /**
+     * Accumulates attributes and values (in order) and then sets 
+     * them as the compact form of a FieldData.
+     */
+    private static class CompactBuilder {
+        
+        private List<String> attributeNames = new ArrayList<String>();
+        
+        private List<String> attributeValues = new ArrayList<String>();
+        
+        private List<Integer> valueOffsets = new ArrayList<Integer>();
+        
+        private List<String> partNames = new ArrayList<String>();
+        
+        private List<String> partValues = new ArrayList<String>();
+        
+        public void addAttribute(String name, String value) {
+            attributeNames.add(name.intern());
+            attributeValues.add(value);
+        }
+        
+        /**
+         * Starts a new value, to which subsequently added parts 
+         * belong.
+         */
+        public void startValue() {
+            valueOffsets.add(partNames.size());
+        }
+        
+        public void addPart(String name, String value) {
+            partNames.add(name.intern());
+            partValues.add(value);
+        }
+        
+        public void build(FieldData data) {
+            data.attributeNames = attributeNames.isEmpty() ? NO_STRINGS : attributeNames.toArray(new String[attributeNames.size()]);
+            data.attributeValues = attributeValues.isEmpty() ? NO_STRINGS : attributeValues.toArray(new String[attributeValues.size()]);
+            if (valueOffsets.isEmpty()) {
+                data.valueOffsets = NO_VALUES;
+            } else {
+                data.valueOffsets = new int[valueOffsets.size() + 1];
+                for (int i = 0; i < valueOffsets.size(); i ++) {
+                    data.valueOffsets[i] = valueOffsets.get(i);
+                }
+                data.valueOffsets[valueOffsets.size()] = partNames.size();
+            }
+            data.partNames = partNames.isEmpty() ? NO_STRINGS : partNames.toArray(new String[partNames.size()]);
+            data.partValues = partValues.isEmpty() ? NO_STRINGS : partValues.toArray(new String[partValues.size()]);
+        }
+    }
+    
+    /**
+     * A view of the attributes of a compact FieldData.  Any 
+     * modification expands the FieldData, after which this view
+     * delegates to its attribute list.
+     */
+    private class AttributesView extends AbstractList<NameValuePair> {
+
+        public NameValuePair get(int index) {
+            if (attributes != null) {
+                return attributes.get(index);
+            }
+            if (index < 0 || index >= attributeNames.length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return new NameValuePair(attributeNames[index], attributeValues[index]);
+        }
+
+        public int size() {
+            return attributes != null ? attributes.size() : attributeNames.length;
+        }
+        
+        public NameValuePair set(int index, NameValuePair attribute) {
+            expand();
+            return attributes.set(index, attribute);
+        }
+        
+        public void add(int index, NameValuePair attribute) {
+            expand();
+            attributes.add(index, attribute);
+        }
+        
+        public NameValuePair remove(int index) {
+            expand();
+            return attributes.remove(index);
+        }
+        
+        public void clear() {
+            expand();
+            attributes.clear();
+        }
+    }
+    
+    /**
+     * A view of the values of a compact FieldData.  Any 
+     * modification expands the FieldData, after which this view
+     * delegates to its value list.
+     */
+    private class ValuesView extends AbstractList<List<NameValuePair>> {
+
+        public List<NameValuePair> get(int index) {
+            if (values != null) {
+                return values.get(index);
+            }
+            if (index < 0 || index >= valueOffsets.length - 1) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return new PartsView(index);
+        }
+
+        public int size() {
+            return getEnteredValueCount();
+        }
+        
+        public List<NameValuePair> set(int index, List<NameValuePair> value) {
+            expand();
+            return values.set(index, value);
+        }
+        
+        public void add(int index, List<NameValuePair> value) {
+            expand();
+            values.add(index, value);
+        }
+        
+        public List<NameValuePair> remove(int index) {
+            expand();
+            return values.remove(index);
+        }
+        
+        public void clear() {
+            expand();
+            values.clear();
+        }
+    }
+    
+    /**
+     * A view of the parts of one value of a compact FieldData.  Any
+     * modification expands the FieldData, after which this view
+     * delegates to the list of parts for its value.
+     */
+    private class PartsView extends AbstractList<NameValuePair> {
+        
+        private int valueIndex;
+        
+        public PartsView(int valueIndex) {
+            this.valueIndex = valueIndex;
+        }
+
+        public NameValuePair get(int index) {
+            if (values != null) {
+                return values.get(valueIndex).get(index);
+            }
+            int offset = valueOffsets[valueIndex];
+            if (index < 0 || offset + index >= valueOffsets[valueIndex + 1]) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return new NameValuePair(partNames[offset + index], partValues[offset + index]);
+        }
+
+        public int size() {
+            if (values != null) {
+                return values.get(valueIndex).size();
+            }
+            return valueOffsets[valueIndex + 1] - valueOffsets[valueIndex];
+        }
+        
+        public NameValuePair set(int index, NameValuePair part) {
+            expand();
+            return values.get(valueIndex).set(index, part);
+        }
+        
+        public void add(int index, NameValuePair part) {
+            expand();
+            values.get(valueIndex).add(index, part);
+        }
+        
+        public NameValuePair remove(int index) {
+            expand();
+            return values.get(valueIndex).remove(index);
+        }
+    }
+    
+    /**
+     * Determines whether the reader is positioned at an element
+     * in the metadata namespace with the given local name.
+     */
+    static boolean isMetadataElement(XMLStreamReader reader, String localName) {
+        return localName.equals(reader.getLocalName()) && XPathHelper.M_URI.equals(reader.getNamespaceURI());
+    }
+    
+    /**
+     * Skips the current element and its content, leaving the reader
+     * positioned at its end.
+     */
+    static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth ++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth --;
+            }
+        }
     }
     
     public boolean equals(FieldData o) {
-        return (o.fieldType.equals(fieldType) && o.attributes.equals(attributes) && o.values.equals(values));
+        if (this.values == null && o.values == null) {
+            return o.fieldType.equals(fieldType) && Arrays.equals(o.attributeNames, attributeNames) && Arrays.equals(o.attributeValues, attributeValues) && Arrays.equals(o.valueOffsets, valueOffsets) && Arrays.equals(o.partNames, partNames) && Arrays.equals(o.partValues, partValues);
+        }
+        return (o.fieldType.equals(fieldType) && o.getAttributes().equals(getAttributes()) && o.getParts().equals(getParts()));
     }
     
     public int hashCode() {
-        return fieldType.hashCode() + attributes.hashCode() + values.hashCode();
+        return fieldType.hashCode() + getAttributes().hashCode() + getParts().hashCode();
     }
     
 }
@@ -43,17 +43,17 @@ import java.util.Map;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * An object representing all of the information that can be stored 
@@ -64,6 +64,18 @@ import org.w3c.dom.NodeList;
  */
 public class ItemMetadata {
 
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+    
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return factory;
+    }
+    
     /**
      * The global identifier for this item, typically a URI.
      */
@@ -78,6 +90,15 @@ public class ItemMetadata {
      * A map from the field names to the data for that field.
      */
     private Map<String, FieldData> fieldDataMap;
+    
+    /**
+     * A map from the field names to copies of the data for that 
+     * field as it was when this item was parsed or last marked
+     * clean, or null if neither has happened.  Neither this map 
+     * nor the FieldData objects in it are ever modified, so it may
+     * be shared between copies of this object.
+     */
+    private Map<String, FieldData> cleanFieldDataMap;
 
     protected ItemMetadata() {
         // does nothing... subclass must call parseInputStream 
@@ -90,6 +111,21 @@ public class ItemMetadata {
         this.fieldDataMap = new HashMap<String, FieldData>();
     }
     
+    /**
+     * Constructs an ItemMetadata that is a deep copy of the given
+     * ItemMetadata, so that changes to one are never reflected in
+     * the other.
+     */
+    public ItemMetadata(ItemMetadata original) {
+        this.id = original.id;
+        this.collectionId = original.collectionId;
+        this.fieldDataMap = new HashMap<String, FieldData>();
+        for (Map.Entry<String, FieldData> entry : original.fieldDataMap.entrySet()) {
+            this.fieldDataMap.put(entry.getKey(), new FieldData(entry.getValue()));
+        }
+        this.cleanFieldDataMap = original.cleanFieldDataMap;
+    }
+    
     /**
      * Constructs an ItemMetadata from a InputStream of the
      * XML representation of the metadata.  This implementation
@@ -106,8 +142,51 @@ public class ItemMetadata {
      * once and only during the constructor)
      */
     public void parseInputStream(InputStream xmlInputStream) throws IOException, DataFormatException {
-        Document metadataDoc = DocumentHelper.getInstance().parseAndValidateDocument(xmlInputStream);
-        parseDOMNode(metadataDoc);
+        parseInputStream(xmlInputStream, true);
+    }
+    
+    /**
+     * Constructs an ItemMetadata from a InputStream of the
+     * XML representation of the metadata, optionally skipping
+     * schema validation.  Validation should only be skipped for
+     * XML that was written by this class (ie, when reading back
+     * stored records) because invalid XML may be parsed into an
+     * incomplete or inconsistent object.  Unvalidated XML is 
+     * read in a single streaming pass without building a DOM.
+     * In either case the stream is closed before this method 
+     * returns, even though the streaming parser stops reading at
+     * the end of the root element; callers that pass a stream 
+     * whose HTTP connection is released on close (like those from
+     * FedoraRestApiWrapper.getDatastream()) rely on this.
+     * @param xmlInputStream a stream to access the XML serialization
+     * of ItemMetadata.
+     * @param validate true if the XML should be validated against
+     * the metadata schema
+     * @throws IOException if an error occurs while reading the
+     * stream.
+     * @throws DataFormatException if any error occurs while parsing
+     * or validating the XML
+     * @throws IllegalStateException if the identifier has already
+     * been set for this item.
+     */
+    public void parseInputStream(InputStream xmlInputStream, boolean validate) throws IOException, DataFormatException {
+        if (validate) {
+            parseDOMNode(DocumentHelper.getInstance().parseAndValidateDocument(xmlInputStream, XPathHelper.M_URI));
+        } else {
+            try {
+                XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(xmlInputStream);
+                try {
+                    parseXMLStreamReader(reader);
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException ex) {
+                throw new DataFormatException(ex);
+            } finally {
+                // XMLStreamReader.close() doesn't close the underlying stream
+                xmlInputStream.close();
+            }
+        }
     }
     
     /**
@@ -120,42 +199,99 @@ public class ItemMetadata {
             throw new IllegalStateException("parseInputStream() may only be called once!");
         }
         
-        try {
-            // Parse out the fieldIdentifier
-            XPath xpath = XPathHelper.getInstance().getXPath();
-            XPathExpression idExpression = xpath.compile("m:itemMetadata/m:id");
-            if ((Boolean) idExpression.evaluate(node, XPathConstants.BOOLEAN)) {
-                this.id = (String) idExpression.evaluate(node, XPathConstants.STRING);
-            } else {
-                throw new DataFormatException("Required field \"id\" was not found!");
-            }
-            
-            // Parse out all collection identifiers
-            XPathExpression collectionExpression = xpath.compile("m:itemMetadata/m:collectionId");
-            if ((Boolean) collectionExpression.evaluate(node, XPathConstants.BOOLEAN)) {
-                this.collectionId = (String) collectionExpression.evaluate(node, XPathConstants.STRING);
+        Element rootEl = DocumentHelper.getChildElement(node, XPathHelper.M_URI, "itemMetadata");
+        
+        // Parse out the fieldIdentifier
+        Element idEl = (rootEl == null ? null : DocumentHelper.getChildElement(rootEl, XPathHelper.M_URI, "id"));
+        if (idEl != null) {
+            this.id = idEl.getTextContent();
+        } else {
+            throw new DataFormatException("Required field \"id\" was not found!");
+        }
+        
+        // Parse out all collection identifiers
+        Element collectionIdEl = DocumentHelper.getChildElement(rootEl, XPathHelper.M_URI, "collectionId");
+        if (collectionIdEl != null) {
+            this.collectionId = collectionIdEl.getTextContent();
+        } else {
+            throw new DataFormatException("Required field \"collectionId\" was not found!");
+        }
+        
+        // Parse each Field
+        this.fieldDataMap = new HashMap<String, FieldData>();
+        for (Element fieldEl : DocumentHelper.getChildElements(rootEl, XPathHelper.M_URI, "field")) {
+            FieldData data = new FieldData(fieldEl);
+            this.fieldDataMap.put(data.getFieldType(), data);
+        }
+        markClean();
+    }
+    
+    /**
+     * Parses the itemMetadata element at which the given reader is
+     * positioned (or which is the next element, if the reader is 
+     * positioned at the start of the document) in a single pass, 
+     * leaving the reader positioned at the end of that element.
+     * The XML is not validated, but a DataFormatException is thrown
+     * if the required fields are missing.
+     */
+    protected void parseXMLStreamReader(XMLStreamReader reader) throws XMLStreamException, DataFormatException {
+        if (this.id != null) {
+            throw new IllegalStateException("parseInputStream() may only be called once!");
+        }
+        
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            reader.next();
+        }
+        if (!FieldData.isMetadataElement(reader, "itemMetadata")) {
+            throw new DataFormatException("Unexpected root element, \"" + reader.getName() + "\"!");
+        }
+        
+        String id = null;
+        String collectionId = null;
+        Map<String, FieldData> fieldDataMap = new HashMap<String, FieldData>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (id == null && FieldData.isMetadataElement(reader, "id")) {
+                id = reader.getElementText();
+            } else if (collectionId == null && FieldData.isMetadataElement(reader, "collectionId")) {
+                collectionId = reader.getElementText();
+            } else if (FieldData.isMetadataElement(reader, "field")) {
+                FieldData data = new FieldData(reader);
+                fieldDataMap.put(data.getFieldType(), data);
             } else {
-                throw new DataFormatException("Required field \"collectionId\" was not found!");
+                FieldData.skipElement(reader);
             }
-            
-            // Parse each Field
-            NodeList fieldNl = (NodeList) xpath.evaluate("m:itemMetadata/m:field", node, XPathConstants.NODESET);
-            this.fieldDataMap = new HashMap<String, FieldData>();
-            for (int i = 0; i < fieldNl.getLength(); i ++) {
-                FieldData data = new FieldData((Element) fieldNl.item(i));
-                this.fieldDataMap.put(data.getFieldType(), data);
-            }
-            
-        } catch (XPathExpressionException ex) {
-            // This won't happen except in the even of
-            // a programming error since the xpath 
-            // expression isn't built from run-time data.
-            throw new AssertionError(ex);
         }
+        if (id == null) {
+            throw new DataFormatException("Required field \"id\" was not found!");
+        }
+        if (collectionId == null) {
+            throw new DataFormatException("Required field \"collectionId\" was not found!");
+        }
+        this.id = id;
+        this.collectionId = collectionId;
+        this.fieldDataMap = fieldDataMap;
+        markClean();
     }
     
-    public void writeOutXML(OutputStream os) throws ParserConfigurationException, IOException, TransformerException {
-        DocumentHelper.writeOutDocument(os, generateDocument());
+    /**
+     * Writes an XML document representing the metadata encapsulated
+     * in this class to the given stream (which is closed when the 
+     * document has been written).  The document is equivalent to
+     * that produced by generateDocument() but is streamed out 
+     * without building a DOM.
+     */
+    public void writeOutXML(OutputStream os) throws IOException {
+        try {
+            XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(os, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writeItemMetadataEl(writer, true);
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        } finally {
+            os.close();
+        }
     }
     
     /**
@@ -195,6 +331,51 @@ public class ItemMetadata {
         return doc;
     }
     
+    /**
+     * Writes an itemMetadata element equivalent to the document
+     * produced by generateDocument() to the given XMLStreamWriter.
+     * Unlike generateDocument() no DOM is built, so this method
+     * is suitable for serializing large numbers of records to a
+     * single stream.  The caller is responsible for starting and
+     * ending the document and, if this isn't the root element,
+     * for binding the "m" prefix on an enclosing element.
+     */
+    public void writeOutXML(XMLStreamWriter writer) throws XMLStreamException {
+        writeItemMetadataEl(writer, false);
+    }
+    
+    /**
+     * Writes the itemMetadata element, including the schemaLocation
+     * if this element is the root of a document.
+     */
+    private void writeItemMetadataEl(XMLStreamWriter writer, boolean root) throws XMLStreamException {
+        boolean bound = XPathHelper.M_URI.equals(writer.getNamespaceContext().getNamespaceURI("m"));
+        writer.writeStartElement("m", "itemMetadata", XPathHelper.M_URI);
+        if (!bound) {
+            writer.writeNamespace("m", XPathHelper.M_URI);
+            writer.setPrefix("m", XPathHelper.M_URI);
+        }
+        if (root) {
+            writer.writeNamespace("xsi", XPathHelper.XSI_URI);
+            writer.writeAttribute("xsi", XPathHelper.XSI_URI, "schemaLocation", XPathHelper.M_URI + " " + XPathHelper.M_XSD_LOC);
+        }
+        
+        writer.writeStartElement("m", "id", XPathHelper.M_URI);
+        writer.writeCharacters(this.id);
+        writer.writeEndElement();
+        
+        writer.writeStartElement("m", "collectionId", XPathHelper.M_URI);
+        writer.writeCharacters(this.collectionId);
+        writer.writeEndElement();
+        
+        List<String> fieldTypes = new ArrayList<String>(this.fieldDataMap.keySet());
+        Collections.sort(fieldTypes);
+        for (String fieldType : fieldTypes) {
+            this.fieldDataMap.get(fieldType).writeFieldEl(writer);
+        }
+        writer.writeEndElement();
+    }
+    
     /**
      * Gets the globally unique identifier for this item.
      */
@@ -246,4 +427,53 @@ public class ItemMetadata {
         return this.fieldDataMap.keySet();
     }
     
+    /**
+     * Records the current values of every field as the values 
+     * against which later changes are detected.  This is done 
+     * automatically when an item is parsed, and should be done
+     * by an ItemManager once the item has been saved.
+     */
+    public void markClean() {
+        Map<String, FieldData> clean = new HashMap<String, FieldData>();
+        for (Map.Entry<String, FieldData> entry : this.fieldDataMap.entrySet()) {
+            clean.put(entry.getKey(), new FieldData(entry.getValue()));
+        }
+        this.cleanFieldDataMap = clean;
+    }
+    
+    /**
+     * Determines whether any field has been added, changed or
+     * removed since this item was parsed or last marked clean.
+     * An item that has never been parsed or marked clean is 
+     * always considered to be modified.
+     */
+    public boolean isModified() {
+        if (this.cleanFieldDataMap == null) {
+            return true;
+        }
+        for (Map.Entry<String, FieldData> entry : this.fieldDataMap.entrySet()) {
+            if (isModified(this.cleanFieldDataMap.get(entry.getKey()), entry.getValue())) {
+                return true;
+            }
+        }
+        for (Map.Entry<String, FieldData> entry : this.cleanFieldDataMap.entrySet()) {
+            if (!this.fieldDataMap.containsKey(entry.getKey()) && !isEmpty(entry.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean isModified(FieldData clean, FieldData current) {
+        if (clean == null) {
+            return !isEmpty(current);
+        } else {
+            return !clean.equals(current);
+        }
+    }
+    
+    private static boolean isEmpty(FieldData data) {
+        return data.getAttributes().isEmpty() && data.getEnteredValueCount() == 0;
+    }
+    
 }
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Node;
+
+/**
+ * <p>
+ *   A utility class that caches compiled XSLT stylesheets and
+ *   provides reusable serializers for DOM nodes.
+ * </p>
+ * <p>
+ *   Stylesheets are compiled once into Templates (which are
+ *   thread-safe) and kept for as long as the application runs.  
+ *   Once a stylesheet has been cached longer than the revalidation
+ *   interval, the next request for it is made conditional on the
+ *   ETag and Last-Modified headers returned when it was fetched, 
+ *   so an unchanged stylesheet is neither downloaded nor compiled
+ *   again.  If revalidation fails, the cached Templates are used.
+ * </p>
+ * <p>
+ *   Serializers are Transformers, which aren't thread-safe, so 
+ *   each thread has its own.  This class is thread-safe.
+ * </p>
+ */
+public class TransformationHelper {
+
+    private static final Logger LOGGER = Logger.getLogger(TransformationHelper.class);
+    
+    /**
+     * The age (in milliseconds) after which a cached stylesheet is
+     * revalidated.
+     */
+    public static final long REVALIDATION_INTERVAL = 5 * 60 * 1000;
+    
+    private static final int CONNECT_TIMEOUT = 10000;
+    
+    private static final int READ_TIMEOUT = 30000;
+    
+    private static TransformationHelper INSTANCE;
+    
+    public static synchronized TransformationHelper getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new TransformationHelper();
+        }
+        return INSTANCE;
+    }
+    
+    /**
+     * A cached stylesheet.  An entry is created (empty) the first
+     * time a stylesheet is requested and is locked while it is
+     * being fetched so that concurrent requests for the same 
+     * stylesheet result in a single fetch.
+     */
+    private static class TemplatesEntry {
+        
+        private volatile Templates templates;
+        
+        private String etag;
+        
+        private String lastModified;
+        
+        private long lastModifiedTime;
+        
+        private volatile long validatedAt;
+        
+    }
+    
+    /**
+     * A mapping from stylesheet URL to the cached stylesheet.
+     */
+    private ConcurrentMap<String, TemplatesEntry> templatesMap;
+    
+    /**
+     * Serializers (one for each thread) that write indented XML.
+     */
+    private ThreadLocal<Transformer> indentingSerializer;
+    
+    /**
+     * Serializers (one for each thread) that write XML without
+     * adding any whitespace.
+     */
+    private ThreadLocal<Transformer> serializer;
+    
+    private TransformationHelper() {
+        templatesMap = new ConcurrentHashMap<String, TemplatesEntry>();
+        indentingSerializer = new ThreadLocal<Transformer>() {
+            protected Transformer initialValue() {
+                return createSerializer(true);
+            }
+        };
+        serializer = new ThreadLocal<Transformer>() {
+            protected Transformer initialValue() {
+                return createSerializer(false);
+            }
+        };
+    }
+    
+    private static Transformer createSerializer(boolean indent) {
+        try {
+            Transformer t = TransformerFactory.newInstance().newTransformer();
+            t.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+            t.setOutputProperty(OutputKeys.METHOD, "xml");
+            if (indent) {
+                t.setOutputProperty(OutputKeys.INDENT, "yes");
+            }
+            return t;
+        } catch (TransformerConfigurationException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Serializes the given node as UTF-8 XML to the given result
+     * using a serializer belonging to the current thread.
+     * @param indent true if the output should be indented
+     */
+    public void serialize(Node node, Result result, boolean indent) throws TransformerException {
+        (indent ? indentingSerializer : serializer).get().transform(new DOMSource(node), result);
+    }
+    
+    /**
+     * Gets the compiled stylesheet at the given URL, fetching and
+     * compiling it only if it isn't cached or has changed since it
+     * was cached.
+     * @throws IOException if the stylesheet isn't cached and can't
+     * be fetched
+     * @throws TransformerException if the stylesheet can't be 
+     * compiled
+     */
+    public Templates getTemplates(String xsltUrl) throws IOException, TransformerException {
+        TemplatesEntry entry = templatesMap.get(xsltUrl);
+        if (entry == null) {
+            templatesMap.putIfAbsent(xsltUrl, new TemplatesEntry());
+            entry = templatesMap.get(xsltUrl);
+        }
+        if (entry.templates != null && System.currentTimeMillis() - entry.validatedAt < REVALIDATION_INTERVAL) {
+            return entry.templates;
+        }
+        synchronized (entry) {
+            // another thread may have (re)loaded it while this one waited
+            if (entry.templates != null && System.currentTimeMillis() - entry.validatedAt < REVALIDATION_INTERVAL) {
+                return entry.templates;
+            }
+            try {
+                load(xsltUrl, entry);
+            } catch (IOException ex) {
+                if (entry.templates == null) {
+                    throw ex;
+                }
+                LOGGER.warn("Unable to revalidate " + xsltUrl + ", using the cached stylesheet.", ex);
+                entry.validatedAt = System.currentTimeMillis();
+            }
+            return entry.templates;
+        }
+    }
+    
+    /**
+     * Removes every cached stylesheet.
+     */
+    public void clearCache() {
+        templatesMap.clear();
+    }
+    
+    /**
+     * Fetches the stylesheet (conditionally, if it has already been
+     * compiled) and compiles it if it has changed.  Must be called
+     * while holding the lock on the entry.
+     */
+    private void load(String xsltUrl, TemplatesEntry entry) throws IOException, TransformerException {
+        URLConnection conn = new URL(xsltUrl).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        if (entry.templates != null) {
+            if (conn instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) conn;
+                if (entry.etag != null) {
+                    http.setRequestProperty("If-None-Match", entry.etag);
+                }
+                if (entry.lastModified != null) {
+                    http.setRequestProperty("If-Modified-Since", entry.lastModified);
+                }
+                if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    http.disconnect();
+                    entry.validatedAt = System.currentTimeMillis();
+                    return;
+                }
+            } else if (conn.getLastModified() != 0 && conn.getLastModified() == entry.lastModifiedTime) {
+                conn.getInputStream().close();
+                entry.validatedAt = System.currentTimeMillis();
+                return;
+            }
+        }
+        if (conn instanceof HttpURLConnection) {
+            int status = ((HttpURLConnection) conn).getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                ((HttpURLConnection) conn).disconnect();
+                throw new IOException("Unable to fetch " + xsltUrl + " (" + status + ")");
+            }
+        }
+        InputStream is = conn.getInputStream();
+        try {
+            long start = System.currentTimeMillis();
+            // the system id allows relative imports and includes to be resolved
+            Templates templates = TransformerFactory.newInstance().newTemplates(new StreamSource(is, xsltUrl));
+            LOGGER.info("Compiled " + xsltUrl + " in " + (System.currentTimeMillis() - start) + "ms.");
+            entry.etag = conn.getHeaderField("ETag");
+            entry.lastModified = conn.getHeaderField("Last-Modified");
+            entry.lastModifiedTime = conn.getLastModified();
+            entry.templates = templates;
+            entry.validatedAt = System.currentTimeMillis();
+        } finally {
+            is.close();
+        }
+    }
+    
+}
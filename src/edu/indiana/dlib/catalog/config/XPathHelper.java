@@ -88,7 +88,7 @@ public class XPathHelper {
     /**
      * Gets the instance of this XPathHelper.
      */
-    public static XPathHelper getInstance() {
+    public static synchronized XPathHelper getInstance() {
         if (INSTANCE == null) {
             INSTANCE = new XPathHelper();
         }
@@ -96,9 +96,10 @@ public class XPathHelper {
     }
 
     /**
-     * An instantiated and configured XPath instance. 
+     * Instantiated and configured XPath instances, one for each
+     * thread, because XPath objects are not thread-safe. 
      */
-    private XPath xpath;
+    private ThreadLocal<XPath> xpath;
 
     /**
      * A NamespaceContext with all the relevant namespaces configured.
@@ -112,12 +113,20 @@ public class XPathHelper {
      */
     private XPathHelper() {
         this.nsc = new EmbeddedNamespaceContext();
-        this.xpath = XPathFactory.newInstance().newXPath();
-        this.xpath.setNamespaceContext(this.nsc);
+        this.xpath = new ThreadLocal<XPath>() {
+            protected XPath initialValue() {
+                XPath x = XPathFactory.newInstance().newXPath();
+                x.setNamespaceContext(nsc);
+                return x;
+            }
+        };
     }
     
+    /**
+     * Gets the XPath instance for the current thread.
+     */
     public XPath getXPath() {
-        return this.xpath;
+        return this.xpath.get();
     }
     
     private static class EmbeddedNamespaceContext implements NamespaceContext {
@@ -34,12 +34,14 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
 
-import org.xml.sax.SAXException;
+import org.apache.log4j.Logger;
 
 import edu.indiana.dlib.catalog.config.DataFormatException;
 import edu.indiana.dlib.catalog.config.DataView;
@@ -61,68 +63,218 @@ import edu.indiana.dlib.catalog.config.impl.fedora.DatastreamProfile;
  */
 public class DLPFedoraItem implements Item {
     
+    private static final Logger LOGGER = Logger.getLogger(DLPFedoraItem.class);
+    
     private ItemMetadata metadata;
 
     private List<NameValuePair> controlFields;
     
-    private List<DataView> dataViews;
-    
-    private DataView preview;
+    /**
+     * The data views, which aren't determined until they're first
+     * needed.  Copies of this item share this object so that the
+     * views are determined at most once.
+     */
+    private LazyDataViews views;
     
-    public DLPFedoraItem(FedoraRestApiWrapper fedora, String id, String metadataDatastreamId) throws IOException, DataFormatException, FedoraException, XPathExpressionException, SAXException, ParserConfigurationException {
-        // determine the pid
-        String pid = null;
-        List<String> pids = fedora.dcIdentifierLookup(id);
-        if (pids.size() != 1) {
-            throw new RuntimeException(pids.size() + " items found with the \"unique\" identifier, \"" + id + "\"!");
-        } else {
-            pid = pids.get(0);
-        }
-        
+    /**
+     * Fetches the item with the given id from fedora.
+     * @param fedora the fedora client
+     * @param id the identifier of the item
+     * @param pid the pid of the fedora object whose dc.identifier
+     * is the given id
+     * @param metadataDatastreamId the datastream containing the 
+     * item metadata
+     */
+    public DLPFedoraItem(FedoraRestApiWrapper fedora, String id, String pid, String metadataDatastreamId) throws IOException, DataFormatException, FedoraException {
         // parse the metadata
-        metadata = new DefaultItemMetadata(fedora.getDatastream(pid, metadataDatastreamId));
+        metadata = new DefaultItemMetadata(fedora.getDatastream(pid, metadataDatastreamId), false);
         if (!metadata.getId().equals(id)) {
             throw new RuntimeException("The item identified by \"" + id + "\" improperly claims to be \"" + metadata.getId() + "\"! (pid=" + pid + ")");
         }
         String metadataModificationDateStr = fedora.getDatastreamProperty(pid, metadataDatastreamId, DatastreamProfile.DatastreamProperty.DS_CREATE_DATE);
         
-        // determine the data views
-        // TODO: a more robust implementation would not assume datastream names
-        // or content types... this quick and dirty implementation only works
-        // for DLP images.
-        this.dataViews = new ArrayList<DataView>();
-        List<String> pidsThatCouldBeViews = new ArrayList<String>();
-        pidsThatCouldBeViews.add(pid);
-        pidsThatCouldBeViews.addAll(fedora.getRelatedPids(pid, "info:fedora/fedora-system:def/relations-external#hasMetadata"));
-        for (String viewPid : pidsThatCouldBeViews) {
-            List<String> dsIds = fedora.listDatastreams(viewPid);
+        // defer determining the data views until they're needed
+        this.views = new LazyDataViews(fedora, pid);
+        
+        this.controlFields = new ArrayList<NameValuePair>(2);
+        this.controlFields.add(new NameValuePair("pid", pid));
+        this.controlFields.add(new NameValuePair("lastModified", metadataModificationDateStr));
+    }
+    
+    /**
+     * Creates a copy of the given item whose metadata may be 
+     * modified without affecting the original.
+     */
+    DLPFedoraItem(DLPFedoraItem original) {
+        this.metadata = new ItemMetadata(original.metadata);
+        this.views = original.views;
+        this.controlFields = new ArrayList<NameValuePair>(original.controlFields);
+    }
+    
+    /**
+     * Determines the data views for the object with the given pid
+     * (and any objects that declare themselves to be metadata for it)
+     * and adds them to the provided list.  The datastreams of all of
+     * those objects are listed with a single resource index query
+     * unless the resource index is unavailable, in which case each
+     * object is queried individually.
+     * 
+     * TODO: a more robust implementation would not assume datastream names
+     * or content types... this quick and dirty implementation only works
+     * for DLP images.
+     * @param fedora the fedora client to use for the lookups
+     * @param pid the pid of the item
+     * @param dataViews a list to which all discovered views are added
+     * @return the view that should be used as the preview or null if
+     * none of the discovered views is suitable
+     */
+    static DataView discoverDataViews(FedoraRestApiWrapper fedora, String pid, List<DataView> dataViews) throws FedoraException, IOException {
+        Map<String, List<String>> viewPidToDsIds = null;
+        try {
+            viewPidToDsIds = fedora.listDatastreamsWithMetadataObjects(Collections.singleton(pid)).get(pid);
+        } catch (FedoraException ex) {
+            LOGGER.warn("Unable to list datastreams for " + pid + " using the resource index, querying each object instead.", ex);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to list datastreams for " + pid + " using the resource index, querying each object instead.", ex);
+        }
+        if (viewPidToDsIds == null || viewPidToDsIds.get(pid).isEmpty()) {
+            // the resource index is unavailable or hasn't yet 
+            // indexed this object
+            viewPidToDsIds = new LinkedHashMap<String, List<String>>();
+            viewPidToDsIds.put(pid, fedora.listDatastreams(pid));
+            for (String relatedPid : fedora.getRelatedPids(pid, "info:fedora/fedora-system:def/relations-external#hasMetadata")) {
+                viewPidToDsIds.put(relatedPid, fedora.listDatastreams(relatedPid));
+            }
+        }
+        return createDataViews(fedora, pid, viewPidToDsIds, dataViews);
+    }
+    
+    /**
+     * Determines the previews for each of the objects with the given
+     * pids using a single resource index query.  Unlike 
+     * discoverDataViews() this method does not fall back to querying
+     * the objects individually.
+     * @return a map from pid to preview, with no entry for pids that
+     * have no suitable preview
+     * @throws FedoraException if the resource index is unavailable
+     */
+    static Map<String, DataView> discoverPreviews(FedoraRestApiWrapper fedora, Collection<String> pids) throws FedoraException, IOException {
+        Map<String, DataView> previews = new HashMap<String, DataView>();
+        for (Map.Entry<String, Map<String, List<String>>> entry : fedora.listDatastreamsWithMetadataObjects(pids).entrySet()) {
+            DataView preview = createDataViews(fedora, entry.getKey(), entry.getValue(), new ArrayList<DataView>());
+            if (preview != null) {
+                previews.put(entry.getKey(), preview);
+            }
+        }
+        return previews;
+    }
+    
+    /**
+     * Creates the data views for the datastreams of the item with the
+     * given pid and its metadata objects.
+     * @param viewPidToDsIds a map from the pid of the item and of each 
+     * of its metadata objects to the ids of that object's datastreams
+     * @param dataViews a list to which all views are added
+     * @return the view that should be used as the preview or null if
+     * none of the views is suitable
+     */
+    private static DataView createDataViews(FedoraRestApiWrapper fedora, String pid, Map<String, List<String>> viewPidToDsIds, List<DataView> dataViews) throws IOException {
+        DataView preview = null;
+        for (Map.Entry<String, List<String>> view : viewPidToDsIds.entrySet()) {
+            String viewPid = view.getKey();
+            List<String> dsIds = view.getValue();
             boolean blocked = dsIds.contains("POLICY");
             for (String dsId : dsIds) {
                 URL url = new URL((blocked ? getProxyUrl(fedora, viewPid, dsId) : fedora.getServerUrl() + "/get/" + pid + "/" + dsId));
                 if (dsId.equals("THUMBNAIL")) {
                     DataView thumbView = new DefaultDataView(url, "image/jpeg", "thumbnail", false);
-                    this.dataViews.add(thumbView);
-                    this.preview = thumbView;
+                    dataViews.add(thumbView);
+                    preview = thumbView;
                 } else if (dsId.equals("SCREEN")) {
-                    this.dataViews.add(new DefaultDataView(url, "image/jpeg", "screen size image", false));
+                    dataViews.add(new DefaultDataView(url, "image/jpeg", "screen size image", false));
                 } else if (dsId.equals("LARGE")) {
-                    this.dataViews.add(new DefaultDataView(url, "image/jpeg", "large size image", false));
+                    dataViews.add(new DefaultDataView(url, "image/jpeg", "large size image", false));
                 } else if (dsId.equals("MASTER")) {
-                    this.dataViews.add(new DefaultDataView(url, null, "master image", false));
+                    dataViews.add(new DefaultDataView(url, null, "master image", false));
                 } else if (dsId.equals("IMAGE")) {
-                    DataView preview = new DefaultDataView(url, "image/jpeg", "submitted image", false);
-                    dataViews.add(preview);
-                    this.preview = preview;
+                    DataView imageView = new DefaultDataView(url, "image/jpeg", "submitted image", false);
+                    dataViews.add(imageView);
+                    preview = imageView;
                 }
             }
         }
+        return preview;
+    }
+    
+    /**
+     * Holds the data views for an item, which are discovered
+     * from fedora the first time they're requested.  If they 
+     * can't be discovered the error is logged and the item is
+     * treated as having no data views (and no preview) until
+     * another attempt is made after FAILURE_RETRY_INTERVAL.  This
+     * class is thread-safe.
+     */
+    private static class LazyDataViews {
         
-        this.controlFields = new ArrayList<NameValuePair>(2);
-        this.controlFields.add(new NameValuePair("pid", pid));
-        this.controlFields.add(new NameValuePair("lastModified", metadataModificationDateStr));
+        /**
+         * The number of milliseconds after a failure to discover
+         * the data views before another attempt is made.
+         */
+        private static final long FAILURE_RETRY_INTERVAL = 60 * 1000;
+        
+        private FedoraRestApiWrapper fedora;
+        
+        private String pid;
+        
+        private List<DataView> dataViews;
+        
+        private DataView preview;
+        
+        /**
+         * The time of the last failed attempt to discover the data
+         * views, or 0 if they were discovered.
+         */
+        private long failedAt;
+        
+        public LazyDataViews(FedoraRestApiWrapper fedora, String pid) {
+            this.fedora = fedora;
+            this.pid = pid;
+        }
+        
+        public synchronized List<DataView> getDataViews() {
+            load();
+            return this.dataViews;
+        }
+        
+        public synchronized DataView getPreview() {
+            load();
+            return this.preview;
+        }
+        
+        private void load() {
+            if (this.dataViews == null || (this.failedAt != 0 && System.currentTimeMillis() - this.failedAt > FAILURE_RETRY_INTERVAL)) {
+                List<DataView> views = new ArrayList<DataView>();
+                try {
+                    this.preview = discoverDataViews(fedora, pid, views);
+                    this.dataViews = Collections.unmodifiableList(views);
+                    this.failedAt = 0;
+                } catch (FedoraException ex) {
+                    failed(ex);
+                } catch (IOException ex) {
+                    failed(ex);
+                }
+            }
+        }
+        
+        private void failed(Exception ex) {
+            LOGGER.error("Unable to determine data views for " + pid + ", treating the item as having none.", ex);
+            this.preview = null;
+            this.dataViews = Collections.emptyList();
+            this.failedAt = System.currentTimeMillis();
+        }
     }
     
-    private String getProxyUrl(FedoraRestApiWrapper fedora, String pid, String dsId) {
+    private static String getProxyUrl(FedoraRestApiWrapper fedora, String pid, String dsId) {
         return fedora.getServerUrl().replaceAll("/fedora$", "/iudl-dissem/casproxy?pid="  + pid + "&dsname=" + dsId);
     }
     
@@ -160,12 +312,20 @@ public class DLPFedoraItem implements Item {
         return this.metadata;
     }
 
+    /**
+     * Gets the preview, determining the data views for this item
+     * if they haven't already been determined.
+     */
     public DataView getPreview() {
-        return this.preview;
+        return this.views.getPreview();
     }
 
+    /**
+     * Gets the data views, determining them if they haven't already
+     * been determined.
+     */
     public Collection<DataView> listDataViews() {
-        return this.dataViews;
+        return this.views.getDataViews();
     }
     
     public List<NameValuePair> getControlFields() {
@@ -39,7 +39,16 @@ import edu.indiana.dlib.catalog.config.ItemMetadata;
 public class DefaultItemMetadata extends ItemMetadata {
 
     public DefaultItemMetadata(InputStream is) throws IOException, DataFormatException {
+        this(is, true);
+    }
+    
+    /**
+     * Parses the ItemMetadata from the given stream, validating 
+     * it only if requested.  Stored records written by this 
+     * application may safely skip validation.
+     */
+    public DefaultItemMetadata(InputStream is, boolean validate) throws IOException, DataFormatException {
         super();
-        super.parseInputStream(is);
+        super.parseInputStream(is, validate);
     }    
 }
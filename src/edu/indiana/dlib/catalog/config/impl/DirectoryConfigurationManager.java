@@ -32,12 +32,24 @@ package edu.indiana.dlib.catalog.config.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -46,36 +58,69 @@ import edu.indiana.dlib.catalog.config.ConfigurationManager;
 import edu.indiana.dlib.catalog.config.DataFormatException;
 
 /**
- * A ConfigurationManager implementation that exposes configurations
- * based on the presence of parsable configuration XML files in
- * a known directory on the local file system.
+ * <p>
+ *   A ConfigurationManager implementation that exposes configurations
+ *   based on the presence of parsable configuration XML files in
+ *   a known directory on the local file system.
+ * </p>
+ * <p>
+ *   Configurations are served from an immutable snapshot, so lookups
+ *   are simple map reads that never touch the file system.  A 
+ *   background thread watches both directories and, when files are
+ *   created, modified or deleted, reparses only those files (and 
+ *   remerges only the configurations whose definitions changed) 
+ *   before publishing a new snapshot.  Because change notification
+ *   isn't reliable on every file system, the directories are also
+ *   rescanned (comparing modification dates) at a fixed interval.
+ *   The background thread is stopped by destroy(), which should be
+ *   invoked when the application shuts down (for instance as the
+ *   spring "destroy-method").
+ * </p>
  */
 public class DirectoryConfigurationManager implements ConfigurationManager {
 
     private Logger LOGGER = Logger.getLogger(DirectoryConfigurationManager.class); 
     
     /**
-     * The directory containing the configuration files.  Methods
-     * that read from this directory, to ensure thread-safety
-     * and efficiency, should synchronize on this object.
+     * The default number of milliseconds between full rescans of
+     * the directories.
+     */
+    public static final long DEFAULT_RESCAN_INTERVAL = 300000;
+    
+    /**
+     * The number of milliseconds to wait after a change is reported
+     * for further changes before reloading, so that a file that is
+     * written in several steps is only parsed once.
+     */
+    private static final long SETTLE_TIME = 250;
+    
+    /**
+     * The directory containing the configuration files.
      */
     private File configDir;
     
     private File definitionDir;
     
-    private List<FileCollectionConfiguration> configList;
+    /**
+     * The current snapshot.  Snapshots are never modified once 
+     * published.
+     */
+    private volatile Snapshot snapshot;
     
-    private Map<String, FileCollectionConfiguration> idToConfigMap;
+    /**
+     * A map with the modification date of each file that failed to 
+     * load.  This is tracked to prevent the resource-intensive 
+     * process of reloading a configuration that is invalid.  Only
+     * accessed within reload().
+     */
+    private Map<File, Long> loadErrorMap;
     
-    private Map<String, FileFieldDefinitions> idToDefinitionsMap;
+    private WatchService watchService;
     
     /**
-     * A map with the time the last failed attempt to load a file
-     * was completed.  This is tracked to prevent the resource-
-     * intensive process of reloading a configuration that is
-     * invalid.
+     * The thread that watches the directories for changes.
      */
-    private Map<File, Date> loadErrorMap;
+    private Thread watcher;
     
     /**
      * The principal consturctor that accepts file path Strings
@@ -91,6 +136,17 @@ public class DirectoryConfigurationManager implements ConfigurationManager {
      * XML files.
      */
     public DirectoryConfigurationManager(String configDir, String definitionDir) {
+        this(configDir, definitionDir, DEFAULT_RESCAN_INTERVAL);
+    }
+    
+    /**
+     * A constructor that also accepts the interval at which the 
+     * directories are fully rescanned.
+     * @param rescanInterval the number of milliseconds between full
+     * rescans of the directories (in addition to the reloads 
+     * triggered by change notifications)
+     */
+    public DirectoryConfigurationManager(String configDir, String definitionDir, final long rescanInterval) {
         String photocatHome = System.getenv("PHOTOCAT_HOME");
         if (photocatHome != null && !configDir.startsWith("/")) {
             File homeDir = new File(photocatHome);
@@ -106,123 +162,262 @@ public class DirectoryConfigurationManager implements ConfigurationManager {
             this.definitionDir = new File(definitionDir);
         }
         this.definitionDir.mkdir();
-        this.configList = new ArrayList<FileCollectionConfiguration>();
-        this.idToConfigMap = new HashMap<String, FileCollectionConfiguration>();
-        this.loadErrorMap = new HashMap<File, Date>();
-        this.idToDefinitionsMap = new HashMap<String, FileFieldDefinitions>();
+        this.loadErrorMap = new HashMap<File, Long>();
+        this.snapshot = new Snapshot();
+        
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            this.configDir.toPath().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            this.definitionDir.toPath().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to watch " + this.configDir + " and " + this.definitionDir + " for changes, they will only be rescanned every " + rescanInterval + "ms.", ex);
+            this.watchService = null;
+        }
+        
+        // load the configurations now, so that they're available
+        // as soon as the manager is
+        reload(null);
+        
+        this.watcher = new Thread(new Runnable() {
+            public void run() {
+                watch(rescanInterval);
+            }}, "configuration-directory-watcher");
+        this.watcher.setDaemon(true);
+        this.watcher.start();
     }
     
     /**
-     * Ensures that the latest version of the configuration files
-     * are represented in the map. 
+     * Stops watching the directories.  The configurations that
+     * were current are still served, but changes to the files are
+     * no longer noticed.
      */
-    private void refreshConfigurationList() {
-        synchronized (this.configDir) {
-            List<FileCollectionConfiguration> newConfigList = new ArrayList<FileCollectionConfiguration>();
-            
-            // load all changed definitions
-            Map<String, FileFieldDefinitions> newIdToDefinitionsMap = new HashMap<String, FileFieldDefinitions>();
-            for (File file : this.definitionDir.listFiles()) {
-                if (file.getName().endsWith(".xml")) {
-                    FileFieldDefinitions existingDefs = null;
-                    for (FileFieldDefinitions defs : this.idToDefinitionsMap.values()) {
-                        if (defs.getFile().equals(file)) {
-                            existingDefs = defs;
-                            break;
-                        }
+    public void destroy() {
+        this.watcher.interrupt();
+        if (this.watchService != null) {
+            try {
+                this.watchService.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to close the WatchService!", ex);
+            }
+        }
+    }
+    
+    /**
+     * Waits for changes to the directories (or for the rescan 
+     * interval to elapse) and reloads the affected files.  This
+     * method runs on the watcher thread until the WatchService is
+     * closed.
+     */
+    private void watch(long rescanInterval) {
+        long nextRescan = System.currentTimeMillis() + rescanInterval;
+        while (true) {
+            try {
+                Set<File> changedFiles = new HashSet<File>();
+                boolean rescan = false;
+                long wait = Math.max(nextRescan - System.currentTimeMillis(), 0);
+                if (this.watchService == null) {
+                    Thread.sleep(wait);
+                    rescan = true;
+                } else {
+                    WatchKey key = this.watchService.poll(wait, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        rescan = true;
                     }
-                    long modDate = file.lastModified();
-                    if (existingDefs == null || existingDefs.getLastModificationDate() < modDate) {
-                        try {
-                            FileFieldDefinitions def = new FileFieldDefinitions(file);
-                            newIdToDefinitionsMap.put(def.getId(), def);
-                            LOGGER.debug("Parsed definition file, \"" + def.getId() + "\".");
-                        } catch (IOException ex) {
-                            LOGGER.error("IOException for the definition file at \"" + file.getAbsolutePath() + "\" (retained prior configuration)!", ex);
-                        } catch (DataFormatException ex) {
-                            LOGGER.error("Data exception while parsing the definition file at \"" + file.getAbsolutePath() + "\"!", ex);
+                    while (key != null) {
+                        Path dir = (Path) key.watchable();
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                rescan = true;
+                            } else {
+                                changedFiles.add(new File(dir.toFile(), ((Path) event.context()).toString()));
+                            }
                         }
+                        key.reset();
+                        key = this.watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
                     }
                 }
+                if (rescan) {
+                    reload(null);
+                    nextRescan = System.currentTimeMillis() + rescanInterval;
+                } else {
+                    reload(changedFiles);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (ClosedWatchServiceException ex) {
+                return;
+            } catch (Throwable t) {
+                LOGGER.error("Error reloading configurations!", t);
             }
-            
-            Map<String, FileCollectionConfiguration> newIdToConfigMap = new HashMap<String, FileCollectionConfiguration>();
-            for (File file : configDir.listFiles()) {
-                if (file.getName().endsWith(".xml")) {
-                    FileCollectionConfiguration existingConfig = null;
-                    for (FileCollectionConfiguration config : this.configList) {
-                        if (config.getFile().equals(file)) {
-                            existingConfig = config;
-                            break;
-                        }
-                    }
-                    long modDate = file.lastModified();
-                    if (existingConfig == null || existingConfig.getLastModificationDate() < modDate) {
-                        if (this.loadErrorMap.containsKey(file) && this.loadErrorMap.get(file).after(new Date(modDate))) {
-                            // don't attempt to reload this configuration yet
-                            LOGGER.info("Skipping the reloading of \"" + file.getName() + "\" because it hasn't been modified since the last load error.");
-                            continue;
-                        }
-                        try {
-                            FileCollectionConfigurationData configData = new FileCollectionConfigurationData(file);
-                            if (!newIdToDefinitionsMap.containsKey(configData.getDefinitionId())) {
-                                LOGGER.error("No definition file found with id \"" + configData.getDefinitionId() + "\", cannot load configuration \"" + configData.getId() + "\".");
-                                continue;
-                            }
-                            FileCollectionConfiguration config = new FileCollectionConfiguration(configData, newIdToDefinitionsMap.get(configData.getDefinitionId()));
-                            if (newIdToConfigMap.containsKey(config.getCollectionMetadata().getId())) {
-                                LOGGER.error("Duplicate collection identifier, " + config.getCollectionMetadata().getId() + ", found in file \"" + file.getAbsolutePath() + "\", skipping configuration!");
-                            } else {
-                                newConfigList.add(config);
-                                newIdToConfigMap.put(config.getCollectionMetadata().getId(), config);
-                                this.loadErrorMap.remove(file);
-                            }
-                        } catch (DataFormatException ex) {
-                            this.loadErrorMap.put(file, new Date(modDate));
-                            if (existingConfig != null) {
-                                LOGGER.error("Data exception for the configuration file at \"" + file.getAbsolutePath() + "\" (retained prior configuration)!", ex);
-                                newConfigList.add(existingConfig);
-                                newIdToConfigMap.put(existingConfig.getCollectionMetadata().getId(), existingConfig);
-                            } else {
-                                LOGGER.error("Data exception while parsing the configuration file at \"" + file.getAbsolutePath() + "\"!", ex);
-                            }
-                        } catch (IOException ex) {
-                            if (existingConfig != null) {
-                                LOGGER.error("IOException for the configuration file at \"" + file.getAbsolutePath() + "\" (retained prior configuration)!", ex);
-                                newConfigList.add(existingConfig);
-                                newIdToConfigMap.put(existingConfig.getCollectionMetadata().getId(), existingConfig);
-                            } else {
-                                LOGGER.error("IOException while parsing the configuration file at \"" + file.getAbsolutePath() + "\"!", ex);
-                            }
+        }
+    }
     
-                        }
-                    } else {
-                        newConfigList.add(existingConfig);
-                        newIdToConfigMap.put(existingConfig.getCollectionMetadata().getId(), existingConfig);
+    /**
+     * Reparses the given configuration and definition files (if they
+     * were added or modified since last parsed or removes them if 
+     * they were deleted), remerges the configurations affected by 
+     * those changes and publishes a new snapshot if anything changed.
+     * @param files the files to check, or null to check every file
+     * in both directories
+     */
+    private synchronized void reload(Collection<File> files) {
+        long start = System.currentTimeMillis();
+        Snapshot previous = this.snapshot;
+        if (files == null) {
+            files = new HashSet<File>();
+            files.addAll(previous.fileToDefinitionsMap.keySet());
+            files.addAll(previous.fileToConfigDataMap.keySet());
+            for (File file : this.definitionDir.listFiles()) {
+                files.add(file);
+            }
+            for (File file : this.configDir.listFiles()) {
+                files.add(file);
+            }
+        }
+        
+        // reload changed definitions
+        Map<File, FileFieldDefinitions> fileToDefinitionsMap = new HashMap<File, FileFieldDefinitions>(previous.fileToDefinitionsMap);
+        Set<String> changedDefinitionIds = new HashSet<String>();
+        for (File file : files) {
+            if (!file.getParentFile().equals(this.definitionDir) || !file.getName().endsWith(".xml")) {
+                continue;
+            }
+            FileFieldDefinitions existingDefs = fileToDefinitionsMap.get(file);
+            if (!file.exists()) {
+                if (existingDefs != null) {
+                    fileToDefinitionsMap.remove(file);
+                    changedDefinitionIds.add(existingDefs.getId());
+                    LOGGER.info("Definition file \"" + file.getName() + "\" was removed.");
+                }
+            } else if (existingDefs == null || existingDefs.getLastModificationDate() < file.lastModified()) {
+                try {
+                    FileFieldDefinitions def = new FileFieldDefinitions(file);
+                    fileToDefinitionsMap.put(file, def);
+                    changedDefinitionIds.add(def.getId());
+                    if (existingDefs != null) {
+                        changedDefinitionIds.add(existingDefs.getId());
                     }
+                    LOGGER.debug("Parsed definition file, \"" + def.getId() + "\".");
+                } catch (IOException ex) {
+                    LOGGER.error("IOException for the definition file at \"" + file.getAbsolutePath() + "\" (retained prior configuration)!", ex);
+                } catch (DataFormatException ex) {
+                    LOGGER.error("Data exception while parsing the definition file at \"" + file.getAbsolutePath() + "\"!", ex);
+                }
+            }
+        }
+        
+        // reload changed configurations
+        Map<File, FileCollectionConfigurationData> fileToConfigDataMap = new HashMap<File, FileCollectionConfigurationData>(previous.fileToConfigDataMap);
+        Set<File> changedConfigFiles = new HashSet<File>();
+        for (File file : files) {
+            if (!file.getParentFile().equals(this.configDir) || !file.getName().endsWith(".xml")) {
+                continue;
+            }
+            FileCollectionConfigurationData existingConfig = fileToConfigDataMap.get(file);
+            if (!file.exists()) {
+                this.loadErrorMap.remove(file);
+                if (existingConfig != null) {
+                    fileToConfigDataMap.remove(file);
+                    changedConfigFiles.add(file);
+                    LOGGER.info("Configuration file \"" + file.getName() + "\" was removed.");
                 }
+                continue;
             }
-            synchronized (this) {
-                this.configList = newConfigList;
-                this.idToConfigMap = newIdToConfigMap;
-                this.idToDefinitionsMap = newIdToDefinitionsMap;
+            long modDate = file.lastModified();
+            if (existingConfig != null && existingConfig.getLastModificationDate() >= modDate) {
+                continue;
+            }
+            if (this.loadErrorMap.containsKey(file) && this.loadErrorMap.get(file) >= modDate) {
+                // don't attempt to reload this configuration yet
+                LOGGER.info("Skipping the reloading of \"" + file.getName() + "\" because it hasn't been modified since the last load error.");
+                continue;
+            }
+            try {
+                fileToConfigDataMap.put(file, new FileCollectionConfigurationData(file));
+                changedConfigFiles.add(file);
+                this.loadErrorMap.remove(file);
+            } catch (DataFormatException ex) {
+                this.loadErrorMap.put(file, modDate);
+                if (existingConfig != null) {
+                    LOGGER.error("Data exception for the configuration file at \"" + file.getAbsolutePath() + "\" (retained prior configuration)!", ex);
+                } else {
+                    LOGGER.error("Data exception while parsing the configuration file at \"" + file.getAbsolutePath() + "\"!", ex);
+                }
+            } catch (IOException ex) {
+                if (existingConfig != null) {
+                    LOGGER.error("IOException for the configuration file at \"" + file.getAbsolutePath() + "\" (retained prior configuration)!", ex);
+                } else {
+                    LOGGER.error("IOException while parsing the configuration file at \"" + file.getAbsolutePath() + "\"!", ex);
+                }
+            }
+        }
+        
+        if (changedDefinitionIds.isEmpty() && changedConfigFiles.isEmpty()) {
+            return;
+        }
+        
+        // merge the configurations that (or whose definitions) changed
+        Map<String, FileFieldDefinitions> idToDefinitionsMap = new HashMap<String, FileFieldDefinitions>();
+        for (FileFieldDefinitions def : fileToDefinitionsMap.values()) {
+            idToDefinitionsMap.put(def.getId(), def);
+        }
+        Snapshot next = new Snapshot();
+        for (Map.Entry<File, FileCollectionConfigurationData> entry : new TreeMap<File, FileCollectionConfigurationData>(fileToConfigDataMap).entrySet()) {
+            File file = entry.getKey();
+            FileCollectionConfigurationData configData = entry.getValue();
+            FileCollectionConfiguration config = previous.fileToConfigMap.get(file);
+            if (config == null || changedConfigFiles.contains(file) || changedDefinitionIds.contains(configData.getDefinitionId())) {
+                FileFieldDefinitions def = idToDefinitionsMap.get(configData.getDefinitionId());
+                if (def == null) {
+                    LOGGER.error("No definition file found with id \"" + configData.getDefinitionId() + "\", cannot load configuration \"" + configData.getId() + "\".");
+                    continue;
+                }
+                config = new FileCollectionConfiguration(configData, def);
+            }
+            if (next.idToConfigMap.containsKey(config.getCollectionMetadata().getId())) {
+                LOGGER.error("Duplicate collection identifier, " + config.getCollectionMetadata().getId() + ", found in file \"" + file.getAbsolutePath() + "\", skipping configuration!");
+            } else {
+                next.fileToConfigMap.put(file, config);
+                next.idToConfigMap.put(config.getCollectionMetadata().getId(), config);
             }
         }
+        next.fileToDefinitionsMap = fileToDefinitionsMap;
+        next.fileToConfigDataMap = fileToConfigDataMap;
+        next.configs = Collections.unmodifiableList(new ArrayList<CollectionConfiguration>(next.idToConfigMap.values()));
+        this.snapshot = next;
+        LOGGER.info("Loaded " + next.configs.size() + " collection configurations in " + (System.currentTimeMillis() - start) + "ms.");
     }
     
-    
-    public synchronized CollectionConfiguration getCollectionConfiguration(String id, boolean clearCache) {
-        this.refreshConfigurationList();
-        return this.idToConfigMap.get(id);
+    public CollectionConfiguration getCollectionConfiguration(String id, boolean clearCache) {
+        if (clearCache) {
+            reload(null);
+        }
+        return this.snapshot.idToConfigMap.get(id);
     }
 
-    public synchronized Collection<CollectionConfiguration> getCollectionConfigurations(boolean clearCache) {
-        this.refreshConfigurationList();
-        ArrayList<CollectionConfiguration> results = new ArrayList<CollectionConfiguration>();
-        for (FileCollectionConfiguration config : this.configList) {        
-            results.add(config);
+    public Collection<CollectionConfiguration> getCollectionConfigurations(boolean clearCache) {
+        if (clearCache) {
+            reload(null);
         }
-        return results;
+        return this.snapshot.configs;
+    }
+    
+    /**
+     * An immutable set of merged configurations along with the 
+     * parsed files from which they were built.
+     */
+    private static class Snapshot {
+        
+        private Map<String, FileCollectionConfiguration> idToConfigMap = new LinkedHashMap<String, FileCollectionConfiguration>();
+        
+        private List<CollectionConfiguration> configs = Collections.emptyList();
+        
+        private Map<File, FileCollectionConfiguration> fileToConfigMap = new HashMap<File, FileCollectionConfiguration>();
+        
+        private Map<File, FileCollectionConfigurationData> fileToConfigDataMap = new HashMap<File, FileCollectionConfigurationData>();
+        
+        private Map<File, FileFieldDefinitions> fileToDefinitionsMap = new HashMap<File, FileFieldDefinitions>();
+        
     }
 
 }
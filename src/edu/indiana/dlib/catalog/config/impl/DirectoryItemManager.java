@@ -37,10 +37,13 @@ import java.util.List;
 
 import edu.indiana.dlib.catalog.accesscontrol.UserInfo;
 import edu.indiana.dlib.catalog.config.CollectionConfiguration;
+import edu.indiana.dlib.catalog.config.ConfigurationManager;
+import edu.indiana.dlib.catalog.config.ConfigurationManagerException;
 import edu.indiana.dlib.catalog.config.DataView;
 import edu.indiana.dlib.catalog.config.Item;
 import edu.indiana.dlib.catalog.config.ItemManager;
 import edu.indiana.dlib.catalog.config.ItemMetadata;
+import edu.indiana.dlib.catalog.config.MetadataItemManager;
 import edu.indiana.dlib.catalog.config.OptimisticLockingException;
 import edu.indiana.dlib.catalog.config.RepositoryException;
 import edu.indiana.dlib.catalog.index.ItemMetadataLuceneIndex;
@@ -53,13 +56,26 @@ import edu.indiana.dlib.catalog.index.ItemMetadataLuceneIndex;
  * a directory called "views" that contains files treated as
  * views.
  */
-public class DirectoryItemManager implements ItemManager {
+public class DirectoryItemManager implements ItemManager, MetadataItemManager {
 
     private ItemMetadataLuceneIndex index;
     
     private File rootDirectory;
     
+    /**
+     * The ConfigurationManager used to look up collection
+     * configurations when indexing items so that search result
+     * summaries may be stored in the index.  This may be null,
+     * in which case no summaries are stored.
+     */
+    private ConfigurationManager configurationManager;
+    
     public DirectoryItemManager(String itemRepositoryDirName, String indexDirName) {
+        this(itemRepositoryDirName, indexDirName, null);
+    }
+    
+    public DirectoryItemManager(String itemRepositoryDirName, String indexDirName, ConfigurationManager configurationManager) {
+        this.configurationManager = configurationManager;
         String photocatHome = System.getenv("PHOTOCAT_HOME");
         if (photocatHome != null && !itemRepositoryDirName.startsWith("/")) {
             File homeDir = new File(photocatHome);
@@ -78,7 +94,8 @@ public class DirectoryItemManager implements ItemManager {
             rootDirectory.mkdirs();
             for (File itemDir : rootDirectory.listFiles()) {
                 if (itemDir.isDirectory()) {
-                    index.indexItem(fetchItem(getItemId(itemDir)));
+                    Item item = fetchItem(getItemId(itemDir));
+                    index.indexItem(item, getCollectionConfiguration(item));
                 }
             }
         } catch (Exception ex) {
@@ -92,11 +109,7 @@ public class DirectoryItemManager implements ItemManager {
             return null;
         }
         try {
-            File itemMetadataFile = new File(itemDir, "item-metadata.xml");
-            ItemMetadata im = new FileItemMetadata(itemMetadataFile);
-            if (!im.getId().equals(id)) {
-                throw new IllegalStateException("id mismatch in file " + itemMetadataFile.getAbsolutePath());
-            }
+            ItemMetadata im = fetchItemMetadata(id);
             
             List<DataView> views = new ArrayList<DataView>();
             for (File file : itemDir.listFiles()) {
@@ -110,6 +123,38 @@ public class DirectoryItemManager implements ItemManager {
         }
     }
     
+    public ItemMetadata fetchItemMetadata(String id) throws RepositoryException {
+        File itemDir = getItemDirectory(id);
+        if (!itemDir.exists()) {
+            return null;
+        }
+        try {
+            File itemMetadataFile = new File(itemDir, "item-metadata.xml");
+            ItemMetadata im = new FileItemMetadata(itemMetadataFile);
+            if (!im.getId().equals(id)) {
+                throw new IllegalStateException("id mismatch in file " + itemMetadataFile.getAbsolutePath());
+            }
+            return im;
+        } catch (Exception ex) {
+            throw new RepositoryException(ex);
+        }
+    }
+    
+    /**
+     * Gets the configuration for the collection to which the given
+     * item belongs, or null if it can't be determined.
+     */
+    private CollectionConfiguration getCollectionConfiguration(Item item) {
+        if (configurationManager == null) {
+            return null;
+        }
+        try {
+            return configurationManager.getCollectionConfiguration(item.getCollectionId(), false);
+        } catch (ConfigurationManagerException ex) {
+            return null;
+        }
+    }
+    
     private File getItemDirectory(String id) {
         return new File(rootDirectory, id);
     }
@@ -119,11 +164,16 @@ public class DirectoryItemManager implements ItemManager {
     }
 
     public void saveItemMetadata(Item item, UserInfo user) throws OptimisticLockingException, RepositoryException {
+        if (!item.getMetadata().isModified()) {
+            // nothing to write or reindex
+            return;
+        }
         try {
             FileOutputStream fos = new FileOutputStream(new File(getItemDirectory(item.getId()), "item-metadata.xml"));
             item.getMetadata().writeOutXML(fos);
             fos.close();
-            index.indexItem(item);
+            item.getMetadata().markClean();
+            index.indexItem(item, getCollectionConfiguration(item));
         } catch (Throwable t) {
             throw new RepositoryException(t);
         }
@@ -30,21 +30,28 @@
  */
 package edu.indiana.dlib.catalog.config.impl;
 
-import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
 
 import edu.indiana.dlib.catalog.config.CollectionConfiguration;
 import edu.indiana.dlib.catalog.config.CollectionConfigurationData;
 import edu.indiana.dlib.catalog.config.ConfigurationManager;
 import edu.indiana.dlib.catalog.config.ConfigurationManagerException;
 import edu.indiana.dlib.catalog.config.Definitions;
-import edu.indiana.dlib.catalog.config.impl.fedora.FedoraException;
-import edu.indiana.dlib.catalog.config.impl.fedora.FedoraRestApiWrapper;
 import edu.indiana.dlib.catalog.config.impl.fedora.DatastreamProfile;
+import edu.indiana.dlib.catalog.config.impl.fedora.FedoraRestApiWrapper;
 
 /**
  * <p>
@@ -57,9 +64,34 @@ import edu.indiana.dlib.catalog.config.impl.fedora.DatastreamProfile;
  *   an XML datastream with the collection configuration and field
  *   definition respectively.
  * </p>
+ * <p>
+ *   Configurations are served from an immutable snapshot in which
+ *   every configuration has already been merged with its 
+ *   definitions.  A background thread periodically polls the 
+ *   creation dates of the configuration and definition datastreams
+ *   and publishes a new snapshot when any has changed, so requests
+ *   never access fedora unless they explicitly ask to clear the
+ *   cache.  A changed configuration is therefore reflected within
+ *   the refresh interval.  If a refresh fails, the previous 
+ *   snapshot continues to be used.
+ * </p>
+ * <p>
+ *   The background thread is started when the configurations are
+ *   first requested and stopped by destroy(), which should be 
+ *   invoked when the application shuts down (for instance as the
+ *   spring "destroy-method").
+ * </p>
  */
 public class FedoraConfigurationManager implements ConfigurationManager {
 
+    public static final Logger LOGGER = Logger.getLogger(FedoraConfigurationManager.class);
+    
+    /**
+     * The default number of milliseconds between checks for 
+     * modified configurations or definitions.
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL = 60000;
+    
     /**
      * A fedora client that is used to access the Fedora
      * repository.  This instance should probably be read-only
@@ -91,21 +123,37 @@ public class FedoraConfigurationManager implements ConfigurationManager {
      */
     private String definitionDSID;
     
-    private Map<String, String> pidToFreshnessMap;
-    
-    private Map<String, CollectionConfigurationData> idToConfigDataMap;
+    /**
+     * The current snapshot, or null if none has been loaded yet.
+     * Snapshots are never modified once published.
+     */
+    private volatile Snapshot snapshot;
     
-    private Map<String, Definitions> idToDefinitionsMap;
+    /**
+     * The number of milliseconds between checks for modified 
+     * configurations or definitions.
+     */
+    private long refreshInterval;
     
-    private Map<String, String> pidToIdMap;
+    /**
+     * The thread that refreshes the snapshot, or null if it hasn't 
+     * been started.  Only accessed while synchronized on this 
+     * object.
+     */
+    private ScheduledExecutorService refreshExecutor;
     
-    private List<CollectionConfiguration> cache;
+    /**
+     * True once destroy() has been invoked.  Only accessed while 
+     * synchronized on this object.
+     */
+    private boolean destroyed;
     
     public static void main(String args[]) throws ConfigurationManagerException {
         FedoraConfigurationManager configManager = new FedoraConfigurationManager("fedoraAdmin", "adminD3v", "fedora-dev.dlib.indiana.edu", "fedora", 8080, "cmodel:photocat-config", "field-configuration.xml", "cmodel:photocat-definition", "field-definitions.xml");
         for (CollectionConfiguration config : configManager.getCollectionConfigurations(true)) {
             System.out.println(config.getId() + " - " + config.getCollectionMetadata().getDescription());
         }
+        configManager.destroy();
     }
     
     /**
@@ -128,108 +176,202 @@ public class FedoraConfigurationManager implements ConfigurationManager {
      *     model.
      */
     public FedoraConfigurationManager(String username, String password, String host, String contextName, Integer port, String confCM, String confDSID, String defCM, String defDSID) {
+        this(username, password, host, contextName, port, confCM, confDSID, defCM, defDSID, DEFAULT_REFRESH_INTERVAL);
+    }
+    
+    /**
+     * Creates a new FedoraConfigurationManager.
+     * @param refreshInterval the number of milliseconds between checks
+     *     for modified configurations or definitions
+     * @see #FedoraConfigurationManager(String, String, String, String, Integer, String, String, String, String)
+     */
+    public FedoraConfigurationManager(String username, String password, String host, String contextName, Integer port, String confCM, String confDSID, String defCM, String defDSID, long refreshInterval) {
         fedora = new FedoraRestApiWrapper(username, password, host, contextName, port, true);
         this.collectionConfigDSID = confDSID;
         this.collectionContentModel = confCM;
         this.definitionDSID = defDSID;
         this.definitionContentModel = defCM;
-        
-        this.pidToFreshnessMap = new HashMap<String, String>();
-        this.idToConfigDataMap = new HashMap<String, CollectionConfigurationData>();
-        this.idToDefinitionsMap = new HashMap<String, Definitions>();
-        this.pidToIdMap = new HashMap<String, String>();
+        this.refreshInterval = refreshInterval;
     }
     
-    public CollectionConfiguration getCollectionConfiguration(String id, boolean clearCache) throws ConfigurationManagerException {
-        long start = System.currentTimeMillis();
-        try {
-            // get current config data
-            CollectionConfigurationData cachedConfigData = this.idToConfigDataMap.get(id);
-            if (cachedConfigData == null || clearCache) {
-                String configPid = lookupObjectPid(id);
-                if (configPid == null) {
-                    return null;
-                }
-                String configModDate = fedora.getDatastreamProperty(configPid, this.collectionConfigDSID, DatastreamProfile.DatastreamProperty.DS_CREATE_DATE);
-                if (cachedConfigData == null || (this.pidToFreshnessMap.containsKey(configPid) && this.pidToFreshnessMap.get(configPid).compareTo(configModDate) <= 0)) {
-                    // reload from source because it was not cached or the cache is
-                    // out of date
-                    synchronized (this) {
-                        cachedConfigData = new DefaultCollectionConfigurationData(fedora.getDatastream(configPid, collectionConfigDSID));
-                        pidToFreshnessMap.put(configPid, configModDate);
-                        idToConfigDataMap.put(cachedConfigData.getId(), cachedConfigData);
-                    }
-                }
-            }
-            
-            // get the current backing definition
-            Definitions cachedDef = this.idToDefinitionsMap.get(cachedConfigData.getDefinitionId());
-            if (cachedDef == null || clearCache) {
-                String defPid = lookupObjectPid(cachedConfigData.getDefinitionId());
-                if (defPid == null) {
-                    return null;
-                }
-                String defModDate = fedora.getDatastreamProperty(defPid, this.definitionDSID, DatastreamProfile.DatastreamProperty.DS_CREATE_DATE);
-                //if (this.pidToFreshnessMap.containsKey(defPid)) {
-                //    System.out.println(cachedConfigData.getDefinitionId() + ": \"" + this.pidToFreshnessMap.get(defPid) + "\".compareTo("+  defModDate + ") = " +  this.pidToFreshnessMap.get(defPid).compareTo(defModDate));
-                //}
-                if (cachedDef == null || (this.pidToFreshnessMap.containsKey(defPid) && this.pidToFreshnessMap.get(defPid).compareTo(defModDate) <= 0)) {
-                    synchronized (this) {
-                        cachedDef = new DefaultFieldDefinitions(fedora.getDatastream(defPid, this.definitionDSID));
-                        pidToFreshnessMap.put(defPid, defModDate);
-                        idToDefinitionsMap.put(cachedDef.getId(), cachedDef);
-                    }
-                }
-            }
-            
-            return new DefaultCollectionConfiguration(cachedConfigData, cachedDef);
-        } catch (Throwable t) {
-            throw new ConfigurationManagerException(t);
-        } finally {
-            //ClickUtils.getLogService().debug("get collection configuration - " + (System.currentTimeMillis() - start) + " ms");
+    /**
+     * Stops the background refresh.  Configurations that are 
+     * requested after this method has been invoked are loaded from
+     * fedora on request.
+     */
+    public synchronized void destroy() {
+        this.destroyed = true;
+        if (this.refreshExecutor != null) {
+            this.refreshExecutor.shutdownNow();
+            this.refreshExecutor = null;
         }
     }
     
-    private synchronized String lookupObjectPid(String id) throws FedoraException, IOException {
-        for (Map.Entry<String, String> mapEntry : this.pidToIdMap.entrySet()) {
-            if (mapEntry.getValue().equals(id)) {
-                return mapEntry.getKey();
-            }
+    /**
+     * Starts the background refresh unless it has already been 
+     * started or this manager has been destroyed.
+     */
+    private synchronized void startRefreshing() {
+        if (this.refreshExecutor != null || this.destroyed) {
+            return;
         }
-        List<String> pids = fedora.dcIdentifierLookup(id);
-        if (pids.size() == 1) {
-            this.pidToIdMap.put(pids.get(0), id);
-            return pids.get(0);
-        } else {
-            return null;
+        this.refreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fedora-configuration-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }});
+        this.refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (Throwable t) {
+                    LOGGER.warn("Unable to refresh collection configurations, the previous configurations will continue to be used.", t);
+                }
+            }}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+    
+    public CollectionConfiguration getCollectionConfiguration(String id, boolean clearCache) throws ConfigurationManagerException {
+        return getSnapshot(clearCache).idToConfigMap.get(id);
+    }
+    
+    public Collection<CollectionConfiguration> getCollectionConfigurations(boolean clearCache) throws ConfigurationManagerException {
+        return getSnapshot(clearCache).configs;
+    }
+    
+    /**
+     * Gets the current snapshot, refreshing it first if requested
+     * or if no snapshot has yet been loaded.
+     */
+    private Snapshot getSnapshot(boolean clearCache) throws ConfigurationManagerException {
+        Snapshot current = this.snapshot;
+        if (current == null || clearCache) {
+            try {
+                current = refresh();
+            } catch (Throwable t) {
+                throw new ConfigurationManagerException(t);
+            }
+            startRefreshing();
         }
+        return current;
     }
     
-    public synchronized Collection<CollectionConfiguration> getCollectionConfigurations(boolean clearCache) throws ConfigurationManagerException {
+    /**
+     * Checks the creation date of every configuration and definition
+     * datastream and publishes a new snapshot in which those that
+     * have changed are reloaded (and remerged) and the rest are 
+     * carried over from the current snapshot.  Refreshes are 
+     * serialized so that a request that clears the cache while a
+     * background refresh is in progress simply waits for it.
+     * @return the snapshot that is current when the refresh completes
+     */
+    private synchronized Snapshot refresh() throws Exception {
         long start = System.currentTimeMillis();
-        if (clearCache) {
-            this.cache = null;
+        Snapshot previous = this.snapshot;
+        Snapshot next = new Snapshot();
+        boolean changed = (previous == null);
+        
+        // load the definitions
+        Map<String, Definitions> idToDefinitionsMap = new HashMap<String, Definitions>();
+        Map<String, Boolean> idToDefinitionsChangedMap = new HashMap<String, Boolean>();
+        for (Map.Entry<String, List<String>> entry : fedora.dcIdentifierLookupByContentModel(this.definitionContentModel).entrySet()) {
+            if (entry.getValue().size() != 1) {
+                LOGGER.warn(entry.getValue().size() + " objects have the definition identifier \"" + entry.getKey() + "\", skipping.");
+                continue;
+            }
+            String defPid = entry.getValue().get(0);
+            DatastreamProfile profile = fedora.getDatastreamProfile(defPid, this.definitionDSID);
+            if (profile == null) {
+                continue;
+            }
+            String modDate = profile.getProperty(DatastreamProfile.DatastreamProperty.DS_CREATE_DATE);
+            Definitions def = (previous != null && modDate.equals(previous.pidToModDateMap.get(defPid)) ? previous.pidToDefinitionsMap.get(defPid) : null);
+            if (def == null) {
+                InputStream is = fedora.getDatastream(defPid, this.definitionDSID);
+                try {
+                    def = new DefaultFieldDefinitions(is);
+                } finally {
+                    is.close();
+                }
+                changed = true;
+            }
+            next.pidToModDateMap.put(defPid, modDate);
+            next.pidToDefinitionsMap.put(defPid, def);
+            idToDefinitionsMap.put(def.getId(), def);
+            idToDefinitionsChangedMap.put(def.getId(), previous == null || def != previous.pidToDefinitionsMap.get(defPid));
         }
-        List<CollectionConfiguration> configs = null;
-        try {
-            if (this.cache != null) {
-                configs = this.cache;
-            } else {
-                configs = new ArrayList<CollectionConfiguration>();
-                for (String configPid : fedora.getRelatedPids(collectionContentModel, "fedora-model:hasModel")) {
-                    String id = this.lookupObjectPid(configPid);
-                    configs.add(this.getCollectionConfiguration(id, clearCache));
+        
+        // load the configurations and merge them with their definitions
+        for (Map.Entry<String, List<String>> entry : fedora.dcIdentifierLookupByContentModel(this.collectionContentModel).entrySet()) {
+            if (entry.getValue().size() != 1) {
+                LOGGER.warn(entry.getValue().size() + " objects have the collection identifier \"" + entry.getKey() + "\", skipping.");
+                continue;
+            }
+            String configPid = entry.getValue().get(0);
+            DatastreamProfile profile = fedora.getDatastreamProfile(configPid, this.collectionConfigDSID);
+            if (profile == null) {
+                continue;
+            }
+            String modDate = profile.getProperty(DatastreamProfile.DatastreamProperty.DS_CREATE_DATE);
+            boolean unmodified = (previous != null && modDate.equals(previous.pidToModDateMap.get(configPid)));
+            CollectionConfigurationData configData = (unmodified ? previous.pidToConfigDataMap.get(configPid) : null);
+            CollectionConfiguration config = (unmodified ? previous.pidToConfigMap.get(configPid) : null);
+            if (configData == null) {
+                InputStream is = fedora.getDatastream(configPid, this.collectionConfigDSID);
+                try {
+                    configData = new DefaultCollectionConfigurationData(is);
+                } finally {
+                    is.close();
                 }
             }
-        } catch (FedoraException ex) {
-            throw new ConfigurationManagerException(ex);
-        } catch (IOException ex) {
-            throw new ConfigurationManagerException(ex);
-        } finally {
-            //ClickUtils.getLogService().debug("get collection configurations - " + (System.currentTimeMillis() - start) + " ms");
+            Definitions def = idToDefinitionsMap.get(configData.getDefinitionId());
+            if (def == null) {
+                LOGGER.warn("No definitions \"" + configData.getDefinitionId() + "\" found for collection \"" + configData.getId() + "\", skipping.");
+                continue;
+            }
+            if (config == null || idToDefinitionsChangedMap.get(def.getId())) {
+                config = new DefaultCollectionConfiguration(configData, def);
+                changed = true;
+            }
+            next.pidToModDateMap.put(configPid, modDate);
+            next.pidToConfigDataMap.put(configPid, configData);
+            next.pidToConfigMap.put(configPid, config);
+            next.idToConfigMap.put(config.getId(), config);
+        }
+        if (previous != null && !previous.idToConfigMap.keySet().equals(next.idToConfigMap.keySet())) {
+            changed = true;
         }
-        this.cache = configs;
-        return configs;
+        
+        if (changed) {
+            next.configs = Collections.unmodifiableList(new ArrayList<CollectionConfiguration>(next.idToConfigMap.values()));
+            this.snapshot = next;
+            LOGGER.info("Loaded " + next.configs.size() + " collection configurations in " + (System.currentTimeMillis() - start) + "ms.");
+            return next;
+        } else {
+            LOGGER.debug("Collection configurations unchanged (checked in " + (System.currentTimeMillis() - start) + "ms).");
+            return previous;
+        }
+    }
+    
+    /**
+     * An immutable set of merged collection configurations along with
+     * the information needed to determine which must be reloaded in
+     * the next refresh.
+     */
+    private static class Snapshot {
+        
+        private Map<String, CollectionConfiguration> idToConfigMap = new LinkedHashMap<String, CollectionConfiguration>();
+        
+        private List<CollectionConfiguration> configs;
+        
+        private Map<String, String> pidToModDateMap = new HashMap<String, String>();
+        
+        private Map<String, CollectionConfigurationData> pidToConfigDataMap = new HashMap<String, CollectionConfigurationData>();
+        
+        private Map<String, CollectionConfiguration> pidToConfigMap = new HashMap<String, CollectionConfiguration>();
+        
+        private Map<String, Definitions> pidToDefinitionsMap = new HashMap<String, Definitions>();
+        
     }
     
 }
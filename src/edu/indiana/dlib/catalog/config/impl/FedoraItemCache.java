@@ -0,0 +1,190 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ *   A bounded (least recently used entries are discarded first)
+ *   cache of DLPFedoraItem objects keyed by PID.  Each entry 
+ *   records the "lastModified" value of the metadata datastream
+ *   from which the item was built and the last time that value 
+ *   was confirmed to be current, so that the FedoraItemManager
+ *   can decide whether an entry may be trusted as-is or must 
+ *   first be validated against fedora.
+ * </p>
+ * <p>
+ *   The cached items are never handed out directly (callers are
+ *   free to modify the items they fetch) but are instead copied
+ *   by the FedoraItemManager.  This class is thread-safe.
+ * </p>
+ */
+public class FedoraItemCache {
+
+    /**
+     * A cached item and the information needed to validate it.
+     */
+    public static class Entry {
+        
+        private DLPFedoraItem item;
+        
+        private String lastModified;
+        
+        /**
+         * Updated by markValidated() while holding the cache's lock
+         * but read by getAge() without it, so it must be volatile.
+         */
+        private volatile long validatedAt;
+        
+        private Entry(DLPFedoraItem item, String lastModified) {
+            this.item = item;
+            this.lastModified = lastModified;
+            this.validatedAt = System.currentTimeMillis();
+        }
+        
+        public DLPFedoraItem getItem() {
+            return this.item;
+        }
+        
+        /**
+         * Gets the "lastModified" value of the metadata datastream
+         * when the item was fetched.
+         */
+        public String getLastModified() {
+            return this.lastModified;
+        }
+        
+        /**
+         * Gets the number of milliseconds since the entry was
+         * fetched or last confirmed to be current.
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - this.validatedAt;
+        }
+    }
+    
+    private Map<String, Entry> cache;
+    
+    private long hits;
+    
+    private long validatedHits;
+    
+    private long misses;
+    
+    public FedoraItemCache(final int maxEntries) {
+        cache = new LinkedHashMap<String, Entry>(16, .75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * Gets the entry for the item with the given PID or null if 
+     * none is cached.  This method doesn't count as a hit or miss;
+     * the caller must record the outcome once it has decided 
+     * whether to use the entry.
+     */
+    public synchronized Entry get(String pid) {
+        return cache.get(pid);
+    }
+    
+    /**
+     * Caches the given item, replacing any existing entry.
+     */
+    public synchronized void put(String pid, DLPFedoraItem item) {
+        cache.put(pid, new Entry(item, DLPFedoraItem.getLastModificationDateStr(item.getControlFields())));
+    }
+    
+    /**
+     * Marks the given entry as having just been confirmed to be
+     * current.
+     */
+    public synchronized void markValidated(Entry entry) {
+        entry.validatedAt = System.currentTimeMillis();
+    }
+    
+    /**
+     * Removes the entry for the item with the given PID.
+     */
+    public synchronized void invalidate(String pid) {
+        cache.remove(pid);
+    }
+    
+    /**
+     * Records that a cached item was used without being validated.
+     */
+    public synchronized void recordHit() {
+        hits ++;
+    }
+    
+    /**
+     * Records that a cached item was used after being validated.
+     */
+    public synchronized void recordValidatedHit() {
+        validatedHits ++;
+    }
+    
+    /**
+     * Records that the item had to be fetched from fedora.
+     */
+    public synchronized void recordMiss() {
+        misses ++;
+    }
+    
+    /**
+     * Gets the fraction of fetches that were satisfied from the
+     * cache (with or without validation), or 0 if there have been
+     * no fetches.
+     */
+    public synchronized double getHitRatio() {
+        long total = hits + validatedHits + misses;
+        return (total == 0 ? 0 : (double) (hits + validatedHits) / (double) total);
+    }
+    
+    /**
+     * Gets the fraction of fetches that were satisfied from the
+     * cache without any request to fedora, or 0 if there have 
+     * been no fetches.
+     */
+    public synchronized double getUnvalidatedHitRatio() {
+        long total = hits + validatedHits + misses;
+        return (total == 0 ? 0 : (double) hits / (double) total);
+    }
+    
+    public synchronized int size() {
+        return cache.size();
+    }
+}
@@ -30,98 +30,302 @@
  */
 package edu.indiana.dlib.catalog.config.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
 
-import org.xml.sax.SAXException;
+import org.apache.log4j.Logger;
 
 import edu.indiana.dlib.catalog.accesscontrol.UserInfo;
+import edu.indiana.dlib.catalog.config.BatchPreviewItemManager;
 import edu.indiana.dlib.catalog.config.CollectionConfiguration;
 import edu.indiana.dlib.catalog.config.DataFormatException;
+import edu.indiana.dlib.catalog.config.DataView;
 import edu.indiana.dlib.catalog.config.HistoryEnabledItemManager;
 import edu.indiana.dlib.catalog.config.Item;
 import edu.indiana.dlib.catalog.config.ItemManager;
 import edu.indiana.dlib.catalog.config.ItemMetadata;
+import edu.indiana.dlib.catalog.config.MetadataItemManager;
 import edu.indiana.dlib.catalog.config.OptimisticLockingException;
 import edu.indiana.dlib.catalog.config.RepositoryException;
 import edu.indiana.dlib.catalog.config.impl.fedora.DatastreamProfile;
+import edu.indiana.dlib.catalog.config.impl.fedora.FedoraConcurrentModificationException;
 import edu.indiana.dlib.catalog.config.impl.fedora.FedoraException;
 import edu.indiana.dlib.catalog.config.impl.fedora.FedoraRestApiWrapper;
+import edu.indiana.dlib.catalog.config.impl.fedora.HistoricDatastreamCache;
+import edu.indiana.dlib.catalog.config.impl.fedora.PidCache;
 
 /**
  * A Fedora-based ItemManager implementation that contains
  * very specific code (including hard-coded URLs) appropriate
  * only for the DLP's fedora setup.
  */
-public class FedoraItemManager implements ItemManager, HistoryEnabledItemManager {
+public class FedoraItemManager implements ItemManager, HistoryEnabledItemManager, BatchPreviewItemManager, MetadataItemManager {
+
+    private static final Logger LOGGER = Logger.getLogger(FedoraItemManager.class);
+    
+    /**
+     * The number of threads used to resolve previews when
+     * no value is specified at construction time.
+     */
+    private static final int DEFAULT_PREVIEW_THREADS = 8;
+    
+    /**
+     * The maximum number of items whose previews are determined
+     * by a single resource index query.  (This limits the length
+     * of the query URL)
+     */
+    private static final int PREVIEW_BATCH_SIZE = 50;
+    
+    /**
+     * The number of items cached when no value is specified
+     * at construction time.
+     */
+    private static final int DEFAULT_ITEM_CACHE_SIZE = 500;
+    
+    /**
+     * The number of milliseconds for which a cached item is 
+     * used without confirming that it's current when no value
+     * is specified at construction time.
+     */
+    private static final long DEFAULT_ITEM_CACHE_TRUST_WINDOW = 2000;
+    
+    /**
+     * The number of milliseconds by which a requested historic
+     * date must precede the current time for the version current
+     * at that date to be cached.  (This allows for differences 
+     * between the local clock and that of the fedora server, which
+     * dates new versions)
+     */
+    private static final long HISTORY_CACHE_CLOCK_SKEW = 60000;
 
     /**
      * A client that is used to access the Fedora
      * repository.  This instance must not be read-only.
-     * Furthermore, all accesses using this client must 
-     * synchronize on it as it is not thread-safe.
+     * It is thread-safe and is shared by all requests 
+     * and by the previewExecutor.
      */
     private FedoraRestApiWrapper fedora;
     
+    /**
+     * The cache of PIDs for item identifiers shared by all
+     * managers that access the same fedora repository.
+     */
+    private PidCache pidCache;
+    
+    /**
+     * Recently fetched items.
+     */
+    private FedoraItemCache itemCache;
+    
+    /**
+     * The number of milliseconds after it was fetched or last
+     * validated during which a cached item is used without 
+     * checking whether it's been modified.
+     */
+    private long itemCacheTrustWindow;
+    
+    /**
+     * The cache of past versions of metadata datastreams and
+     * of their version histories.
+     */
+    private HistoricDatastreamCache historyCache;
+    
     private String itemContentModel;
     
     private String metadataDatastreamId;
     
+    /**
+     * A pool of threads used to resolve previews for many items
+     * concurrently.
+     */
+    private ExecutorService previewExecutor;
+    
+    /**
+     * A thread that loads the PIDs of every item into the PidCache
+     * when this manager is created.  It's separate from the 
+     * previewExecutor so that the (potentially lengthy) query 
+     * doesn't delay the resolution of previews.
+     */
+    private Thread pidCacheWarmer;
+    
     public FedoraItemManager(String username, String password, String host, String contextName, Integer port, String cmodelPid, String dsId) {
-        fedora = new FedoraRestApiWrapper(username, password, host, contextName, port, false);
+        this(username, password, host, contextName, port, cmodelPid, dsId, DEFAULT_PREVIEW_THREADS);
+    }
+    
+    public FedoraItemManager(String username, String password, String host, String contextName, Integer port, String cmodelPid, String dsId, int previewThreads) {
+        this(username, password, host, contextName, port, cmodelPid, dsId, previewThreads, FedoraRestApiWrapper.DEFAULT_MAX_CONNECTIONS);
+    }
+    
+    /**
+     * Creates a FedoraItemManager.
+     * @param previewThreads the number of threads used to resolve
+     * previews in fetchPreviews()
+     * @param maxConnections the maximum number of simultaneous
+     * requests to fedora, shared by all request threads and the
+     * preview threads
+     */
+    public FedoraItemManager(String username, String password, String host, String contextName, Integer port, String cmodelPid, String dsId, int previewThreads, int maxConnections) {
+        this(username, password, host, contextName, port, cmodelPid, dsId, previewThreads, maxConnections, DEFAULT_ITEM_CACHE_SIZE, DEFAULT_ITEM_CACHE_TRUST_WINDOW);
+    }
+    
+    /**
+     * Creates a FedoraItemManager.
+     * @param previewThreads the number of threads used to resolve
+     * previews in fetchPreviews()
+     * @param maxConnections the maximum number of simultaneous
+     * requests to fedora, shared by all request threads and the
+     * preview threads
+     * @param itemCacheSize the maximum number of items cached
+     * @param itemCacheTrustWindow the number of milliseconds for 
+     * which a cached item is used without checking whether it has
+     * been modified (0 to always check)
+     */
+    public FedoraItemManager(String username, String password, String host, String contextName, Integer port, String cmodelPid, String dsId, int previewThreads, int maxConnections, int itemCacheSize, long itemCacheTrustWindow) {
+        fedora = new FedoraRestApiWrapper(username, password, host, contextName, port, false, maxConnections);
+        itemCache = new FedoraItemCache(itemCacheSize);
+        this.itemCacheTrustWindow = itemCacheTrustWindow;
+        historyCache = HistoricDatastreamCache.getInstance();
+        pidCache = PidCache.getInstance(fedora.getServerUrl());
         metadataDatastreamId = dsId;
         itemContentModel = cmodelPid;
+        
+        previewExecutor = Executors.newFixedThreadPool(previewThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fedora-preview-worker");
+                thread.setDaemon(true);
+                return thread;
+            }});
+        
+        // resolve the PIDs of all items in the background
+        if (itemContentModel != null) {
+            pidCacheWarmer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        pidCache.warm(fedora, itemContentModel);
+                    } catch (Throwable t) {
+                        LOGGER.warn("Unable to preload PIDs for " + itemContentModel + " objects.", t);
+                    }
+                }}, "fedora-pid-cache-warmer");
+            pidCacheWarmer.setDaemon(true);
+            pidCacheWarmer.start();
+        }
+    }
+    
+    /**
+     * Stops the threads used to resolve previews and to load the
+     * PidCache.  This should be invoked when the manager is no 
+     * longer needed (for instance, as a spring "destroy-method") 
+     * so that the threads don't outlive a redeployed application.
+     */
+    public void destroy() {
+        previewExecutor.shutdownNow();
+        if (pidCacheWarmer != null) {
+            pidCacheWarmer.interrupt();
+        }
+    }
+    
+    /**
+     * Determines the PID of the fedora object for the item with
+     * the given identifier (from the PidCache when possible).
+     * @throws RuntimeException if there isn't exactly one object
+     * with the given identifier
+     */
+    private String lookupPid(String id) throws FedoraException, IOException {
+        List<String> pids = pidCache.lookupPids(fedora, id);
+        if (pids.size() != 1) {
+            throw new RuntimeException(pids.size() + " items found with the \"unique\" identifier, \"" + id + "\"!");
+        } else {
+            return pids.get(0);
+        }
     }
     
-    public synchronized Item fetchItem(String id) throws RepositoryException {
+    /**
+     * Fetches the item with the given id, using a copy of the 
+     * cached item if it's current.  A cached item is considered
+     * current if it was fetched or validated within the trust
+     * window or if the "lastModified" date of its metadata 
+     * datastream is unchanged (which requires only a request for
+     * the datastream profile).
+     */
+    public Item fetchItem(String id) throws RepositoryException {
         try {
-            return new DLPFedoraItem(fedora, id, metadataDatastreamId);
+            String pid = lookupPid(id);
+            FedoraItemCache.Entry entry = itemCache.get(pid);
+            if (entry != null) {
+                if (entry.getAge() < itemCacheTrustWindow) {
+                    itemCache.recordHit();
+                    return new DLPFedoraItem(entry.getItem());
+                }
+                String lastModified = fedora.getDatastreamProperty(pid, metadataDatastreamId, DatastreamProfile.DatastreamProperty.DS_CREATE_DATE);
+                if (lastModified.equals(entry.getLastModified())) {
+                    itemCache.markValidated(entry);
+                    itemCache.recordValidatedHit();
+                    return new DLPFedoraItem(entry.getItem());
+                }
+                itemCache.invalidate(pid);
+            }
+            itemCache.recordMiss();
+            DLPFedoraItem item = new DLPFedoraItem(fedora, id, pid, metadataDatastreamId);
+            itemCache.put(pid, item);
+            return new DLPFedoraItem(item);
         } catch (FedoraException ex) {
             throw new RepositoryException(ex);
         } catch (IOException ex) {
             throw new RepositoryException(ex);
-        } catch (XPathExpressionException ex) {
-            throw new RepositoryException(ex);
         } catch (DataFormatException ex) {
             throw new RepositoryException(ex);
-        } catch (SAXException ex) {
-            throw new RepositoryException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new RepositoryException(ex);
         }
     }
     
-    public synchronized void saveItemMetadata(Item updatedItem, UserInfo user) throws OptimisticLockingException, RepositoryException {
+    public void saveItemMetadata(Item updatedItem, UserInfo user) throws OptimisticLockingException, RepositoryException {
+        if (!updatedItem.getMetadata().isModified()) {
+            LOGGER.debug("Item " + updatedItem.getId() + " was not modified, skipping save.");
+            return;
+        }
+        
         // validate control fields
         String pid = DLPFedoraItem.getPid(updatedItem.getControlFields());
         if (pid != null) {
-            // verify that the item exists and matches the pid
-            DLPFedoraItem remoteItem = (DLPFedoraItem) this.fetchItem(updatedItem.getId());
-            if (remoteItem == null) {
-                throw new OptimisticLockingException("The item with id, \"" + updatedItem.getId() + "\" no longer exists in the repository!");
-            }
-            if (!pid.equals(DLPFedoraItem.getPid(remoteItem.getControlFields()))) {
-                throw new RepositoryException("The repository item with id, \"" + updatedItem.getId() + "\" does not have the same PID " + pid + " as when it was originally fetched!");
-            }
-            
-            String lastModified = DLPFedoraItem.getLastModificationDateStr(updatedItem.getControlFields());
-            if (!DLPFedoraItem.getLastModificationDateStr(remoteItem.getControlFields()).equals(lastModified)) {
-                throw new OptimisticLockingException("The item with id, \"" + updatedItem.getId() + "\" has been modified since you last viewed it.");
-            }
-            
-            // store the XML
             try {
-                fedora.addOrReplaceDatastreamWithDocument(pid, metadataDatastreamId, FedoraRestApiWrapper.ControlGroup.M, null, "text/xml", updatedItem.getMetadata().generateDocument(), metadataDatastreamId + ".xml");
+                // verify that the id still identifies the same object
+                if (!pid.equals(lookupPid(updatedItem.getId()))) {
+                    throw new RepositoryException("The repository item with id, \"" + updatedItem.getId() + "\" does not have the same PID " + pid + " as when it was originally fetched!");
+                }
+                
+                // store the XML, provided the metadata datastream hasn't
+                // been modified since the item was fetched (this check is
+                // made by the same requests that perform the update)
+                String lastModified = DLPFedoraItem.getLastModificationDateStr(updatedItem.getControlFields());
+                fedora.addOrReplaceDatastreamWithDocument(pid, metadataDatastreamId, FedoraRestApiWrapper.ControlGroup.M, null, "text/xml", updatedItem.getMetadata().generateDocument(), metadataDatastreamId + ".xml", lastModified);
+                updatedItem.getMetadata().markClean();
+            } catch (FedoraConcurrentModificationException ex) {
+                throw new OptimisticLockingException("The item with id, \"" + updatedItem.getId() + "\" has been modified since you last viewed it.");
+            } catch (IOException ex) {
+                throw new RepositoryException(ex);
             } catch (FedoraException ex) {
                 throw new RepositoryException(ex);
             } catch (ParserConfigurationException ex) {
                 throw new RepositoryException(ex);
+            } finally {
+                itemCache.invalidate(pid);
             }
             
         } else {
@@ -130,11 +334,152 @@ public class FedoraItemManager implements ItemManager, HistoryEnabledItemManager
         }
     }
 
+    /**
+     * Fetches just the metadata datastream for the item with the 
+     * given id.  Unless a recently validated copy of the item is
+     * cached, this requires a single request to fedora (assuming
+     * the PID is cached).
+     * @return the metadata or null if no item has the given id
+     */
+    public ItemMetadata fetchItemMetadata(String id) throws RepositoryException {
+        try {
+            if (pidCache.lookupPids(fedora, id).isEmpty()) {
+                return null;
+            }
+            String pid = lookupPid(id);
+            FedoraItemCache.Entry entry = itemCache.get(pid);
+            if (entry != null && entry.getAge() < itemCacheTrustWindow) {
+                itemCache.recordHit();
+                return new ItemMetadata(entry.getItem().getMetadata());
+            }
+            ItemMetadata metadata = new DefaultItemMetadata(fedora.getDatastream(pid, metadataDatastreamId), false);
+            if (!metadata.getId().equals(id)) {
+                throw new RuntimeException("The item identified by \"" + id + "\" improperly claims to be \"" + metadata.getId() + "\"! (pid=" + pid + ")");
+            }
+            return metadata;
+        } catch (FedoraException ex) {
+            throw new RepositoryException(ex);
+        } catch (IOException ex) {
+            throw new RepositoryException(ex);
+        } catch (DataFormatException ex) {
+            throw new RepositoryException(ex);
+        }
+    }
+    
+    /**
+     * Gets the fraction of fetchItem() calls that were satisfied 
+     * from the item cache (whether or not fedora was consulted to
+     * validate the cached item).
+     */
+    public double getItemCacheHitRatio() {
+        return itemCache.getHitRatio();
+    }
+    
+    /**
+     * Gets the fraction of fetchItem() calls that were satisfied
+     * from the item cache without any request to fedora.
+     */
+    public double getItemCacheUnvalidatedHitRatio() {
+        return itemCache.getUnvalidatedHitRatio();
+    }
+    
+    /**
+     * Gets the fraction of identifier lookups that were satisfied
+     * from the PidCache.
+     */
+    public double getPidCacheHitRatio() {
+        return pidCache.getHitRatio();
+    }
+    
+    /**
+     * Resolves the previews for all of the given items.  Unlike 
+     * fetchItem() this neither fetches nor parses the metadata
+     * datastream.  The PIDs are resolved concurrently (though they
+     * are typically cached) and then the previews for up to 
+     * PREVIEW_BATCH_SIZE items at a time are determined with a 
+     * single resource index query.  If that query fails, the 
+     * previews in that batch are determined concurrently, one 
+     * item at a time.
+     */
+    public Map<String, DataView> fetchPreviews(Collection<String> ids) throws RepositoryException {
+        long start = System.currentTimeMillis();
+        
+        // resolve the pids
+        Map<String, Future<String>> pendingPids = new LinkedHashMap<String, Future<String>>();
+        for (final String id : ids) {
+            pendingPids.put(id, previewExecutor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return lookupPid(id);
+                }}));
+        }
+        Map<String, String> pidToId = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Future<String>> pending : pendingPids.entrySet()) {
+            try {
+                pidToId.put(pending.getValue().get(), pending.getKey());
+            } catch (ExecutionException ex) {
+                LOGGER.warn("Unable to determine preview for \"" + pending.getKey() + "\".", ex.getCause());
+            } catch (InterruptedException ex) {
+                throw new RepositoryException(ex);
+            }
+        }
+        
+        // determine the previews
+        Map<String, DataView> previews = new HashMap<String, DataView>();
+        List<String> pids = new ArrayList<String>(pidToId.keySet());
+        for (int i = 0; i < pids.size(); i += PREVIEW_BATCH_SIZE) {
+            List<String> batch = pids.subList(i, Math.min(pids.size(), i + PREVIEW_BATCH_SIZE));
+            Map<String, DataView> pidToPreview = null;
+            try {
+                pidToPreview = DLPFedoraItem.discoverPreviews(fedora, batch);
+            } catch (FedoraException ex) {
+                LOGGER.warn("Unable to determine previews using the resource index, querying each item instead.", ex);
+                pidToPreview = fetchPreviewsIndividually(batch);
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to determine previews using the resource index, querying each item instead.", ex);
+                pidToPreview = fetchPreviewsIndividually(batch);
+            }
+            for (Map.Entry<String, DataView> entry : pidToPreview.entrySet()) {
+                previews.put(pidToId.get(entry.getKey()), entry.getValue());
+            }
+        }
+        LOGGER.debug("Resolved " + previews.size() + " of " + ids.size() + " previews in " + (System.currentTimeMillis() - start) + "ms (PID cache hit ratio: " + pidCache.getHitRatio() + ").");
+        return previews;
+    }
+    
+    /**
+     * Determines the previews for the items with the given pids
+     * concurrently, using separate requests for each item.
+     * @return a map from pid to preview
+     */
+    private Map<String, DataView> fetchPreviewsIndividually(Collection<String> pids) throws RepositoryException {
+        Map<String, Future<DataView>> pendingPreviews = new LinkedHashMap<String, Future<DataView>>();
+        for (final String pid : pids) {
+            pendingPreviews.put(pid, previewExecutor.submit(new Callable<DataView>() {
+                public DataView call() throws Exception {
+                    return DLPFedoraItem.discoverDataViews(fedora, pid, new ArrayList<DataView>());
+                }}));
+        }
+        Map<String, DataView> previews = new HashMap<String, DataView>();
+        for (Map.Entry<String, Future<DataView>> pending : pendingPreviews.entrySet()) {
+            try {
+                DataView preview = pending.getValue().get();
+                if (preview != null) {
+                    previews.put(pending.getKey(), preview);
+                }
+            } catch (ExecutionException ex) {
+                LOGGER.warn("Unable to determine preview for " + pending.getKey() + ".", ex.getCause());
+            } catch (InterruptedException ex) {
+                throw new RepositoryException(ex);
+            }
+        }
+        return previews;
+    }
+
     /**
      * Currently unsupported. 
      * @throws UnsupportedOperationException whenever called
      */
-    public synchronized String createNewItem(CollectionConfiguration config, UserInfo user) throws RepositoryException {
+    public String createNewItem(CollectionConfiguration config, UserInfo user) throws RepositoryException {
         throw new UnsupportedOperationException();
     }
 
@@ -142,29 +487,40 @@ public class FedoraItemManager implements ItemManager, HistoryEnabledItemManager
      * Currently unsupported. 
      * @throws UnsupportedOperationException whenever called
      */
-    public synchronized boolean removeItem(Item item, CollectionConfiguration config, UserInfo user) throws RepositoryException {
+    public boolean removeItem(Item item, CollectionConfiguration config, UserInfo user) throws RepositoryException {
         throw new UnsupportedOperationException();
     }
     
     /**
      * Unimplemented.
      */
-    public synchronized String getNextId(String prefix) throws FedoraException, IOException {
+    public String getNextId(String prefix) throws FedoraException, IOException {
         throw new UnsupportedOperationException(); 
     }
 
-    public synchronized ItemMetadata getHistoricItemMetdata(String id, Date date) throws RepositoryException {
+    /**
+     * Gets the item metadata as it appeared on the given date.  Once
+     * a date is safely in the past, the version current at that date
+     * can never change, so it is served from (and stored in) the
+     * HistoricDatastreamCache.
+     */
+    public ItemMetadata getHistoricItemMetdata(String id, Date date) throws RepositoryException {
         try {
             // determine the pid
-            String pid = null;
-            List<String> pids = fedora.dcIdentifierLookup(id);
-            if (pids.size() != 1) {
-                throw new RuntimeException(pids.size() + " items found with the \"unique\" identifier, \"" + id + "\"!");
-            } else {
-                pid = pids.get(0);
+            String pid = lookupPid(id);
+            if (date == null) {
+                return new DefaultItemMetadata(fedora.getDatastream(pid, metadataDatastreamId), false);
             }
             
-            return new DefaultItemMetadata(fedora.getDatastream(pid, metadataDatastreamId, (date == null ? null : FedoraRestApiWrapper.printFedoraDateString(date))));
+            String dateStr = FedoraRestApiWrapper.printFedoraDateString(date);
+            byte[] content = historyCache.getVersion(pid, metadataDatastreamId, dateStr);
+            if (content == null) {
+                content = readFully(fedora.getDatastream(pid, metadataDatastreamId, dateStr));
+                if (date.getTime() < System.currentTimeMillis() - HISTORY_CACHE_CLOCK_SKEW) {
+                    historyCache.putVersion(pid, metadataDatastreamId, dateStr, content);
+                }
+            }
+            return new DefaultItemMetadata(new ByteArrayInputStream(content), false);
         } catch (IOException ex) {
             throw new RepositoryException(ex);
         } catch (DataFormatException ex) {
@@ -174,37 +530,65 @@ public class FedoraItemManager implements ItemManager, HistoryEnabledItemManager
         }
     }
 
-    public synchronized List<VersionInformation> getItemMetadataHistory(String id) throws RepositoryException {
+    /**
+     * Gets the history of the item metadata.  A cached listing is
+     * used if its newest entry is still the current version of the 
+     * metadata datastream, so that unless the item has been modified
+     * only the current version's creation date is requested from
+     * fedora (and not even that if the item was recently fetched).
+     */
+    public List<VersionInformation> getItemMetadataHistory(String id) throws RepositoryException {
         List<VersionInformation> versions = new ArrayList<VersionInformation>();
         
         try {
             // determine the pid
-            String pid = null;
-            List<String> pids = fedora.dcIdentifierLookup(id);
-            if (pids.size() != 1) {
-                throw new RuntimeException(pids.size() + " items found with the \"unique\" identifier, \"" + id + "\"!");
+            String pid = lookupPid(id);
+            
+            // determine the date of the current version
+            String lastModified = null;
+            FedoraItemCache.Entry entry = itemCache.get(pid);
+            if (entry != null && entry.getAge() < itemCacheTrustWindow) {
+                lastModified = entry.getLastModified();
             } else {
-                pid = pids.get(0);
+                lastModified = fedora.getDatastreamProperty(pid, metadataDatastreamId, DatastreamProfile.DatastreamProperty.DS_CREATE_DATE);
+            }
+            
+            List<String> dates = historyCache.getHistory(pid, metadataDatastreamId);
+            if (dates == null || dates.isEmpty() || !dates.get(0).equals(lastModified)) {
+                dates = new ArrayList<String>();
+                for (DatastreamProfile profile : fedora.getDatastreamHistory(pid, this.metadataDatastreamId)) {
+                    dates.add(profile.getProperty(DatastreamProfile.DatastreamProperty.DS_CREATE_DATE));
+                }
+                historyCache.putHistory(pid, metadataDatastreamId, dates);
             }
-            for (DatastreamProfile profile : fedora.getDatastreamHistory(pid, this.metadataDatastreamId)) {
-                Date date = FedoraRestApiWrapper.parseFedoraDate(profile.getProperty(DatastreamProfile.DatastreamProperty.DS_CREATE_DATE));
-                VersionInformation version = new VersionInformation(id, date);
-                versions.add(version);
+            for (String date : dates) {
+                versions.add(new VersionInformation(id, FedoraRestApiWrapper.parseFedoraDate(date)));
             }
             return versions;
         } catch (IOException ex) {
             throw new RepositoryException(ex);
         } catch (FedoraException ex) {
             throw new RepositoryException(ex);
-        } catch (XPathExpressionException ex) {
-            throw new RepositoryException(ex);
-        } catch (SAXException ex) {
-            throw new RepositoryException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new RepositoryException(ex);
         } catch (ParseException ex) {
             throw new RepositoryException(ex);
         }
     }
 
+    /**
+     * Reads the given stream to the end and closes it.
+     */
+    private static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+    
 }
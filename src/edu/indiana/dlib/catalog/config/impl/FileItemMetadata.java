@@ -35,9 +35,6 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
-
 import edu.indiana.dlib.catalog.config.DataFormatException;
 import edu.indiana.dlib.catalog.config.ItemMetadata;
 
@@ -59,7 +56,7 @@ public class FileItemMetadata extends ItemMetadata {
         }
     }
     
-    public void write(File outputFile) throws IOException, ParserConfigurationException, TransformerException {
+    public void write(File outputFile) throws IOException {
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(outputFile);
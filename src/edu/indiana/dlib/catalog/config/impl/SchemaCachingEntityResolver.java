@@ -30,19 +30,24 @@
  */
 package edu.indiana.dlib.catalog.config.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.log4j.Logger;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -52,9 +57,29 @@ import org.xml.sax.SAXException;
  *   An EntityResolver implementation that maintains a disk cache
  *   of the Schema files.
  * </p> 
+ * <p>
+ *   Resolved schemas are held in memory, so a cache hit neither
+ *   takes a lock nor touches the disk.  Schemas listed in the 
+ *   optional classpath catalog (schema-catalog.properties, mapping
+ *   each schema location to a classpath resource) are loaded when 
+ *   the resolver is created so that they never have to be fetched, 
+ *   and the disk cache survives restarts, so that once a schema has
+ *   been fetched the application can start without network access.
+ * </p>
  */
 public class SchemaCachingEntityResolver implements EntityResolver {
 
+    private static final Logger LOGGER = Logger.getLogger(SchemaCachingEntityResolver.class);
+    
+    /**
+     * The name of the classpath resource listing bundled schemas.
+     */
+    public static final String CATALOG_RESOURCE = "schema-catalog.properties";
+    
+    private static final int CONNECT_TIMEOUT = 10000;
+    
+    private static final int READ_TIMEOUT = 30000;
+    
     /**
      * The file system directory in which cached schema files
      * are managed.
@@ -64,20 +89,33 @@ public class SchemaCachingEntityResolver implements EntityResolver {
     /**
      * A mapping from schema locations to cached schema files
      * this is also serialized to disk in the cache directory.
+     * Access is synchronized on this object.
      */
     private Properties mapping;
 
+    /**
+     * The content of the schemas listed in the classpath catalog,
+     * keyed by schema location.
+     */
+    private Map<String, byte[]> bundledSchemas;
+    
+    /**
+     * The content of every schema resolved so far (and of the 
+     * bundled schemas) keyed by schema location.
+     */
+    private ConcurrentMap<String, byte[]> schemas;
+    
     /**
      * For statistical purposes, this is the number of cache
      * hits for this EntityResolver instance.
      */
-    private int cacheHits;
+    private AtomicInteger cacheHits;
     
     /**
      * For statistical purposes, this is the number of cache
      * misses for this EntityResolver instance.
      */
-    private int cacheMisses;
+    private AtomicInteger cacheMisses;
     
     /**
      * Creates a SchemaCachingEntityResolver with the given cache directory.
@@ -86,8 +124,8 @@ public class SchemaCachingEntityResolver implements EntityResolver {
      */
     public SchemaCachingEntityResolver(File cacheDirectory) throws IOException {
         this.cacheDirectory = cacheDirectory;
-        this.cacheHits = 0;
-        this.cacheMisses = 0;
+        this.cacheHits = new AtomicInteger();
+        this.cacheMisses = new AtomicInteger();
         cacheDirectory.mkdirs();
         this.mapping = new Properties();
         File mappingFile = new File(this.cacheDirectory, "schema-map.properties");
@@ -99,8 +137,45 @@ public class SchemaCachingEntityResolver implements EntityResolver {
                 fis.close();
             }
         }
+        this.bundledSchemas = loadCatalog();
+        this.schemas = new ConcurrentHashMap<String, byte[]>(this.bundledSchemas);
     }
     
+    /**
+     * Loads every schema listed in the classpath catalog.  A missing
+     * catalog or a missing schema is logged but isn't an error, as 
+     * the schema may still be found in the disk cache or fetched.
+     */
+    private static Map<String, byte[]> loadCatalog() throws IOException {
+        ClassLoader loader = SchemaCachingEntityResolver.class.getClassLoader();
+        InputStream catalogStream = loader.getResourceAsStream(CATALOG_RESOURCE);
+        if (catalogStream == null) {
+            return Collections.emptyMap();
+        }
+        Properties catalog = new Properties();
+        try {
+            catalog.load(catalogStream);
+        } finally {
+            catalogStream.close();
+        }
+        Map<String, byte[]> bundled = new HashMap<String, byte[]>();
+        for (String location : catalog.stringPropertyNames()) {
+            String resource = catalog.getProperty(location);
+            InputStream is = loader.getResourceAsStream(resource);
+            if (is == null) {
+                LOGGER.warn("Bundled schema \"" + resource + "\" for \"" + location + "\" was not found on the classpath.");
+            } else {
+                bundled.put(location, readFully(is));
+            }
+        }
+        LOGGER.info("Loaded " + bundled.size() + " bundled schema(s).");
+        return bundled;
+    }
+    
+    /**
+     * Deletes the cached schema files and discards every resolved 
+     * schema other than the bundled ones.
+     */
     public synchronized void clearCache() throws IOException {
         for (Object key : this.mapping.keySet()) {
             File file = new File((String) this.mapping.get(key));
@@ -108,6 +183,8 @@ public class SchemaCachingEntityResolver implements EntityResolver {
         }
         this.mapping.clear();
         this.storeMappingFile();
+        this.schemas.clear();
+        this.schemas.putAll(this.bundledSchemas);
     }
     
     private void storeMappingFile() throws IOException {
@@ -122,34 +199,63 @@ public class SchemaCachingEntityResolver implements EntityResolver {
     }
 
     /**
-     * Checks the cache, and if missing, fetches the remove file and caches
-     * it, then returns a new InputSource to access the cached file.
+     * Returns a new InputSource to access the schema, which is 
+     * read from the disk cache or fetched (and cached) if it 
+     * hasn't already been resolved.
      */
-    public synchronized InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
-        if (systemId != null) {
-            // check the cache
-            if (this.mapping.containsKey(systemId)) {
-                this.cacheHits ++;
-            } else {
-                this.cacheMisses ++;
-                
-                // fetch and store the file
-                URL url = new URL(systemId);
-                File file = new File(cacheDirectory, generateUrlFilenameHash(systemId));
-                if (file.exists()) {
-                    throw new IllegalStateException("Name collision! (" + file.getName() + ")");
-                }
-                writeStreamToFile(url.openStream(), file);
-                this.mapping.put(systemId, file.getAbsolutePath());
-                
-                this.storeMappingFile();
-            }
+    public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+        if (systemId == null) {
+            return null;
+        }
+        byte[] schema = this.schemas.get(systemId);
+        if (schema != null) {
+            this.cacheHits.incrementAndGet();
+        } else {
+            schema = load(systemId);
         }
         InputSource is = new InputSource(systemId);
-        is.setByteStream(new FileInputStream(this.mapping.getProperty(systemId)));
+        is.setByteStream(new ByteArrayInputStream(schema));
         return is;
     }
     
+    /**
+     * Reads the schema from the disk cache or, if it isn't there,
+     * fetches and caches it.
+     */
+    private synchronized byte[] load(String systemId) throws IOException {
+        // another thread may have loaded it
+        byte[] schema = this.schemas.get(systemId);
+        if (schema != null) {
+            this.cacheHits.incrementAndGet();
+            return schema;
+        }
+        String path = this.mapping.getProperty(systemId);
+        if (path != null && new File(path).exists()) {
+            this.cacheHits.incrementAndGet();
+            schema = readFully(new FileInputStream(path));
+        } else {
+            this.cacheMisses.incrementAndGet();
+            
+            // fetch and store the file
+            URLConnection conn = new URL(systemId).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            schema = readFully(conn.getInputStream());
+            File file = new File(cacheDirectory, generateUrlFilenameHash(systemId));
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(schema);
+            } finally {
+                fos.close();
+            }
+            this.mapping.put(systemId, file.getAbsolutePath());
+            this.storeMappingFile();
+            LOGGER.info("Fetched and cached \"" + systemId + "\".");
+        }
+        this.schemas.put(systemId, schema);
+        return schema;
+    }
+    
     /**
      * A private helper method to generate a hash of a URL that 
      * is suitable for a filename.  The current implementation
@@ -161,24 +267,19 @@ public class SchemaCachingEntityResolver implements EntityResolver {
     }
 
     /**
-     * A helper method to use NIO functions to efficiently write
-     * an InputStream to a file.
+     * Reads the given stream to the end and closes it.
      */
-    private static void writeStreamToFile(InputStream is, File file) throws IOException {
-        OutputStream output = new FileOutputStream(file);
-        ReadableByteChannel inputChannel = Channels.newChannel(is);  
-        WritableByteChannel outputChannel = Channels.newChannel(output);  
-        ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);  
-        while (inputChannel.read(buffer) != -1) {  
-            buffer.flip();  
-            outputChannel.write(buffer);  
-            buffer.compact();  
-        }  
-        buffer.flip();  
-        while (buffer.hasRemaining()) {  
-            outputChannel.write(buffer);  
-        }  
-       inputChannel.close();  
-       outputChannel.close();
-    }    
+    private static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
 }
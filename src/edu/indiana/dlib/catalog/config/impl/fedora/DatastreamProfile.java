@@ -30,11 +30,12 @@
  */
 package edu.indiana.dlib.catalog.config.impl.fedora;
 
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathException;
-
-import org.w3c.dom.Element;
+import java.util.Map;
 
+/**
+ * The properties of a version of a datastream as reported by
+ * fedora.  Instances are created by the FedoraResponseParser.
+ */
 public class DatastreamProfile {
 
     /**
@@ -69,28 +70,23 @@ public class DatastreamProfile {
         }
     }
     
-    private FedoraRestApiWrapper fedora;
-    
-    private Element profileEl;
+    /**
+     * A map from property names (as they appear in the profile
+     * XML) to their values.
+     */
+    private Map<String, String> properties;
     
-    public DatastreamProfile(FedoraRestApiWrapper fedora, Element profileEl) {
-        this.fedora = fedora;
-        this.profileEl = profileEl;
+    DatastreamProfile(Map<String, String> properties) {
+        this.properties = properties;
     }
     
+    /**
+     * Gets the value of the given property, or an empty string
+     * if the property wasn't included in the profile.
+     */
     public String getProperty(DatastreamProperty property) throws FedoraException {
-        try {
-            // compatible with fedora 3.4
-            String value = (String) fedora.getXPath().evaluate("fedora-management:" + property.getPropertyName(), this.profileEl, XPathConstants.STRING);
-            if (value != null) {
-                return value;
-            } else {
-                // compatible with fedora 3.2
-                return (String) fedora.getXPath().evaluate("/datastreamProfile/" + property.getPropertyName(), this.profileEl, XPathConstants.STRING);
-            }
-        } catch (XPathException ex) {
-            throw new FedoraException(ex);
-        }
+        String value = this.properties.get(property.getPropertyName());
+        return value == null ? "" : value;
     }
     
 }
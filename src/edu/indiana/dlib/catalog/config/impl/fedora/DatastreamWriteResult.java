@@ -0,0 +1,120 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config.impl.fedora;
+
+/**
+ * A summary of a call to 
+ * FedoraRestApiWrapper.addOrReplaceDatastreamWithDocument()
+ * including what was done and how long each phase took.
+ */
+public class DatastreamWriteResult {
+
+    public static enum Outcome {
+        /** The datastream didn't exist and was created. */
+        CREATED,
+        
+        /** The datastream existed and its content was replaced. */
+        REPLACED,
+        
+        /** 
+         * The datastream existed with the same checksum so nothing 
+         * was written.
+         */
+        UNCHANGED;
+    }
+    
+    private Outcome outcome;
+    
+    private String md5;
+    
+    private int size;
+    
+    private long serializationTime;
+    
+    private long profileTime;
+    
+    private long postTime;
+    
+    DatastreamWriteResult(Outcome outcome, String md5, int size, long serializationTime, long profileTime, long postTime) {
+        this.outcome = outcome;
+        this.md5 = md5;
+        this.size = size;
+        this.serializationTime = serializationTime;
+        this.profileTime = profileTime;
+        this.postTime = postTime;
+    }
+    
+    public Outcome getOutcome() {
+        return this.outcome;
+    }
+    
+    /**
+     * Gets the (lower case) MD5 checksum of the serialized content.
+     */
+    public String getMD5() {
+        return this.md5;
+    }
+    
+    /**
+     * Gets the size in bytes of the serialized content.
+     */
+    public int getSize() {
+        return this.size;
+    }
+    
+    /**
+     * Gets the time in milliseconds spent serializing and hashing
+     * the document.
+     */
+    public long getSerializationTime() {
+        return this.serializationTime;
+    }
+    
+    /**
+     * Gets the time in milliseconds spent fetching the existing
+     * datastream profile.
+     */
+    public long getProfileTime() {
+        return this.profileTime;
+    }
+    
+    /**
+     * Gets the time in milliseconds spent sending the content to
+     * fedora (0 if the content was unchanged).
+     */
+    public long getPostTime() {
+        return this.postTime;
+    }
+    
+    public String toString() {
+        return outcome + " (" + size + " bytes, MD5=" + md5 + ", serialization=" + serializationTime + "ms, profile=" + profileTime + "ms, post=" + postTime + "ms)";
+    }
+}
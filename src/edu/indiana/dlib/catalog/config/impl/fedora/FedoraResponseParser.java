@@ -0,0 +1,255 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config.impl.fedora;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * <p>
+ *   Streaming (StAX) parsers for the responses to the fedora 
+ *   REST API and resource index calls made by the 
+ *   FedoraRestApiWrapper.  Unlike parsing the response into a DOM
+ *   and evaluating XPath expressions against it, these parsers 
+ *   make a single pass over the response and retain only the 
+ *   values that are needed.
+ * </p>
+ * <p>
+ *   Elements are matched by local name only, so the same parsers
+ *   handle the namespace-qualified responses of fedora 3.4 and 
+ *   the unqualified responses of fedora 3.2.  This class is
+ *   thread-safe.
+ * </p>
+ */
+class FedoraResponseParser {
+
+    private static final XMLInputFactory FACTORY = createFactory();
+    
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return factory;
+    }
+    
+    /**
+     * Parses a resource index response in the "Sparql" format.  
+     * Each result is returned as an array of the values of the 
+     * given variables in the given order.  The value of a variable
+     * bound to a resource is its URI with any "info:fedora/" prefix
+     * removed; the value of a variable bound to a literal is the 
+     * literal and the value of an unbound variable is null.
+     */
+    public static List<String[]> parseSparqlResults(InputStream is, String ... variables) throws FedoraResponseParsingException {
+        List<String[]> results = new ArrayList<String[]>();
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+            try {
+                String[] result = null;
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (result == null) {
+                            if (name.equals("result")) {
+                                result = new String[variables.length];
+                            }
+                        } else {
+                            int index = indexOf(variables, name);
+                            if (index == -1 || "false".equals(reader.getAttributeValue(null, "bound"))) {
+                                skipElement(reader);
+                            } else {
+                                String uri = reader.getAttributeValue(null, "uri");
+                                if (uri != null) {
+                                    result[index] = uri.replace("info:fedora/", "");
+                                    skipElement(reader);
+                                } else {
+                                    result[index] = reader.getElementText();
+                                }
+                            }
+                        }
+                    } else if (reader.getEventType() == XMLStreamConstants.END_ELEMENT && result != null && reader.getLocalName().equals("result")) {
+                        results.add(result);
+                        result = null;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new FedoraResponseParsingException(ex);
+        }
+        return results;
+    }
+    
+    /**
+     * Parses a datastream profile (the response to a request for a
+     * datastream with "format=xml") into a DatastreamProfile.
+     */
+    public static DatastreamProfile parseDatastreamProfile(InputStream is) throws FedoraResponseParsingException {
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("datastreamProfile")) {
+                        return new DatastreamProfile(readProperties(reader));
+                    }
+                }
+                throw new FedoraResponseParsingException(new XMLStreamException("No datastreamProfile element found!"));
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new FedoraResponseParsingException(ex);
+        }
+    }
+    
+    /**
+     * Parses a datastream history (the response to a request for a
+     * datastream's history with "format=xml") into a list of 
+     * DatastreamProfile objects in the order they appear (newest 
+     * first).
+     */
+    public static List<DatastreamProfile> parseDatastreamHistory(InputStream is) throws FedoraResponseParsingException {
+        List<DatastreamProfile> history = new ArrayList<DatastreamProfile>();
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("datastreamProfile")) {
+                        history.add(new DatastreamProfile(readProperties(reader)));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new FedoraResponseParsingException(ex);
+        }
+        return history;
+    }
+    
+    /**
+     * Parses a datastream listing (the response to a request for
+     * an object's datastreams with "format=xml") into a list of 
+     * the datastream ids.
+     */
+    public static List<String> parseDatastreamList(InputStream is) throws FedoraResponseParsingException {
+        List<String> dsIds = new ArrayList<String>();
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("datastream")) {
+                        dsIds.add(reader.getAttributeValue(null, "dsid"));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new FedoraResponseParsingException(ex);
+        }
+        return dsIds;
+    }
+    
+    /**
+     * Reads the text of each child element of the current element
+     * into a map keyed by local name, leaving the reader positioned
+     * at the end of the current element.
+     */
+    private static Map<String, String> readProperties(XMLStreamReader reader) throws XMLStreamException {
+        Map<String, String> properties = new HashMap<String, String>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (properties.containsKey(name)) {
+                // only the first value of a repeated property is kept
+                skipElement(reader);
+            } else {
+                properties.put(name, readText(reader));
+            }
+        }
+        return properties;
+    }
+    
+    /**
+     * Reads the text content of the current element (ignoring any
+     * nested elements) leaving the reader positioned at its end.
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth ++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth --;
+            } else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                text.append(reader.getText());
+            }
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Skips the current element and its content, leaving the reader
+     * positioned at its end.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth ++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth --;
+            }
+        }
+    }
+    
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i ++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
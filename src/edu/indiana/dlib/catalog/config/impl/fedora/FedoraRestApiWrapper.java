@@ -32,50 +32,39 @@ package edu.indiana.dlib.catalog.config.impl.fedora;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+
+import edu.indiana.dlib.catalog.config.TransformationHelper;
 
 /**
  * <p>
@@ -85,7 +74,13 @@ import org.xml.sax.SAXException;
  *   TODO: replace this with the mediashelf fedora client
  * </p>
  * <p>
- *   <strong>This class is not thread-safe</strong>
+ *   This class is thread-safe.  HTTP connections are drawn from
+ *   a pool (whose size may be specified at construction time)
+ *   and responses are parsed by the (stateless) 
+ *   FedoraResponseParser, so a single instance may be shared 
+ *   by any number of threads.
+ *   Callers of getDatastream() must close the returned stream
+ *   to return the underlying connection to the pool.
  * </p>
  * 
  */
@@ -107,54 +102,63 @@ public class FedoraRestApiWrapper {
         E;
     }
     
+    /**
+     * The maximum number of simultaneous connections to fedora
+     * when no value is specified at construction time.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    
+    /**
+     * The number of milliseconds to wait for a connection to fedora
+     * to be established.
+     */
+    private static final int CONNECT_TIMEOUT = 30000;
+    
+    /**
+     * The number of milliseconds to wait for data from fedora before
+     * giving up on a request (so that a hung request can't block the
+     * calling thread forever).
+     */
+    private static final int SOCKET_TIMEOUT = 300000;
+    
     /**
      * The date format used to parse and generate dates as represented in
-     * fedora.
+     * fedora.  Because DateFormat isn't thread-safe, each thread gets
+     * its own instance.
      */
-    private static DateFormat FEDORA_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-    static {
-        FEDORA_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    private static final ThreadLocal<DateFormat> FEDORA_DATE_FORMAT = new ThreadLocal<DateFormat>() {
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
     
     /**
      * Converts a fedora date String (like "2010-10-01T19:55:00.808Z") to
      * a java Date object.
      */
     public static Date parseFedoraDate(String fedoraDateStr) throws ParseException {
-        return FEDORA_DATE_FORMAT.parse(fedoraDateStr);
+        return FEDORA_DATE_FORMAT.get().parse(fedoraDateStr);
     }
 
     /**
      * Converts a java Date object into a fedora-formatted date String.
      */
     public static String printFedoraDateString(Date date) {
-        return FEDORA_DATE_FORMAT.format(date);
+        return FEDORA_DATE_FORMAT.get().format(date);
     }
     
     /**
      * An underlying HttpClient that handles the REST calls.  This
-     * client is initialized at construction time.
+     * client is initialized at construction time and uses a 
+     * MultiThreadedHttpConnectionManager so that it may be used
+     * concurrently.  Every method executed with this client must
+     * have its connection released when the response has been 
+     * read.
      */
     protected HttpClient client;
 
-    /** 
-     * A document builder for building Documents from XML.  This
-     * variable is not initialized at construction time, but instead
-     * serves as a cache for the fist DocumentBuilder instance
-     * created by calls that require it.  All access to this member
-     * variable should be mediated through getDocumentBuilder().
-     */
-    private DocumentBuilder documentBuilder;
-    
-    /**
-     * An XPath implementation for dealing with Documents.  This
-     * variable is not initialized at construction time, but instead
-     * serves as a cache for the first XPath instance created by
-     * calls that require it.  All access to this member variable
-     * shoudl be mediated through getXPath().
-     */
-    private XPath xpath;
-    
     /**
      * The base URL for fedora calls. 
      */
@@ -187,10 +191,34 @@ public class FedoraRestApiWrapper {
      * @param port fedora's port
      */
     public FedoraRestApiWrapper(String username, String password, String fedoraHost, String fedoraContextName, int fedoraPort, boolean readOnly) {
+        this(username, password, fedoraHost, fedoraContextName, fedoraPort, readOnly, DEFAULT_MAX_CONNECTIONS);
+    }
+    
+    /**
+     * Instantiates a potentially authenticated FedoraRestApiWrapper
+     * that will make at most the given number of simultaneous 
+     * requests to fedora.  Threads making requests beyond that 
+     * number wait for a connection to be released.
+     * @param username the username (or null for anonymous access)
+     * @param password the password (or null for anonymous access)
+     * @param fedoraHost the hostname of the fedora server
+     * @param fedoraContextName the fedora context name 
+     * (likely "fedora")
+     * @param port fedora's port
+     * @param maxConnections the size of the connection pool
+     */
+    public FedoraRestApiWrapper(String username, String password, String fedoraHost, String fedoraContextName, int fedoraPort, boolean readOnly, int maxConnections) {
         this.fedoraBaseUrl = "http://" + fedoraHost + ":" + fedoraPort + "/" + fedoraContextName;
         
-        // Create an HTTP client for future REST calls
-        this.client = new HttpClient();
+        // Create an HTTP client (with a pool of connections to the
+        // fedora host) for future REST calls
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnections);
+        params.setMaxTotalConnections(maxConnections);
+        params.setConnectionTimeout(CONNECT_TIMEOUT);
+        params.setSoTimeout(SOCKET_TIMEOUT);
+        this.client = new HttpClient(connectionManager);
         if (username != null) {
             this.client.getParams().setAuthenticationPreemptive(true);
             Credentials credentials = new UsernamePasswordCredentials(username, password);
@@ -200,21 +228,6 @@ public class FedoraRestApiWrapper {
         this.readOnly = readOnly;
     }
     
-    /**
-     * Gets or creates a DocumentBuilder.
-     */
-    protected DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
-        if (this.documentBuilder != null) {
-            return this.documentBuilder;
-        } else {
-            // create the document builder
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            this.documentBuilder = factory.newDocumentBuilder();
-            return this.documentBuilder;
-        }
-    }
-    
     /**
      * Determines whether this FedoraClient is read-only.
      */
@@ -229,46 +242,6 @@ public class FedoraRestApiWrapper {
         return this.fedoraBaseUrl;
     }
     
-    /**
-     * Gets or creates and XPath configured with namespaces appropriate
-     * for all other internal methods.
-     */
-    protected XPath getXPath() {
-        if (this.xpath != null) {
-            return this.xpath;
-        } else {
-            this.xpath = XPathFactory.newInstance().newXPath();
-            this.xpath.setNamespaceContext(this.createNamespaceContext());
-            return this.xpath;
-        }
-    }
-    
-    /**
-     * Creates a MapNamespace context to be attached to the
-     * XPath when it's generated.
-     * 
-     * Subclasses may override this method, but should ensure that the
-     * MapNamespaceContext returned by this class has a superset of the
-     * mappings to ensure that other methods will function as expected.
-     */
-    protected MapNamespaceContext createNamespaceContext() {
-        // create the xpath with fedora namespaces built in
-        MapNamespaceContext nsc = new MapNamespaceContext();
-        nsc.setNamespace("fedora-types", "http://www.fedora.info/definitions/1/0/types/");
-        nsc.setNamespace("sparql", "http://www.w3.org/2001/sw/DataAccess/rf1/result");
-        nsc.setNamespace("foxml", "info:fedora/fedora-system:def/foxml#");
-        nsc.setNamespace("rdf", "http://www.w3.org/1999/02/22-rdf-syntax-ns#");
-        nsc.setNamespace("fedora", "info:fedora/fedora-system:def/relations-external#");
-        nsc.setNamespace("rdfs", "http://www.w3.org/2000/01/rdf-schema#");
-        nsc.setNamespace("fedora-model", "info:fedora/fedora-system:def/model#");
-        nsc.setNamespace("oai", "http://www.openarchives.org/OAI/2.0/");
-        nsc.setNamespace("oai_dc", "http://www.openarchives.org/OAI/2.0/oai_dc/", "http://www.openarchives.org/OAI/2.0/oai_dc.xsd");
-        nsc.setNamespace("dc", "http://purl.org/dc/elements/1.1/"); 
-        nsc.setNamespace("xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        nsc.setNamespace("fedora-management", "http://www.fedora.info/definitions/1/0/management/", "http://www.fedora.info/definitions/1/0/datastreamHistory.xsd");
-        return nsc;
-    }
-    
     /**
      * Uses the Resource Index search to find the objects with the given
      * dc.identifier.
@@ -281,33 +254,124 @@ public class FedoraRestApiWrapper {
      */
     public List<String> dcIdentifierLookup(String identifier) throws FedoraException, IOException {
         String riSearchUrl = this.fedoraBaseUrl + (this.fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch?type=tuples&lang=itql&format=Sparql&query=select%20%24member%20from%20%3C%23ri%3E%20where%20%24member%20%3Cdc%3Aidentifier%3E%20'" + URLEncoder.encode(identifier, "UTF-8")+ "'";
-        try {
-            List<String> pids = new ArrayList<String>();
-            Document doc = this.getDocumentBuilder().parse(new InputSource(new URL(riSearchUrl).openStream()));
-            NodeList children = (NodeList) this.getXPath().evaluate("//sparql:sparql/sparql:results/sparql:result/sparql:member", doc, XPathConstants.NODESET);
-            if (children.getLength() == 0) {
-                LOGGER.warn("No object found with dc.identifier=\"" + identifier + "\"");
-                return pids;
-            } else  {
-                
-                for (int i = 0; i < children.getLength(); i ++) {
-                    String pid = ((Element) children.item(i)).getAttribute("uri").replace("info:fedora/", "");
-                    LOGGER.debug("PID, \"" + pid + "\", found object with dc.identifier=\"" + identifier + "\"");
-                    pids.add(pid);
-                }
-                return pids;
+        List<String> pids = new ArrayList<String>();
+        for (String[] result : riSearch(riSearchUrl, "member")) {
+            LOGGER.debug("PID, \"" + result[0] + "\", found object with dc.identifier=\"" + identifier + "\"");
+            pids.add(result[0]);
+        }
+        if (pids.isEmpty()) {
+            LOGGER.warn("No object found with dc.identifier=\"" + identifier + "\"");
+        }
+        return pids;
+    }
+
+    /**
+     * Uses a single Resource Index search to find the dc.identifier
+     * values of every object with the given content model.  This is
+     * far cheaper than calling dcIdentifierLookup() for each of 
+     * those objects.
+     * @param contentModelPid the pid of the content model
+     * @returns a Map (possibly empty, but never null) from each 
+     * dc.identifier value to the pids of the objects that have that
+     * identifier.
+     */
+    public Map<String, List<String>> dcIdentifierLookupByContentModel(String contentModelPid) throws FedoraException, IOException {
+        String riSearchUrl = this.fedoraBaseUrl + (this.fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch?type=tuples&lang=itql&format=Sparql&query=select%20%24member%20%24identifier%20from%20%3C%23ri%3E%20where%20%24member%20%3Cfedora-model%3AhasModel%3E%20%3Cinfo%3Afedora/" + URLEncoder.encode(contentModelPid, "UTF-8") + "%3E%20and%20%24member%20%3Cdc%3Aidentifier%3E%20%24identifier";
+        Map<String, List<String>> idToPids = new HashMap<String, List<String>>();
+        List<String[]> results = riSearch(riSearchUrl, "member", "identifier");
+        for (String[] result : results) {
+            String pid = result[0];
+            String identifier = result[1] == null ? "" : result[1];
+            List<String> pids = idToPids.get(identifier);
+            if (pids == null) {
+                pids = new ArrayList<String>(1);
+                idToPids.put(identifier, pids);
             }
-        } catch (MalformedURLException ex) {
-            throw new FedoraException(ex);
-        } catch (SAXException ex) {
-            throw new FedoraResponseParsingException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new FedoraResponseParsingException(ex);
-        } catch (XPathExpressionException ex) {
-            throw new FedoraException(ex);
+            pids.add(pid);
         }
+        LOGGER.debug(results.size() + " identifiers found for objects with content model \"" + contentModelPid + "\"");
+        return idToPids;
     }
 
+    /**
+     * Uses a single Resource Index SPARQL query to list the 
+     * datastreams of each of the given objects and of every object
+     * related to them by the "hasMetadata" relationship.  This 
+     * replaces a call to getRelatedPids() and a call to 
+     * listDatastreams() for each object involved.
+     * @param pids the pids of the objects to query
+     * @returns a Map from each of the given pids (that has any 
+     * datastreams) to a Map from the pid of that object and each 
+     * object related to it with "hasMetadata" to the ids of that
+     * object's datastreams.  The given pid is always the first key
+     * of its Map.
+     * @throws FedoraException if the resource index is unavailable
+     * or the response cannot be parsed
+     */
+    public Map<String, Map<String, List<String>>> listDatastreamsWithMetadataObjects(Collection<String> pids) throws FedoraException, IOException {
+        Map<String, Map<String, List<String>>> results = new HashMap<String, Map<String, List<String>>>();
+        if (pids.isEmpty()) {
+            return results;
+        }
+        StringBuilder filter = new StringBuilder();
+        for (String pid : pids) {
+            filter.append(filter.length() == 0 ? "" : " || ");
+            filter.append("?item = <info:fedora/" + pid + ">");
+            Map<String, List<String>> objects = new LinkedHashMap<String, List<String>>();
+            objects.put(pid, new ArrayList<String>());
+            results.put(pid, objects);
+        }
+        String query = "select ?item ?obj ?ds where { " 
+            + "{ ?item <info:fedora/fedora-system:def/view#disseminates> ?ds } "
+            + "UNION { ?item <info:fedora/fedora-system:def/relations-external#hasMetadata> ?obj . ?obj <info:fedora/fedora-system:def/view#disseminates> ?ds } "
+            + "FILTER (" + filter + ") }";
+        String riSearchUrl = this.fedoraBaseUrl + (this.fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch?type=tuples&lang=sparql&format=Sparql&query=" + URLEncoder.encode(query, "UTF-8");
+        for (String[] result : riSearch(riSearchUrl, "item", "obj", "ds")) {
+            String itemPid = result[0];
+            String objPid = result[1];
+            String dsUri = result[2];
+            if (objPid == null) {
+                // the datastream is on the item itself
+                objPid = itemPid;
+            }
+            Map<String, List<String>> objects = results.get(itemPid);
+            if (objects == null || dsUri == null || !dsUri.startsWith(objPid + "/")) {
+                throw new FedoraException("Unexpected resource index result: item=" + itemPid + ", obj=" + objPid + ", ds=" + dsUri);
+            }
+            List<String> dsIds = objects.get(objPid);
+            if (dsIds == null) {
+                dsIds = new ArrayList<String>();
+                objects.put(objPid, dsIds);
+            }
+            dsIds.add(dsUri.substring(objPid.length() + 1));
+        }
+        return results;
+    }
+    
+    /**
+     * Performs the given resource index search (which must request
+     * the "Sparql" format) using the pooled HTTP client and parses 
+     * the response as it's read.
+     * @param riSearchUrl the complete resource index search URL
+     * @param variables the names of the variables whose values are 
+     * returned for each result
+     * @return a list of the results, each an array with the values
+     * (or null) of the given variables in order
+     * @see FedoraResponseParser#parseSparqlResults(InputStream, String...)
+     */
+    private List<String[]> riSearch(String riSearchUrl, String ... variables) throws FedoraException, IOException {
+        GetMethod get = new GetMethod(riSearchUrl);
+        try {
+            int status = this.client.executeMethod(get);
+            if (status != HttpStatus.SC_OK) {
+                throw new FedoraException("Resource index search \"" + riSearchUrl + "\" failed: " + get.getStatusLine());
+            }
+            return FedoraResponseParser.parseSparqlResults(get.getResponseBodyAsStream(), variables);
+        } finally {
+            get.releaseConnection();
+        }
+    }
+    
     /**
      * Gets access InputStream access to a given datastream.
      * The current implementation uses the new REST API.
@@ -323,17 +387,22 @@ public class FedoraRestApiWrapper {
     public InputStream getDatastream(String pid, String dsName, String asOfDateTime) throws IOException {
         String url = this.fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsName + "/content" + (asOfDateTime != null ? "?asOfDateTime=" + URLEncoder.encode(asOfDateTime, "UTF-8") : "");
         GetMethod get = new GetMethod(url);
-        this.client.executeMethod(get);
         int status = this.client.executeMethod(get);
         if (status != HttpStatus.SC_CREATED && status != HttpStatus.SC_OK) {
+            get.releaseConnection();
             throw new RuntimeException("REST action \"" + url + "\" failed: " + get.getStatusLine());
         }
+        // the connection is released when the stream is closed
+        // or read to the end
         return get.getResponseBodyAsStream();
     }
     
     /**
      * Replaces the given object's datastream with an XML serialized version of the
-     * provided document.
+     * provided document.  The document is serialized once into a buffer that 
+     * computes its MD5 checksum as it's written and a single request for the
+     * datastream profile determines both whether the datastream exists and 
+     * its current checksum.  If the checksums match, nothing is sent to fedora.
      * @param pid the pid of the object to update
      * @param dsName the id of the datastream to replace or create
      * @param controlGroup the control group (used when a datasteram is created)
@@ -341,74 +410,174 @@ public class FedoraRestApiWrapper {
      * @param mimetype the mime type of the datastream
      * @param doc the Document for the XML datasteram
      * @param filename the filename from which the XML was read
+     * @return a summary of what was done, including per-phase timings
+     */
+    public DatastreamWriteResult addOrReplaceDatastreamWithDocument(String pid, String dsName, ControlGroup controlGroup, String label, String mimetype, Document doc, String filename) throws FedoraException {
+        return addOrReplaceDatastreamWithDocument(pid, dsName, controlGroup, label, mimetype, doc, filename, null);
+    }
+    
+    /**
+     * Replaces the given object's datastream with an XML serialized version of the
+     * provided document, but only if the datastream hasn't been modified since the
+     * given date.  The date is compared to the create date of the current version 
+     * of the datastream in the profile (which is fetched anyway to compare 
+     * checksums) and is also passed to fedora as the "lastModifiedDate" parameter
+     * so that fedora (3.4 and later) rejects the modification if the datastream
+     * changed between the two requests.
+     * @param expectedLastModified the create date of the version of the datastream
+     * that is being replaced, or null to replace the datastream unconditionally
+     * @throws FedoraConcurrentModificationException if the datastream doesn't 
+     * exist or has been modified since expectedLastModified
+     * @see #addOrReplaceDatastreamWithDocument(String, String, ControlGroup, String, String, Document, String)
      */
-    public void addOrReplaceDatastreamWithDocument(String pid, String dsName, ControlGroup controlGroup, String label, String mimetype, Document doc, String filename) throws FedoraException {
+    public DatastreamWriteResult addOrReplaceDatastreamWithDocument(String pid, String dsName, ControlGroup controlGroup, String label, String mimetype, Document doc, String filename, String expectedLastModified) throws FedoraException {
         if (this.readOnly) {
             throw new FedoraIllegalAccessException("This FedoraClient is READ ONLY!");
         }
         try {
-            DOMSource source = new DOMSource(doc);
-            StringWriter sWriter = new StringWriter();
-            StreamResult sResult = new StreamResult(sWriter);
-            TransformerFactory tFactory = TransformerFactory.newInstance();
-            Transformer t = tFactory.newTransformer();
-            t.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-            t.setOutputProperty(OutputKeys.METHOD, "xml");
-            t.setOutputProperty(OutputKeys.INDENT, "yes");
-            t.transform(source, sResult);
-            sResult.getWriter().flush();
-            String string = sWriter.toString();
-            sWriter.close();
-            byte[] bytes = sWriter.getBuffer().toString().getBytes("UTF-8"); 
-            
-            String md5hash = "";
+            // serialize and hash the document
             long start = System.currentTimeMillis();
-            md5hash = XMLComparisonUtil.computeHash(bytes).toLowerCase();
-            long end = System.currentTimeMillis();
-            LOGGER.debug(this.fedoraBaseUrl + ": Computed checksum for new " + dsName + " datastream in " + (end - start) + "ms (MD5=" + md5hash + ")");
+            final XMLComparisonUtil.HashingByteArrayOutputStream buffer = new XMLComparisonUtil.HashingByteArrayOutputStream(8192);
+            TransformationHelper.getInstance().serialize(doc, new StreamResult(buffer), true);
+            String md5hash = buffer.getMD5Hash().toLowerCase();
+            long serializationTime = System.currentTimeMillis() - start;
             
-            String remoteMD5hash = hasDatastream(pid, dsName) ? getMD5Checksum(pid, dsName) : "null";
-            if (md5hash.equals(remoteMD5hash)) {
+            // fetch the current checksum (if the datastream exists)
+            start = System.currentTimeMillis();
+            DatastreamProfile profile = getDatastreamProfile(pid, dsName);
+            String remoteMD5hash = (profile == null ? null : profile.getProperty(DatastreamProfile.DatastreamProperty.DS_CHECKSUM));
+            long profileTime = System.currentTimeMillis() - start;
+            if (expectedLastModified != null) {
+                if (profile == null) {
+                    throw new FedoraConcurrentModificationException("Datastream " + dsName + " no longer exists on " + pid + "!");
+                } else if (!expectedLastModified.equals(profile.getProperty(DatastreamProfile.DatastreamProperty.DS_CREATE_DATE))) {
+                    throw new FedoraConcurrentModificationException("Datastream " + dsName + " on " + pid + " has been modified since " + expectedLastModified + "!");
+                }
+            }
+            
+            DatastreamWriteResult result = null;
+            if (md5hash.equalsIgnoreCase(remoteMD5hash)) {
+                result = new DatastreamWriteResult(DatastreamWriteResult.Outcome.UNCHANGED, md5hash, buffer.size(), serializationTime, profileTime, 0);
                 LOGGER.info(this.fedoraBaseUrl + ": Datastream " + dsName + " was unaltered.");
             } else {
                 LOGGER.info(md5hash + " != " + remoteMD5hash);
-                if (this.hasDatastream(pid, dsName)) {
+                start = System.currentTimeMillis();
+                String url = null;
+                if (profile != null) {
                     // replace current copy
-                    String url = this.fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsName + "?versionable=true" + (label != null ? "&dsLabel=" + URLEncoder.encode(truncateLabel(label), "UTF-8") : "") + "&dsState=A&mimeType=" + mimetype + "&checksumType=MD5";
-                    PostMethod filePost = new PostMethod(url);
-                    Part[] parts = {
-                            new FilePart(filename, new ByteArrayPartSource(filename, bytes))
+                    url = this.fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsName + "?versionable=true" + (label != null ? "&dsLabel=" + URLEncoder.encode(truncateLabel(label), "UTF-8") : "") + "&dsState=A&mimeType=" + mimetype + "&checksumType=MD5" + (expectedLastModified != null ? "&lastModifiedDate=" + URLEncoder.encode(expectedLastModified, "UTF-8") : "");
+                } else {
+                    // create a new copy
+                    url = this.fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsName + "?controlGroup=" + controlGroup + (label != null ? "&dsLabel=" + URLEncoder.encode(truncateLabel(label), "UTF-8") : "") + "&versionable=true&dsState=A&mimeType=" + mimetype + "&checksumType=MD5";
+                }
+                PostMethod filePost = new PostMethod(url);
+                Part[] parts = {
+                        new FilePart(filename, new BufferPartSource(filename, buffer))
                     };
-                    filePost.setRequestEntity(
-                            new MultipartRequestEntity(parts, filePost.getParams())
-                        );
+                filePost.setRequestEntity(
+                        new MultipartRequestEntity(parts, filePost.getParams())
+                    );
+                try {
                     int status = this.client.executeMethod(filePost);
-                    if (status != HttpStatus.SC_CREATED && status != HttpStatus.SC_OK) {
+                    if (status == HttpStatus.SC_CONFLICT && expectedLastModified != null) {
+                        throw new FedoraConcurrentModificationException("Datastream " + dsName + " on " + pid + " was modified after " + expectedLastModified + "!");
+                    } else if (status != HttpStatus.SC_CREATED && (profile == null || status != HttpStatus.SC_OK)) {
                         throw new RuntimeException("REST action \"" + url + "\" failed: " + filePost.getStatusLine());
                     }
+                } finally {
+                    filePost.releaseConnection();
+                }
+                long postTime = System.currentTimeMillis() - start;
+                if (profile != null) {
+                    result = new DatastreamWriteResult(DatastreamWriteResult.Outcome.REPLACED, md5hash, buffer.size(), serializationTime, profileTime, postTime);
                     LOGGER.info(this.fedoraBaseUrl + ": Replaced datastream " + dsName + " on " + pid + ".");
                 } else {
-                    // create a new copy
-                    String url = this.fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsName + "?controlGroup=" + controlGroup + (label != null ? "&dsLabel=" + URLEncoder.encode(truncateLabel(label), "UTF-8") : "") + "&versionable=true&dsState=A&mimeType=" + mimetype + "&checksumType=MD5";
-                    PostMethod filePost = new PostMethod(url);
-                    Part[] parts = {
-                            new FilePart(filename, new ByteArrayPartSource(filename, bytes))
-                        };
-                    filePost.setRequestEntity(
-                            new MultipartRequestEntity(parts, filePost.getParams())
-                        );
-                    int status = this.client.executeMethod(filePost);
-                    if (status != HttpStatus.SC_CREATED) {
-                        throw new RuntimeException("REST action \"" + url + "\" failed: " + filePost.getStatusLine());
-                    }
+                    result = new DatastreamWriteResult(DatastreamWriteResult.Outcome.CREATED, md5hash, buffer.size(), serializationTime, profileTime, postTime);
                     LOGGER.info(this.fedoraBaseUrl + ": Added datastream " + dsName + " on " + pid + ".");
                 }
             }
+            LOGGER.debug(this.fedoraBaseUrl + ": Wrote " + dsName + " on " + pid + ": " + result);
+            return result;
+        } catch (FedoraException ex) {
+            throw ex;
         } catch (Exception ex) {
             throw new FedoraException(ex);
         }
     }
     
+    /**
+     * Gets the profile of the given datastream with a single request.
+     * @return the DatastreamProfile or null if the object has no
+     * datastream with the given id
+     * @throws FedoraException if the object doesn't exist or any 
+     * other error occurs
+     */
+    public DatastreamProfile getDatastreamProfile(String pid, String dsName) throws FedoraException, IOException {
+        String url = this.fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsName + "?format=xml";
+        GetMethod get = new GetMethod(url);
+        int status;
+        String statusLine;
+        try {
+            status = this.client.executeMethod(get);
+            if (status == HttpStatus.SC_OK) {
+                return FedoraResponseParser.parseDatastreamProfile(get.getResponseBodyAsStream());
+            }
+            statusLine = String.valueOf(get.getStatusLine());
+        } finally {
+            get.releaseConnection();
+        }
+        // the connection is released before any follow-up request so
+        // that this can't wait on itself for a pooled connection
+        if (status == HttpStatus.SC_NOT_FOUND && hasObject(pid)) {
+            return null;
+        } else {
+            throw new FedoraException("REST action \"" + url + "\" failed: " + statusLine);
+        }
+    }
+    
+    /**
+     * Determines whether an object with the given pid exists.  This
+     * is used only to distinguish a missing datastream from a missing
+     * object, which fedora reports with the same status code.
+     */
+    private boolean hasObject(String pid) throws IOException {
+        GetMethod get = new GetMethod(this.fedoraBaseUrl + "/objects/" + pid + "?format=xml");
+        try {
+            return this.client.executeMethod(get) == HttpStatus.SC_OK;
+        } finally {
+            get.releaseConnection();
+        }
+    }
+    
+    /**
+     * A multipart PartSource that reads directly from a 
+     * HashingByteArrayOutputStream rather than from a copy of its
+     * content.
+     */
+    private static class BufferPartSource implements PartSource {
+        
+        private String filename;
+        
+        private XMLComparisonUtil.HashingByteArrayOutputStream buffer;
+        
+        public BufferPartSource(String filename, XMLComparisonUtil.HashingByteArrayOutputStream buffer) {
+            this.filename = filename;
+            this.buffer = buffer;
+        }
+        
+        public InputStream createInputStream() {
+            return buffer.createInputStream();
+        }
+
+        public String getFileName() {
+            return filename;
+        }
+
+        public long getLength() {
+            return buffer.size();
+        }
+    }
+    
     /**
      * Checks whether the object with the given PID has a datastream
      * with the given identifier (dsName).
@@ -421,8 +590,12 @@ public class FedoraRestApiWrapper {
      */
     public boolean hasDatastream(String pid, String dsName) throws IOException, FedoraException {
         GetMethod get = new GetMethod(this.fedoraBaseUrl + "/objects/" + pid + "/datastreams?format=xml");
-        this.client.executeMethod(get);
-        return (readStream(get.getResponseBodyAsStream(), get.getResponseCharSet()).indexOf("dsid=\"" + dsName + "\"") != -1);
+        try {
+            this.client.executeMethod(get);
+            return (readStream(get.getResponseBodyAsStream(), get.getResponseCharSet()).indexOf("dsid=\"" + dsName + "\"") != -1);
+        } finally {
+            get.releaseConnection();
+        }
     }
 
     /**
@@ -430,15 +603,7 @@ public class FedoraRestApiWrapper {
      * is stored null is returned. 
      */
     public String getMD5Checksum(String pid, String dsName) throws FedoraException, IOException {
-        try {
-            return getDatastreamProperty(pid, dsName, DatastreamProfile.DatastreamProperty.DS_CHECKSUM);
-        } catch (XPathExpressionException ex) {
-            throw new FedoraException(ex);
-        } catch (SAXException ex) {
-            throw new FedoraException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new FedoraException(ex);
-        }
+        return getDatastreamProperty(pid, dsName, DatastreamProfile.DatastreamProperty.DS_CHECKSUM);
     }
     
 
@@ -453,24 +618,11 @@ public class FedoraRestApiWrapper {
      */
     public List<String> listDatastreams(String pid) throws FedoraException, IOException {
         GetMethod get = new GetMethod(this.fedoraBaseUrl + "/objects/" + pid + "/datastreams?format=xml");
-        this.client.executeMethod(get);
         try {
-            Document dsDoc = this.getDocumentBuilder().parse(get.getResponseBodyAsStream());
-            NodeList elements = dsDoc.getDocumentElement().getChildNodes();
-            List<String> dsNames = new ArrayList<String>(elements.getLength());
-            for (int i = 0; i < elements.getLength(); i ++) {
-                if (elements.item(i) instanceof Element) {
-                    Element el = (Element) elements.item(i);
-                    if (el.getNodeName().equals("datastream")) {
-                        dsNames.add(el.getAttribute("dsid"));
-                    }
-                }
-            }
-            return dsNames;
-        } catch (SAXException ex) {
-            throw new FedoraResponseParsingException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new FedoraResponseParsingException(ex);
+            this.client.executeMethod(get);
+            return FedoraResponseParser.parseDatastreamList(get.getResponseBodyAsStream());
+        } finally {
+            get.releaseConnection();
         }
     }
     
@@ -481,44 +633,38 @@ public class FedoraRestApiWrapper {
      * @param dsName the name of the datastream who's property is being
      * queried
      * @param prop the property to query.
-     * @return the value of the property
+     * @return the value of the property (or an empty string if the
+     * profile doesn't include the property)
      */
-    public String getDatastreamProperty(String pid, String dsName, DatastreamProfile.DatastreamProperty prop) throws HttpException, IOException, SAXException, ParserConfigurationException, FedoraException, XPathExpressionException {
+    public String getDatastreamProperty(String pid, String dsName, DatastreamProfile.DatastreamProperty prop) throws IOException, FedoraException {
         String url = this.fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsName + "?format=xml";
         GetMethod get = new GetMethod(url);
-        this.client.executeMethod(get);
-        if (get.getStatusCode() == 200) {
-            Document xml  = this.getDocumentBuilder().parse(get.getResponseBodyAsStream());
-            
-            // compatible with fedora 3.4
-            String value = (String) this.getXPath().evaluate("/fedora-management:datastreamProfile/fedora-management:" + prop.getPropertyName(), xml, XPathConstants.STRING);
-            if (value != null) {
-                return value;
+        try {
+            this.client.executeMethod(get);
+            if (get.getStatusCode() == 200) {
+                // the parser handles the profile formats of both
+                // fedora 3.2 and fedora 3.4
+                return FedoraResponseParser.parseDatastreamProfile(get.getResponseBodyAsStream()).getProperty(prop);
             } else {
-                // compatible with fedora 3.2
-                return (String) this.getXPath().evaluate("/datastreamProfile/" + prop.getPropertyName(), xml, XPathConstants.STRING);
+                throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
             }
-
-        } else {
-            throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+        } finally {
+            get.releaseConnection();
         }
     }
     
-    public List<DatastreamProfile> getDatastreamHistory(String pid, String dsId) throws HttpException, IOException, FedoraException, SAXException, ParserConfigurationException, XPathExpressionException {
+    public List<DatastreamProfile> getDatastreamHistory(String pid, String dsId) throws IOException, FedoraException {
         String url = this.fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsId + "/history?format=xml";
         GetMethod get = new GetMethod(url);
-        this.client.executeMethod(get);
-        if (get.getStatusCode() == 200) {
-            List<DatastreamProfile> history = new ArrayList<DatastreamProfile>();
-            Document xml = this.getDocumentBuilder().parse(get.getResponseBodyAsStream());
-            NodeList nl = (NodeList) this.getXPath().evaluate("/fedora-management:datastreamHistory/fedora-management:datastreamProfile", xml, XPathConstants.NODESET);
-            for (int i = 0; i < nl.getLength(); i ++) {
-                Element el = (Element) nl.item(i);
-                history.add(new DatastreamProfile(this, el));
+        try {
+            this.client.executeMethod(get);
+            if (get.getStatusCode() == 200) {
+                return FedoraResponseParser.parseDatastreamHistory(get.getResponseBodyAsStream());
+            } else {
+                throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
             }
-            return history;
-        } else {
-            throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+        } finally {
+            get.releaseConnection();
         }
     }
     
@@ -533,26 +679,17 @@ public class FedoraRestApiWrapper {
      */
     public String getPidForPURL(String PURL) throws FedoraException, IOException {
         String riSearchUrl = this.fedoraBaseUrl + (this.fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch?type=tuples&lang=itql&format=Sparql&query=select%20%24member%20from%20%3C%23ri%3E%20where%20%24member%20%3Cdc%3Aidentifier%3E%20'" + URLEncoder.encode(PURL, "UTF-8")+ "'";
-        try {
-            Document doc = this.getDocumentBuilder().parse(new InputSource(new URL(riSearchUrl).openStream()));
-            NodeList children = (NodeList) this.getXPath().evaluate("//sparql:sparql/sparql:results/sparql:result/sparql:member", doc, XPathConstants.NODESET);
-            if (children.getLength() == 0) {
-                LOGGER.warn("No PID found for PURL: " + PURL);
-                return null;
-            } else if (children.getLength() == 1) {
-                String pid = ((Element) children.item(0)).getAttribute("uri").replace("info:fedora/", "");
-                LOGGER.debug("PID, \"" + pid + "\", found for PURL: " + PURL);
-                return pid;
-            } else {
-                LOGGER.error(children.getLength() + " PIDs found for PURL: " + PURL);
-                return null;
-            }
-        } catch (SAXException ex) {
-            throw new FedoraResponseParsingException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new FedoraResponseParsingException(ex);
-        } catch (XPathExpressionException ex) {
-            throw new FedoraResponseParsingException(ex);
+        List<String[]> results = riSearch(riSearchUrl, "member");
+        if (results.isEmpty()) {
+            LOGGER.warn("No PID found for PURL: " + PURL);
+            return null;
+        } else if (results.size() == 1) {
+            String pid = results.get(0)[0];
+            LOGGER.debug("PID, \"" + pid + "\", found for PURL: " + PURL);
+            return pid;
+        } else {
+            LOGGER.error(results.size() + " PIDs found for PURL: " + PURL);
+            return null;
         }
     }
     
@@ -574,16 +711,9 @@ public class FedoraRestApiWrapper {
     public List<String> getRelatedPids(String pid, String relationshipType) throws FedoraException, IOException {
         List<String> pids = new ArrayList<String>();
         String riSearchUrl = this.fedoraBaseUrl + (this.fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch?type=tuples&lang=itql&format=Sparql&query=select%20%24child%20from%20%3C%23ri%3E%20%0Awhere%20%24child%20%3C" + URLEncoder.encode(relationshipType, "UTF-8")+ "%3E%20%3Cinfo%3Afedora/" + URLEncoder.encode(pid, "UTF-8") + "%3E";
-        try {
-            Document doc = this.getDocumentBuilder().parse(new InputSource( new URL(riSearchUrl).openStream()));
-            NodeList children = doc.getDocumentElement().getElementsByTagName("child");
-            for (int i = 0; i < children.getLength(); i ++) {
-                pids.add(((Element) children.item(i)).getAttribute("uri").replace("info:fedora/", ""));
-            }
-        } catch (SAXException ex) {
-            throw new FedoraResponseParsingException(ex);
-        } catch (ParserConfigurationException ex) {
-            throw new FedoraResponseParsingException(ex);        }
+        for (String[] result : riSearch(riSearchUrl, "child")) {
+            pids.add(result[0]);
+        }
         return pids;
     }
     
@@ -612,16 +742,9 @@ public class FedoraRestApiWrapper {
         } else {
             List<String> pids = new ArrayList<String>();
             String riSearchUrl = this.fedoraBaseUrl + (this.fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch?type=tuples&lang=itql&format=Sparql&query=select%20%24child%20from%20%3C%23ri%3E%20%0Awhere%20%24child%20%3C" + URLEncoder.encode(relationshipType, "UTF-8")+ "%3E%20%3Cinfo%3Afedora/" + URLEncoder.encode(pid, "UTF-8") + "%3Eminus%20%24child%0A%20%20%20%20%20%20%20%20%3Cfedora-model%3Astate%3E%0A%20%20%20%20%20%20%20%20%3Cinfo%3Afedora%2Ffedora-system%3Adef%2Fmodel%23Deleted%3E";
-            try {
-                Document doc = this.getDocumentBuilder().parse(new InputSource( new URL(riSearchUrl).openStream()));
-                NodeList children = doc.getDocumentElement().getElementsByTagName("child");
-                for (int i = 0; i < children.getLength(); i ++) {
-                    pids.add(((Element) children.item(i)).getAttribute("uri").replace("info:fedora/", ""));
-                }
-            } catch (SAXException ex) {
-                throw new FedoraResponseParsingException(ex);
-            } catch (ParserConfigurationException ex) {
-                throw new FedoraResponseParsingException(ex);        }
+            for (String[] result : riSearch(riSearchUrl, "child")) {
+                pids.add(result[0]);
+            }
             return pids;
         }
     }
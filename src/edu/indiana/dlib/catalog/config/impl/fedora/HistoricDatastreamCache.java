@@ -0,0 +1,354 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config.impl.fedora;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ *   A disk cache of past versions of fedora datastreams and of 
+ *   datastream version histories.  Past versions of a datastream 
+ *   never change, so once fetched, the content of the version of a 
+ *   datastream that was current at a given date may be stored 
+ *   indefinitely.  Each cached file is named by a hash of the PID, 
+ *   datastream id and date (or of the PID and datastream id for
+ *   history listings) and files are written to a temporary file 
+ *   and renamed so that a partially written file is never read.
+ * </p>
+ * <p>
+ *   A history listing (the creation dates of every version, newest
+ *   first) is only immutable up to its newest entry, so callers
+ *   must confirm that the first date in a cached listing is still
+ *   the creation date of the current version before using it.
+ * </p>
+ * <p>
+ *   The total size of the cached files is bounded; when exceeded,
+ *   the least recently used files are deleted.  Until a cache 
+ *   directory is set (see SimpleCacheManager) nothing is cached.
+ *   This class is thread-safe.
+ * </p>
+ */
+public class HistoricDatastreamCache {
+
+    private static final Logger LOGGER = Logger.getLogger(HistoricDatastreamCache.class);
+    
+    /**
+     * The default maximum total size of the cached files (100 MB).
+     */
+    public static final long DEFAULT_MAX_SIZE = 100L * 1024L * 1024L;
+    
+    private static final String VERSION_SUFFIX = ".xml";
+    
+    private static final String HISTORY_SUFFIX = ".history";
+    
+    private static HistoricDatastreamCache INSTANCE;
+    
+    public static synchronized HistoricDatastreamCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new HistoricDatastreamCache();
+        }
+        return INSTANCE;
+    }
+    
+    private File cacheDirectory;
+    
+    private long maxSize;
+    
+    private long size;
+    
+    /**
+     * A map from the name of every cached file to its size,
+     * in access order.
+     */
+    private LinkedHashMap<String, Long> files;
+    
+    private long hits;
+    
+    private long misses;
+    
+    private HistoricDatastreamCache() {
+        files = new LinkedHashMap<String, Long>(16, .75f, true);
+    }
+    
+    /**
+     * Sets the directory in which cached files are stored.  Files 
+     * already present from an earlier run are reused (least recently
+     * modified files being the first evicted).
+     * @param maxSize the maximum total size in bytes of the cached
+     * files
+     */
+    public synchronized void setCacheDirectory(File directory, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory + "!");
+        }
+        this.cacheDirectory = directory;
+        this.maxSize = maxSize;
+        this.files.clear();
+        this.size = 0;
+        File[] existing = directory.listFiles();
+        Arrays.sort(existing, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long diff = f1.lastModified() - f2.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }});
+        for (File file : existing) {
+            if (file.getName().endsWith(VERSION_SUFFIX) || file.getName().endsWith(HISTORY_SUFFIX)) {
+                files.put(file.getName(), file.length());
+                size += file.length();
+            } else {
+                // an incomplete temporary file
+                file.delete();
+            }
+        }
+        evict();
+        LOGGER.info("History cache initialized at \"" + directory + "\" with " + files.size() + " files (" + size + " bytes).");
+    }
+    
+    /**
+     * Gets the content of the version of the datastream that was
+     * current at the given date, or null if it isn't cached.
+     */
+    public byte[] getVersion(String pid, String dsId, String date) {
+        File file = lookup(getFilename(pid + "/" + dsId + "/" + date, VERSION_SUFFIX));
+        if (file == null) {
+            return null;
+        }
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    baos.write(buffer, 0, read);
+                }
+                return baos.toByteArray();
+            } finally {
+                is.close();
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to read cached file " + file + "!", ex);
+            remove(file.getName());
+            return null;
+        }
+    }
+    
+    /**
+     * Caches the content of the version of the datastream that was
+     * current at the given date.  Callers must not cache a date
+     * after which the datastream may yet be modified.
+     */
+    public void putVersion(String pid, String dsId, String date, byte[] content) {
+        String name = getFilename(pid + "/" + dsId + "/" + date, VERSION_SUFFIX);
+        File tempFile = createTempFile(name);
+        if (tempFile == null) {
+            return;
+        }
+        try {
+            OutputStream os = new FileOutputStream(tempFile);
+            try {
+                os.write(content);
+            } finally {
+                os.close();
+            }
+            store(tempFile, name);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to cache " + pid + "/" + dsId + " as of " + date + "!", ex);
+            tempFile.delete();
+        }
+    }
+    
+    /**
+     * Gets the cached creation dates of the versions of the given
+     * datastream (newest first) or null if none are cached.  The
+     * returned list may be missing versions created after it was
+     * cached.
+     */
+    public List<String> getHistory(String pid, String dsId) {
+        File file = lookup(getFilename(pid + "/" + dsId, HISTORY_SUFFIX));
+        if (file == null) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                List<String> dates = new ArrayList<String>();
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0) {
+                        dates.add(line);
+                    }
+                }
+                return dates;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to read cached file " + file + "!", ex);
+            remove(file.getName());
+            return null;
+        }
+    }
+    
+    /**
+     * Caches the creation dates of the versions of the given 
+     * datastream (newest first), replacing any cached listing.
+     */
+    public void putHistory(String pid, String dsId, List<String> dates) {
+        String name = getFilename(pid + "/" + dsId, HISTORY_SUFFIX);
+        File tempFile = createTempFile(name);
+        if (tempFile == null) {
+            return;
+        }
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+            try {
+                for (String date : dates) {
+                    writer.write(date);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            store(tempFile, name);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to cache the history of " + pid + "/" + dsId + "!", ex);
+            tempFile.delete();
+        }
+    }
+    
+    /**
+     * Gets the fraction of lookups that were satisfied from the
+     * cache.
+     */
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / (double) total;
+    }
+    
+    /**
+     * Gets the total size (in bytes) of the cached files.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    private synchronized File lookup(String name) {
+        if (cacheDirectory == null) {
+            return null;
+        }
+        if (files.get(name) == null) {
+            misses ++;
+            return null;
+        }
+        hits ++;
+        return new File(cacheDirectory, name);
+    }
+    
+    private synchronized File createTempFile(String name) {
+        if (cacheDirectory == null) {
+            return null;
+        }
+        try {
+            return File.createTempFile(name, ".tmp", cacheDirectory);
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to create temporary file in " + cacheDirectory + "!", ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Moves the given fully written temporary file into place and
+     * evicts files as needed to stay within the maximum size.
+     */
+    private synchronized void store(File tempFile, String name) throws IOException {
+        File file = new File(cacheDirectory, name);
+        Long replaced = files.remove(name);
+        if (replaced != null) {
+            size -= replaced;
+            file.delete();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + file + "!");
+        }
+        files.put(name, file.length());
+        size += file.length();
+        evict();
+    }
+    
+    private synchronized void remove(String name) {
+        Long removed = files.remove(name);
+        if (removed != null) {
+            size -= removed;
+        }
+        new File(cacheDirectory, name).delete();
+    }
+    
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            new File(cacheDirectory, eldest.getKey()).delete();
+        }
+    }
+    
+    private static String getFilename(String key, String suffix) {
+        try {
+            return XMLComparisonUtil.computeHash(key.getBytes("UTF-8")) + suffix;
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new AssertionError(ex);
+        }
+    }
+    
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config.impl.fedora;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ *   A bounded cache of the mapping from dc.identifier values to 
+ *   fedora PIDs.  Because resolving an identifier requires a 
+ *   resource index query (one of the slowest fedora operations)
+ *   and the PID for an identifier never changes, resolved PIDs
+ *   are retained until they are evicted to make room for more
+ *   recently used ones.  Identifiers for which no object was found
+ *   are remembered for a short time only, since the object may
+ *   be ingested (or the resource index may catch up) at any time.
+ *   Identifiers that resolve to more than one PID are never
+ *   cached.
+ * </p>
+ * <p>
+ *   There is one instance for each fedora server so that every
+ *   ItemManager and ConfigurationManager that accesses the same
+ *   repository shares its cache.  This class is thread-safe.
+ * </p>
+ */
+public class PidCache {
+
+    public static final Logger LOGGER = Logger.getLogger(PidCache.class);
+    
+    /**
+     * The maximum number of identifiers whose resolution is
+     * retained.
+     */
+    private static final int MAX_ENTRIES = 100000;
+    
+    /**
+     * The time (in milliseconds) for which the absence of an
+     * object with a given identifier is remembered.
+     */
+    private static final long NEGATIVE_TTL = 60 * 1000;
+    
+    private static Map<String, PidCache> INSTANCES = new HashMap<String, PidCache>();
+    
+    /**
+     * Gets the PidCache for the fedora server at the given URL.
+     */
+    public static synchronized PidCache getInstance(String fedoraServerUrl) {
+        PidCache cache = INSTANCES.get(fedoraServerUrl);
+        if (cache == null) {
+            cache = new PidCache();
+            INSTANCES.put(fedoraServerUrl, cache);
+        }
+        return cache;
+    }
+    
+    /**
+     * A map from identifier to the single PID with that identifier
+     * or to null if no object had that identifier.  
+     */
+    private Map<String, String> idToPidMap;
+    
+    /**
+     * The time at which each negative result (a null value in the
+     * idToPidMap) was recorded.
+     */
+    private Map<String, Long> negativeResultTimes;
+    
+    private long hits;
+    
+    private long misses;
+    
+    private PidCache() {
+        idToPidMap = new LinkedHashMap<String, String>(1024, .75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > MAX_ENTRIES) {
+                    negativeResultTimes.remove(eldest.getKey());
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+        negativeResultTimes = new HashMap<String, Long>();
+    }
+    
+    /**
+     * Gets the PIDs of the objects with the given dc.identifier,
+     * using the cached value if one is available and querying the
+     * resource index (using the given client) otherwise.
+     * @returns a List (possibly empty, but never null) of pids with
+     * the given identifier.
+     */
+    public List<String> lookupPids(FedoraRestApiWrapper fedora, String id) throws FedoraException, IOException {
+        synchronized (this) {
+            if (idToPidMap.containsKey(id)) {
+                String pid = idToPidMap.get(id);
+                if (pid != null) {
+                    hits ++;
+                    return Collections.singletonList(pid);
+                } else if (System.currentTimeMillis() - negativeResultTimes.get(id) < NEGATIVE_TTL) {
+                    hits ++;
+                    return Collections.emptyList();
+                } else {
+                    idToPidMap.remove(id);
+                    negativeResultTimes.remove(id);
+                }
+            }
+            misses ++;
+        }
+        
+        // query the resource index without holding the lock
+        List<String> pids = fedora.dcIdentifierLookup(id);
+        if (pids.size() == 1) {
+            put(id, pids.get(0));
+        } else if (pids.isEmpty()) {
+            synchronized (this) {
+                idToPidMap.put(id, null);
+                negativeResultTimes.put(id, System.currentTimeMillis());
+            }
+        }
+        return pids;
+    }
+    
+    /**
+     * Populates the cache with the identifiers of every object with 
+     * the given content model using a single resource index query.
+     * @return the number of identifiers that were cached
+     */
+    public int warm(FedoraRestApiWrapper fedora, String contentModelPid) throws FedoraException, IOException {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for (Map.Entry<String, List<String>> entry : fedora.dcIdentifierLookupByContentModel(contentModelPid).entrySet()) {
+            if (entry.getValue().size() == 1) {
+                put(entry.getKey(), entry.getValue().get(0));
+                count ++;
+            }
+        }
+        LOGGER.info("Cached PIDs for " + count + " identifiers of " + contentModelPid + " objects in " + (System.currentTimeMillis() - start) + "ms.");
+        return count;
+    }
+    
+    /**
+     * Records the PID for an identifier that is known to be unique.
+     */
+    public synchronized void put(String id, String pid) {
+        idToPidMap.put(id, pid);
+        negativeResultTimes.remove(id);
+    }
+    
+    /**
+     * Removes any cached resolution for the given identifier.
+     */
+    public synchronized void invalidate(String id) {
+        idToPidMap.remove(id);
+        negativeResultTimes.remove(id);
+    }
+    
+    /**
+     * Gets the fraction of lookups that were answered from the
+     * cache, or 0 if there have been no lookups.
+     */
+    public synchronized double getHitRatio() {
+        return (hits + misses == 0 ? 0 : (double) hits / (double) (hits + misses));
+    }
+    
+    /**
+     * Gets the number of identifiers currently cached.
+     */
+    public synchronized int size() {
+        return idToPidMap.size();
+    }
+    
+}
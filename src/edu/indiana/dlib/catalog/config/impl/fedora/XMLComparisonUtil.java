@@ -30,21 +30,22 @@
  */
 package edu.indiana.dlib.catalog.config.impl.fedora;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.apache.log4j.Logger;
 import org.w3c.dom.Node;
 
+import edu.indiana.dlib.catalog.config.TransformationHelper;
+
 /**
  * TODO: memory usage and processing time could be dramatically reduced
  * if instead of cloning nodes and cutting out items to ignore we simply
@@ -61,14 +62,8 @@ public class XMLComparisonUtil {
      * Document.
      */
     public static String computeDocumentHash(Node node) throws TransformerException {
-        DOMSource source = new DOMSource(node);
         HashOutputStream hos = new HashOutputStream();
-        StreamResult sResult = new StreamResult(hos);
-        TransformerFactory tFactory = TransformerFactory.newInstance();
-        Transformer t = tFactory.newTransformer();
-        t.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-        t.setOutputProperty(OutputKeys.METHOD, "xml");
-        t.transform(source, sResult);
+        TransformationHelper.getInstance().serialize(node, new StreamResult(hos), false);
         return hos.getMD5Hash();
     }
     
@@ -92,21 +87,7 @@ public class XMLComparisonUtil {
         }
         
         public String getMD5Hash() {
-            byte[] inn = this.digest.digest();
-            byte ch = 0x00;
-            int i = 0;
-            String pseudo[] = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F"};
-            StringBuffer out = new StringBuffer(inn.length * 2);
-            while (i < inn.length) {
-                ch = (byte) (inn[i] & 0xF0);
-                ch = (byte) (ch >>> 4);
-                ch = (byte) (ch & 0x0F);
-                out.append(pseudo[ (int) ch]);
-                ch = (byte) (inn[i] & 0x0F);
-                out.append(pseudo[ (int) ch]);
-                i++;
-            }
-            return new String(out);
+            return toHexString(this.digest.digest());
         }
         
         public void write(int b) throws IOException {
@@ -123,4 +104,74 @@ public class XMLComparisonUtil {
         
     }
     
+    /**
+     * A ByteArrayOutputStream that computes the MD5 hash of the
+     * bytes as they're written, so that content can be buffered 
+     * and hashed in a single pass.  The buffered content may be
+     * read back without copying using createInputStream().
+     */
+    public static class HashingByteArrayOutputStream extends ByteArrayOutputStream {
+        
+        private MessageDigest digest;
+        
+        public HashingByteArrayOutputStream(int size) {
+            super(size);
+            try {
+                this.digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                // can't happen because MD5 is supported by all JVMs
+                assert false;
+            }
+        }
+        
+        /**
+         * Gets the MD5 hash of everything written so far.  This
+         * method may only be called once.
+         */
+        public String getMD5Hash() {
+            return toHexString(this.digest.digest());
+        }
+        
+        public synchronized void write(int b) {
+            super.write(b);
+            this.digest.update((byte) b);
+        }
+        
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            this.digest.update(b, off, len);
+        }
+        
+        /**
+         * Gets an InputStream over the buffered bytes.  The 
+         * returned stream reads directly from this object's 
+         * buffer so nothing should be written to this stream 
+         * while it's in use.
+         */
+        public synchronized InputStream createInputStream() {
+            return new ByteArrayInputStream(this.buf, 0, this.count);
+        }
+        
+    }
+    
+    /**
+     * Converts the given bytes to an upper-case hexadecimal String.
+     */
+    private static String toHexString(byte[] inn) {
+        byte ch = 0x00;
+        int i = 0;
+        String pseudo[] = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F"};
+        StringBuffer out = new StringBuffer(inn.length * 2);
+        while (i < inn.length) {
+            ch = (byte) (inn[i] & 0xF0);
+            ch = (byte) (ch >>> 4);
+            ch = (byte) (ch & 0x0F);
+            out.append(pseudo[ (int) ch]);
+            ch = (byte) (inn[i] & 0x0F);
+            out.append(pseudo[ (int) ch]);
+            i++;
+        }
+        return new String(out);
+    }
+    
 }
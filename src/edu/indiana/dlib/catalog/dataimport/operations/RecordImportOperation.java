@@ -32,6 +32,7 @@ package edu.indiana.dlib.catalog.dataimport.operations;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -39,6 +40,7 @@ import org.apache.log4j.Logger;
 import edu.indiana.dlib.catalog.accesscontrol.UserInfo;
 import edu.indiana.dlib.catalog.asynchronous.Dialog;
 import edu.indiana.dlib.catalog.asynchronous.Operation;
+import edu.indiana.dlib.catalog.config.BulkSavePipeline;
 import edu.indiana.dlib.catalog.config.Item;
 import edu.indiana.dlib.catalog.config.ItemManager;
 import edu.indiana.dlib.catalog.dataimport.FieldMapping;
@@ -61,7 +63,12 @@ public class RecordImportOperation implements Operation {
     
     private boolean started;
     
-    private boolean abort;
+    private volatile boolean abort;
+    
+    /**
+     * The pipeline through which records are being saved.
+     */
+    private volatile BulkSavePipeline pipeline;
     
     private String interactionRedirect;
     
@@ -71,6 +78,8 @@ public class RecordImportOperation implements Operation {
     
     private List<String> updatedIds;
     
+    private List<String> unchangedIds;
+    
     private Dialog pendingDialog;
     
     public RecordImportOperation(String description, Records records, FieldMapping mapping, ItemManager im, UserInfo user, String interactionRedirect) {
@@ -96,24 +105,27 @@ public class RecordImportOperation implements Operation {
         errorIds = new ArrayList<String>();
         unresolvedIds = new ArrayList<String>();
         updatedIds = new ArrayList<String>();
-        for (Record record : records) {
-            if (abort) {
-                break;
-            } else {
-                String id = mapping.getId(record);
-                try {
-                    Item item = im.fetchItem(id);
-                    if (item == null) {
-                        unresolvedIds.add(id);
-                    } else {
-                        mapping.updatedItemMetadata(record, item.getMetadata());
-                        im.saveItemMetadata(item, user);
-                        updatedIds.add(id);
-                    }
-                } catch (Exception ex) {
-                    errorIds.add(id);
-                    LOGGER.warn("Error for import of data for item " + id + "!", ex);
-                }
+        unchangedIds = new ArrayList<String>();
+        if (!abort) {
+            pipeline = new BulkSavePipeline(im, user);
+            if (!abort) {
+                pipeline.run(new RecordUpdateIterator(records.iterator()), new BulkSavePipeline.ResultListener() {
+                    public void resultAvailable(BulkSavePipeline.Result result) {
+                        switch (result.getStatus()) {
+                            case NOT_FOUND:
+                                unresolvedIds.add(result.getId());
+                                break;
+                            case UNCHANGED:
+                                unchangedIds.add(result.getId());
+                                break;
+                            case FAILED:
+                                errorIds.add(result.getId());
+                                LOGGER.warn("Error for import of data for item " + result.getId() + "!", result.getException());
+                                break;
+                            default:
+                                updatedIds.add(result.getId());
+                        }
+                    }});
             }
         }
         this.pendingDialog = new OverwriteRecordsDialog();
@@ -121,6 +133,45 @@ public class RecordImportOperation implements Operation {
     
     public void abort() {
         abort = true;
+        if (pipeline != null) {
+            pipeline.abort();
+        }
+    }
+    
+    /**
+     * Exposes the (possibly streamed) records as updates for the
+     * BulkSavePipeline, reading each record only when the pipeline
+     * is ready to process it.
+     */
+    private class RecordUpdateIterator implements Iterator<BulkSavePipeline.ItemUpdate> {
+        
+        private Iterator<Record> recordIt;
+        
+        public RecordUpdateIterator(Iterator<Record> recordIt) {
+            this.recordIt = recordIt;
+        }
+        
+        public boolean hasNext() {
+            return recordIt.hasNext();
+        }
+
+        public BulkSavePipeline.ItemUpdate next() {
+            final Record record = recordIt.next();
+            final String id = mapping.getId(record);
+            return new BulkSavePipeline.ItemUpdate() {
+                public String getId() {
+                    return id;
+                }
+
+                public BulkSavePipeline.Status apply(Item item) {
+                    mapping.updatedItemMetadata(record, item.getMetadata());
+                    return BulkSavePipeline.Status.UPDATED;
+                }};
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
     
     /**
@@ -182,6 +233,19 @@ public class RecordImportOperation implements Operation {
             } else if (updatedIds.size() > 1) {
                 sb.append(updatedIds.size() + " records were updated");
             }
+            if (unchangedIds.size() == 1) {
+                if (sb.length() > 0) {
+                    sb.append(", one record was already up to date");
+                } else {
+                    sb.append("One record was already up to date");
+                }
+            } else if (unchangedIds.size() > 1) {
+                if (sb.length() > 0) {
+                    sb.append(", " + unchangedIds.size() + " records were already up to date");
+                } else {
+                    sb.append(unchangedIds.size() + " records were already up to date");
+                }
+            }
             if (unresolvedIds.size() == 1) {
                 if (sb.length() > 0) {
                     sb.append(", one record identified in the batch was not found");
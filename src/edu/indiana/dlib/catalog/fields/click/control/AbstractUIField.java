@@ -310,12 +310,43 @@ public abstract class AbstractUIField extends AbstractContainer implements UIFie
      * using the pattern specified in getFieldSummaryValuePattern().
      */
     public String getValueSummary() {
+        return summarizeValues(this.getFieldData().getParts());
+    }
+    
+    /**
+     * Summarizes the given field data using the pattern specified in 
+     * getFieldSummaryValuePattern() without modifying this control. 
+     * For subclasses whose FieldValuesContainer is a 
+     * RepeatableValueGroupContainer this applies the default value 
+     * and drops empty values the way that container does, so it 
+     * returns the same summary as calling setFieldData(), 
+     * setDefaultValue() and then getValueSummary() and such subclasses
+     * may implement ValueSummaryRenderer.  Subclasses that override 
+     * getValueSummary() or whose containers translate the values (like
+     * the CheckboxArrayFieldValuesContainer) must not.
+     */
+    public String getValueSummary(FieldData fieldData, FieldData defaultValue) {
+        List<List<NameValuePair>> values = fieldData.getParts();
+        if ((values == null || values.isEmpty()) && defaultValue != null && defaultValue.getParts() != null) {
+            values = defaultValue.getParts();
+        }
+        if (values != null) {
+            for (List<NameValuePair> value : values) {
+                if (!value.isEmpty()) {
+                    return summarizeValues(values);
+                }
+            }
+        }
+        return "";
+    }
+    
+    private String summarizeValues(List<List<NameValuePair>> values) {
         StringBuffer sb = new StringBuffer();
         String pattern = this.getFieldSummaryValuePattern();
         if (pattern == null) {
             pattern = (this.getRequiredPartNames().isEmpty() ? "" : "{" + this.getRequiredPartNames().iterator().next() + "}");
         }
-        for (List<NameValuePair> parts : this.getFieldData().getParts()) {
+        for (List<NameValuePair> parts : values) {
             String valueSummary = pattern;
             for (NameValuePair part : parts) {
                 valueSummary = valueSummary.replace("{" + part.getName() + "}", part.getValue());
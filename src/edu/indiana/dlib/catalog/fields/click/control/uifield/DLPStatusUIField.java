@@ -41,10 +41,11 @@ import edu.indiana.dlib.catalog.config.ConfigurationException;
 import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.FieldDefinition;
 import edu.indiana.dlib.catalog.fields.UIField;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 import edu.indiana.dlib.catalog.fields.click.control.AbstractUIField;
 import edu.indiana.dlib.catalog.fields.click.control.ValuePreservingFieldAttributesContainer;
 
-public class DLPStatusUIField extends AbstractUIField implements UIField {
+public class DLPStatusUIField extends AbstractUIField implements UIField, ValueSummaryRenderer {
 
     public DLPStatusUIField(FieldDefinition def, FieldConfiguration conf) throws ConfigurationException {
         super(def, conf);
@@ -47,6 +47,7 @@ import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.FieldData;
 import edu.indiana.dlib.catalog.config.FieldDefinition;
 import edu.indiana.dlib.catalog.config.NameValuePair;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 import edu.indiana.dlib.catalog.fields.click.control.AbstractUIField;
 import edu.indiana.dlib.catalog.fields.click.control.FieldExposingAttributesContainer;
 import edu.indiana.dlib.catalog.fields.click.control.ValuePreservingFieldAttributesContainer;
@@ -58,7 +59,7 @@ import edu.indiana.dlib.catalog.fields.click.control.ValuePreservingFieldAttribu
  * month and day values are parsed out and stored in the "year",
  * "month" and "day" part of the data respectively.
  */
-public class DateUIField extends AbstractUIField {
+public class DateUIField extends AbstractUIField implements ValueSummaryRenderer {
     
     private static final String ENTERED_DATE = "entered date";
     private static final String YEAR = "year";
@@ -38,6 +38,7 @@ import java.util.List;
 import edu.indiana.dlib.catalog.config.ConfigurationException;
 import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.FieldDefinition;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 import edu.indiana.dlib.catalog.fields.click.control.AbstractUIField;
 import edu.indiana.dlib.catalog.fields.click.control.ValuePreservingFieldAttributesContainer;
 
@@ -56,7 +57,7 @@ import edu.indiana.dlib.catalog.fields.click.control.ValuePreservingFieldAttribu
  *   </li>
  * </ul>
  */
-public abstract class GenericSinglePartUIField extends AbstractUIField {
+public abstract class GenericSinglePartUIField extends AbstractUIField implements ValueSummaryRenderer {
 
     private String mainPartName;
     
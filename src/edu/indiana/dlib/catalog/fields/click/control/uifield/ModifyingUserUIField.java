@@ -45,6 +45,7 @@ import edu.indiana.dlib.catalog.config.FieldData;
 import edu.indiana.dlib.catalog.config.FieldDefinition;
 import edu.indiana.dlib.catalog.config.NameValuePair;
 import edu.indiana.dlib.catalog.fields.UIField;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 import edu.indiana.dlib.catalog.pages.AuthenticatedBorderPage;
 
 /**
@@ -56,7 +57,7 @@ import edu.indiana.dlib.catalog.pages.AuthenticatedBorderPage;
  * Furthermore the data specification must specify exactly
  * one field, "username".
  */
-public class ModifyingUserUIField extends AbstractControl implements UIField {
+public class ModifyingUserUIField extends AbstractControl implements UIField, ValueSummaryRenderer {
 
     private FieldDefinition def;
     
@@ -108,10 +109,18 @@ public class ModifyingUserUIField extends AbstractControl implements UIField {
     }
 
     public String getValueSummary() {
-        if (this.getFieldData() == null) {
+        return getValueSummary(this.getFieldData(), null);
+    }
+    
+    /**
+     * Implements ValueSummaryRenderer.  The default value is 
+     * ignored because setDefaultValue() does nothing for this field.
+     */
+    public String getValueSummary(FieldData fieldData, FieldData defaultValue) {
+        if (fieldData == null) {
             return getMessage("label-unknown");
         } else {
-            List<String> usernames = this.getFieldData().getPartValues("username");
+            List<String> usernames = fieldData.getPartValues("username");
             if (usernames == null || usernames.size() != 1) {
                 return getMessage("label-unknown");
             } else {
@@ -45,6 +45,7 @@ import edu.indiana.dlib.catalog.config.ConfigurationException;
 import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.FieldDefinition;
 import edu.indiana.dlib.catalog.config.VocabularySourceConfiguration;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 import edu.indiana.dlib.catalog.fields.click.control.AbstractUIField;
 import edu.indiana.dlib.catalog.fields.click.control.FieldExposingAttributesContainer;
 import edu.indiana.dlib.catalog.fields.click.control.autocomplete.SourceSelectorField;
@@ -52,7 +53,7 @@ import edu.indiana.dlib.catalog.fields.click.control.autocomplete.VocabularySour
 import edu.indiana.dlib.catalog.vocabulary.VocabularySourceInitializationException;
 import edu.indiana.dlib.catalog.vocabulary.impl.VocabularySourceFactory;
 
-public class PersonPicturedUIField extends AbstractUIField {
+public class PersonPicturedUIField extends AbstractUIField implements ValueSummaryRenderer {
 
     public PersonPicturedUIField(FieldDefinition def, FieldConfiguration conf) throws ConfigurationException, IOException, VocabularySourceInitializationException {
         super(def, conf);
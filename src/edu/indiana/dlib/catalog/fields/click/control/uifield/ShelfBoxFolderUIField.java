@@ -38,10 +38,11 @@ import org.apache.click.control.TextField;
 import edu.indiana.dlib.catalog.config.ConfigurationException;
 import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.FieldDefinition;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 import edu.indiana.dlib.catalog.fields.click.control.AbstractUIField;
 import edu.indiana.dlib.catalog.fields.click.control.ValuePreservingFieldAttributesContainer;
 
-public class ShelfBoxFolderUIField extends AbstractUIField {
+public class ShelfBoxFolderUIField extends AbstractUIField implements ValueSummaryRenderer {
 
     public ShelfBoxFolderUIField(FieldDefinition def, FieldConfiguration conf) throws ConfigurationException {
         super(def, conf);
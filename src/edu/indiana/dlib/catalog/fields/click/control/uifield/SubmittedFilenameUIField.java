@@ -41,8 +41,9 @@ import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.FieldData;
 import edu.indiana.dlib.catalog.config.FieldDefinition;
 import edu.indiana.dlib.catalog.fields.UIField;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 
-public class SubmittedFilenameUIField extends AbstractControl implements UIField {
+public class SubmittedFilenameUIField extends AbstractControl implements UIField, ValueSummaryRenderer {
 
     private FieldDefinition def;
     
@@ -94,10 +95,18 @@ public class SubmittedFilenameUIField extends AbstractControl implements UIField
     }
 
     public String getValueSummary() {
-        if (this.getFieldData() == null) {
+        return getValueSummary(this.getFieldData(), null);
+    }
+    
+    /**
+     * Implements ValueSummaryRenderer.  The default value is 
+     * ignored because setDefaultValue() does nothing for this field.
+     */
+    public String getValueSummary(FieldData fieldData, FieldData defaultValue) {
+        if (fieldData == null) {
             return getMessage("label-unknown");
         } else {
-            List<String> filenames = this.getFieldData().getPartValues("filename");
+            List<String> filenames = fieldData.getPartValues("filename");
             if (filenames == null || filenames.size() != 1) {
                 return getMessage("label-unknown");
             } else {
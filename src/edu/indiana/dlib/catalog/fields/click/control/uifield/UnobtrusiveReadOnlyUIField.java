@@ -42,12 +42,13 @@ import edu.indiana.dlib.catalog.config.FieldData;
 import edu.indiana.dlib.catalog.config.FieldDefinition;
 import edu.indiana.dlib.catalog.config.NameValuePair;
 import edu.indiana.dlib.catalog.fields.UIField;
+import edu.indiana.dlib.catalog.fields.ValueSummaryRenderer;
 
 /**
  * A UIField implementation for a text field that is only displayed  
  * when a value is present and is displayed as read-only.
  */
-public class UnobtrusiveReadOnlyUIField extends AbstractControl implements UIField {
+public class UnobtrusiveReadOnlyUIField extends AbstractControl implements UIField, ValueSummaryRenderer {
 
     private FieldDefinition def;
     
@@ -93,8 +94,16 @@ public class UnobtrusiveReadOnlyUIField extends AbstractControl implements UIFie
      * @returns a summary of the value contained in all attributes and parts
      */
     public String getValueSummary() {
+        return getValueSummary(this.getFieldData(), null);
+    }
+    
+    /**
+     * Implements ValueSummaryRenderer.  The default value is 
+     * ignored because setDefaultValue() does nothing for this field.
+     */
+    public String getValueSummary(FieldData fieldData, FieldData defaultValue) {
         StringBuffer sb = new StringBuffer();
-        if (this.getFieldData() != null) {
+        if (fieldData != null) {
             if (fieldData.getAttributes() != null) {
                 for (NameValuePair attribute : fieldData.getAttributes()) {
                     if (sb.length() > 0) {
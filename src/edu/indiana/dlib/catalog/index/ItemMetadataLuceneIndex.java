@@ -36,16 +36,20 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
+import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
@@ -54,9 +58,11 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
@@ -64,6 +70,7 @@ import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.util.Version;
 
+import edu.indiana.dlib.catalog.config.CollectionConfiguration;
 import edu.indiana.dlib.catalog.config.DataFormatException;
 import edu.indiana.dlib.catalog.config.FieldData;
 import edu.indiana.dlib.catalog.config.Item;
@@ -71,8 +78,11 @@ import edu.indiana.dlib.catalog.config.ItemMetadata;
 import edu.indiana.dlib.catalog.config.NameValuePair;
 import edu.indiana.dlib.catalog.config.impl.DefaultItemMetadata;
 import edu.indiana.dlib.catalog.search.BrowseResult;
+import edu.indiana.dlib.catalog.search.SearchException;
 import edu.indiana.dlib.catalog.search.SearchQuery;
+import edu.indiana.dlib.catalog.search.SearchResultItemSummary;
 import edu.indiana.dlib.catalog.search.SearchResults;
+import edu.indiana.dlib.catalog.search.SearchResultsPager;
 import edu.indiana.dlib.catalog.search.impl.DefaultBrowseResult;
 import edu.indiana.dlib.catalog.search.impl.DefaultSearchResults;
 
@@ -86,6 +96,8 @@ import edu.indiana.dlib.catalog.search.impl.DefaultSearchResults;
  */
 public class ItemMetadataLuceneIndex {
 
+    private static final Logger LOGGER = Logger.getLogger(ItemMetadataLuceneIndex.class);
+
     private BasicSupportAnalyzer analyzer;
     
     private Directory niofsDir;
@@ -97,14 +109,132 @@ public class ItemMetadataLuceneIndex {
     
     public SearchResults search(Query luceneQuery, SearchQuery query) throws IOException, DataFormatException {
         IndexSearcher searcher = new IndexSearcher(niofsDir);
-        List<ItemMetadata> results = new ArrayList<ItemMetadata>();
-        TopDocs hits = searcher.search(luceneQuery, query.getMaxRecords());
-        for (int i = query.getStartingIndex(); i < query.getMaxRecords() && i < hits.scoreDocs.length; i ++) {
-            Document doc = searcher.doc(hits.scoreDocs[i].doc);
-            ByteArrayInputStream is = new ByteArrayInputStream(doc.getFieldable(getItemMetadataFieldName()).stringValue().getBytes("UTF-8"));
-            results.add(new DefaultItemMetadata(is));
+        try {
+            List<ItemMetadata> results = new ArrayList<ItemMetadata>();
+            Map<String, SearchResultItemSummary> summaries = new HashMap<String, SearchResultItemSummary>();
+            int end = query.getStartingIndex() + query.getMaxRecords();
+            TopDocs hits = searcher.search(luceneQuery, end);
+            for (int i = query.getStartingIndex(); i < end && i < hits.scoreDocs.length; i ++) {
+                Document doc = searcher.doc(hits.scoreDocs[i].doc);
+                ItemMetadata im = getItemMetadata(doc);
+                results.add(im);
+                SearchResultItemSummary summary = getStoredSummary(im.getId(), doc);
+                if (summary != null) {
+                    summaries.put(im.getId(), summary);
+                }
+            }
+            return new DefaultSearchResults(query.getStartingIndex(), hits.totalHits, query, results, summaries);
+        } finally {
+            searcher.close();
+        }
+    }
+    
+    /**
+     * Runs the given query once and returns a pager over all of 
+     * the matching records, in index order.  Only the (integer)
+     * document numbers of the hits are collected up front; the 
+     * stored records are read a page at a time, so the cost of 
+     * reading a page doesn't depend on its offset.  The pager
+     * holds an open searcher until it is closed.
+     */
+    public SearchResultsPager openPager(Query luceneQuery) throws IOException {
+        final IndexSearcher searcher = new IndexSearcher(niofsDir);
+        try {
+            final DocumentNumberCollector collector = new DocumentNumberCollector();
+            searcher.search(luceneQuery, collector);
+            return new SearchResultsPager() {
+
+                public int getTotalResultCount() {
+                    return collector.size;
+                }
+
+                public List<ItemMetadata> getResults(int startingIndex, int maxRecords) throws SearchException {
+                    List<ItemMetadata> results = new ArrayList<ItemMetadata>();
+                    try {
+                        for (int i = startingIndex; i < startingIndex + maxRecords && i < collector.size; i ++) {
+                            results.add(getItemMetadata(searcher.doc(collector.docs[i])));
+                        }
+                    } catch (IOException ex) {
+                        throw new SearchException(ex);
+                    } catch (DataFormatException ex) {
+                        throw new SearchException(ex);
+                    }
+                    return results;
+                }
+
+                public void close() {
+                    try {
+                        searcher.close();
+                    } catch (IOException ex) {
+                        LOGGER.warn("Unable to close index searcher.", ex);
+                    }
+                }
+            };
+        } catch (IOException ex) {
+            searcher.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            searcher.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * A Collector that records the (top-level) document number of 
+     * every hit in the order they're collected.
+     */
+    private static class DocumentNumberCollector extends Collector {
+        
+        private int[] docs = new int[128];
+        
+        private int size = 0;
+        
+        private int docBase;
+        
+        public void setScorer(Scorer scorer) {
+        }
+
+        public void collect(int doc) {
+            if (size == docs.length) {
+                int[] larger = new int[docs.length * 2];
+                System.arraycopy(docs, 0, larger, 0, size);
+                docs = larger;
+            }
+            docs[size ++] = docBase + doc;
+        }
+
+        public void setNextReader(IndexReader reader, int docBase) {
+            this.docBase = docBase;
+        }
+
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
         }
-        return new DefaultSearchResults(query.getStartingIndex(), hits.totalHits, query, results);
+    }
+    
+    private ItemMetadata getItemMetadata(Document doc) throws IOException, DataFormatException {
+        ByteArrayInputStream is = new ByteArrayInputStream(doc.getFieldable(getItemMetadataFieldName()).stringValue().getBytes("UTF-8"));
+        return new DefaultItemMetadata(is, false);
+    }
+    
+    /**
+     * Recreates the SearchResultItemSummary that was stored in the
+     * given document when it was indexed.
+     * @return the summary, or null if none was stored
+     */
+    private SearchResultItemSummary getStoredSummary(String id, Document doc) {
+        Fieldable versionField = doc.getFieldable(getSummaryVersionFieldName());
+        if (versionField == null) {
+            return null;
+        }
+        Fieldable imageUrlField = doc.getFieldable(getSummaryImageUrlFieldName());
+        Fieldable[] labels = doc.getFieldables(getSummaryLabelFieldName());
+        Fieldable[] values = doc.getFieldables(getSummaryValueFieldName());
+        List<NameValuePair> fields = new ArrayList<NameValuePair>(labels.length);
+        for (int i = 0; i < labels.length && i < values.length; i ++) {
+            fields.add(new NameValuePair(labels[i].stringValue(), values[i].stringValue()));
+        }
+        return new SearchResultItemSummary(id, (imageUrlField != null ? imageUrlField.stringValue() : null), fields, versionField.stringValue());
     }
     
     /**
@@ -179,21 +309,108 @@ public class ItemMetadataLuceneIndex {
     }
     
     public void indexItem(Item item) throws ParserConfigurationException, IOException, TransformerException {
+        indexItem(item, null);
+    }
+    
+    /**
+     * Indexes the given item.  If a configuration is provided, the
+     * summary that would be displayed in search results is generated 
+     * and stored in the index along with the preview URL so that 
+     * search results may be displayed without consulting the 
+     * configuration or the item manager.
+     * @param item the item to index
+     * @param config the configuration for the collection to which the
+     * item belongs, or null to skip the generation of a stored summary
+     */
+    public void indexItem(Item item, CollectionConfiguration config) throws ParserConfigurationException, IOException, TransformerException {
+        Document indexDoc = createDocument(item.getId(), item.getIdWithinCollection(), item.getCollectionId(), item.getMetadata(), (config != null ? new SearchResultItemSummary(item, config) : null));
+        addDocument(niofsDir, analyzer, getIdTerm(item.getId()), indexDoc);
+    }
+    
+    /**
+     * Replaces the stored search result summaries for the items with
+     * the given metadata, typically with ones that were regenerated
+     * because the stored ones were generated with an older 
+     * configuration.  All of the documents are rewritten with a 
+     * single IndexWriter and commit.  An item is skipped if it is no
+     * longer indexed or if it has been reindexed with different 
+     * metadata since the given metadata was retrieved.
+     * @param summaries a map from the metadata (as returned in the 
+     * search results) to the summary that was generated from it
+     */
+    public void updateStoredSummaries(Map<ItemMetadata, SearchResultItemSummary> summaries) throws IOException {
+        if (summaries.isEmpty()) {
+            return;
+        }
+        // hold the lock used by addDocument() so that the documents
+        // can't be replaced between when they're read and rewritten
+        synchronized (ItemMetadataLuceneIndex.class) {
+            List<Term> terms = new ArrayList<Term>();
+            List<Document> docs = new ArrayList<Document>();
+            IndexSearcher searcher = new IndexSearcher(niofsDir);
+            try {
+                for (Map.Entry<ItemMetadata, SearchResultItemSummary> entry : summaries.entrySet()) {
+                    ItemMetadata im = entry.getKey();
+                    TopDocs hits = searcher.search(new TermQuery(getIdTerm(im.getId())), 1);
+                    if (hits.scoreDocs.length == 0) {
+                        continue;
+                    }
+                    Document doc = searcher.doc(hits.scoreDocs[0].doc);
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    im.writeOutXML(baos);
+                    if (!baos.toString("UTF-8").equals(doc.get(getItemMetadataFieldName()))) {
+                        continue;
+                    }
+                    String localId = doc.get(getFieldNameFacet(getLocalIdFieldName()));
+                    String collectionId = doc.get(getFieldNameFacet(getCollectionIdFieldName()));
+                    terms.add(getIdTerm(im.getId()));
+                    docs.add(createDocument(im.getId(), localId, collectionId, im, entry.getValue()));
+                }
+            } finally {
+                searcher.close();
+            }
+            if (!docs.isEmpty()) {
+                IndexWriter writer = new IndexWriter(niofsDir, new IndexWriterConfig(Version.LUCENE_32, analyzer));
+                try {
+                    for (int i = 0; i < docs.size(); i ++) {
+                        writer.updateDocument(terms.get(i), docs.get(i));
+                    }
+                    writer.commit();
+                } finally {
+                    writer.close();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets a Term that matches only the document for the item 
+     * with the given id.  The id field itself is tokenized, so 
+     * the untokenized facet field is used.
+     */
+    private Term getIdTerm(String id) {
+        return new Term(getFieldNameFacet(getIdFieldName()), id);
+    }
+    
+    /**
+     * Creates the Lucene Document for an item.
+     * @param summary the pre-rendered search result summary to 
+     * store, or null to store none
+     */
+    private Document createDocument(String id, String localId, String collectionId, ItemMetadata im, SearchResultItemSummary summary) throws IOException {
         Document indexDoc = new Document();
         
         // add item Id
-        addKeywordField(getIdFieldName(), item.getId(), indexDoc);
-        addKeywordField(getEverythingFieldName(), item.getId(), indexDoc);
+        addKeywordField(getIdFieldName(), id, indexDoc);
+        addKeywordField(getEverythingFieldName(), id, indexDoc);
         
         // add local item Id
-        addKeywordField(getLocalIdFieldName(), item.getIdWithinCollection(), indexDoc);
-        addKeywordField(getEverythingFieldName(), item.getIdWithinCollection(), indexDoc);
+        addKeywordField(getLocalIdFieldName(), localId, indexDoc);
+        addKeywordField(getEverythingFieldName(), localId, indexDoc);
         
         // add collection Id
-        addKeywordField(getCollectionIdFieldName(), item.getCollectionId(), indexDoc);
-        addKeywordField(getEverythingFieldName(), item.getCollectionId(), indexDoc);
-        
-        ItemMetadata im = item.getMetadata();
+        addKeywordField(getCollectionIdFieldName(), collectionId, indexDoc);
+        addKeywordField(getEverythingFieldName(), collectionId, indexDoc);
         
         for (String fieldType : im.getRepresentedFieldTypes()) {
             FieldData data = im.getFieldData(fieldType);
@@ -214,7 +431,18 @@ public class ItemMetadataLuceneIndex {
         im.writeOutXML(baos);
         addRecordField(getItemMetadataFieldName(), baos.toString("UTF-8"), indexDoc);
         
-        addDocument(niofsDir, analyzer, new Term(getIdFieldName(), im.getId()), indexDoc);
+        // add the pre-rendered search result summary
+        if (summary != null) {
+            addStoredField(getSummaryVersionFieldName(), summary.getConfigurationVersion(), indexDoc);
+            if (summary.getImageUrl() != null) {
+                addStoredField(getSummaryImageUrlFieldName(), summary.getImageUrl(), indexDoc);
+            }
+            for (NameValuePair field : summary.getFields()) {
+                addStoredField(getSummaryLabelFieldName(), field.getName(), indexDoc);
+                addStoredField(getSummaryValueFieldName(), field.getValue(), indexDoc);
+            }
+        }
+        return indexDoc;
     }
     
     public static synchronized void addDocument(Directory indexDirectory, Analyzer analyzer, Term termToDelete, Document doc) throws IOException {
@@ -240,6 +468,22 @@ public class ItemMetadataLuceneIndex {
         return "metadata";
     }
     
+    public String getSummaryVersionFieldName() {
+        return "summaryVersion";
+    }
+    
+    public String getSummaryImageUrlFieldName() {
+        return "summaryImageUrl";
+    }
+    
+    public String getSummaryLabelFieldName() {
+        return "summaryLabel";
+    }
+    
+    public String getSummaryValueFieldName() {
+        return "summaryValue";
+    }
+    
     public String getEverythingFieldName() {
         return "keyword";
     }
@@ -275,4 +519,12 @@ public class ItemMetadataLuceneIndex {
         doc.add(new Field(name, value, Field.Store.YES, Field.Index.NOT_ANALYZED));
     }
     
+    /**
+     * Adds a field that is stored but not indexed.  Null values
+     * are stored as empty Strings.
+     */
+    private void addStoredField(String name, String value, Document doc) {
+        doc.add(new Field(name, (value != null ? value : ""), Field.Store.YES, Field.Index.NO));
+    }
+    
 }
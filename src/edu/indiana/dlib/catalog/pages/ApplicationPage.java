@@ -40,6 +40,7 @@ import org.springframework.context.ApplicationContextAware;
 import edu.indiana.dlib.catalog.accesscontrol.AuthenticationManager;
 import edu.indiana.dlib.catalog.accesscontrol.AuthorizationManager;
 import edu.indiana.dlib.catalog.batch.BatchManager;
+import edu.indiana.dlib.catalog.config.BatchPreviewItemManager;
 import edu.indiana.dlib.catalog.config.ConfigurationManager;
 import edu.indiana.dlib.catalog.config.HistoryEnabledItemManager;
 import edu.indiana.dlib.catalog.config.ItemManager;
@@ -112,6 +113,21 @@ public abstract class ApplicationPage extends Page implements ApplicationContext
         }
     }
     
+    /**
+     * Gets the BatchPreviewItemManager bean stored as the 'itemManager'
+     * bean in the ApplicationContext.  This method may return null if
+     * the ItemManager for this application can't resolve previews in
+     * batches.
+     */
+    public BatchPreviewItemManager getBatchPreviewItemManager() {
+        Object manager = this.applicationContext.getBean("itemManager");
+        if (manager != null && manager instanceof BatchPreviewItemManager) {
+            return (BatchPreviewItemManager) manager;
+        } else {
+            return null;
+        }
+    }
+    
     /**
      * Gets the SearchManager bean stored as the 'searchnManager' bean
      * stored in the ApplicationContext.
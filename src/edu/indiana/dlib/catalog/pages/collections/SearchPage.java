@@ -31,8 +31,11 @@
 package edu.indiana.dlib.catalog.pages.collections;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -50,16 +53,22 @@ import org.apache.click.element.JsImport;
 import edu.indiana.dlib.catalog.asynchronous.UserOperationManager;
 import edu.indiana.dlib.catalog.batch.Batch;
 import edu.indiana.dlib.catalog.batch.BatchManager;
+import edu.indiana.dlib.catalog.config.BatchPreviewItemManager;
+import edu.indiana.dlib.catalog.config.DataView;
 import edu.indiana.dlib.catalog.config.ItemManager;
 import edu.indiana.dlib.catalog.config.ItemMetadata;
 import edu.indiana.dlib.catalog.config.RepositoryException;
 import edu.indiana.dlib.catalog.search.SearchException;
+import edu.indiana.dlib.catalog.search.SearchManager;
 import edu.indiana.dlib.catalog.search.SearchQuery;
 import edu.indiana.dlib.catalog.search.SearchResultItemSummary;
 import edu.indiana.dlib.catalog.search.SearchResults;
+import edu.indiana.dlib.catalog.search.SummaryStoringSearchManager;
 import edu.indiana.dlib.catalog.search.UnsupportedQueryException;
 import edu.indiana.dlib.catalog.search.impl.DefaultSearchQuery;
 import edu.indiana.dlib.catalog.search.impl.SaveSearchOperation;
+import edu.indiana.dlib.catalog.search.impl.SearchResultsCache;
+import edu.indiana.dlib.catalog.search.impl.SearchResultsDescriptor;
 import edu.indiana.dlib.catalog.search.impl.click.control.FilterQueryField;
 
 /**
@@ -90,12 +99,27 @@ public class SearchPage extends CollectionPage {
 
     public Form searchForm;
 
+    /**
+     * The name of the session attribute in which the 
+     * SearchResultsDescriptor for the most recent search
+     * is stored.
+     */
+    private static final String SAVED_SEARCH_ATTRIBUTE = "saved-search-descriptor";
+    
     /**
      * The search results, fetched as part of processing
-     * or loaded from the session (for POST operations).
+     * or rehydrated (from the SearchResultsCache or by
+     * repeating the search) based on the descriptor in
+     * the session for POST operations.
      */
     private SearchResults searchResults;
     
+    /**
+     * A compact description of the search results that is
+     * stored in the session.
+     */
+    private SearchResultsDescriptor searchDescriptor;
+    
     private TextField queryInput;
     
     private FilterQueryField filterField;
@@ -302,7 +326,7 @@ public class SearchPage extends CollectionPage {
             }
             storeSearchResults();
             
-            setUpCheckboxes();
+            setUpCheckboxes(searchDescriptor.getIds());
         } catch (SearchException ex) {
             ex.printStackTrace();
             throw ex;
@@ -316,42 +340,149 @@ public class SearchPage extends CollectionPage {
     /**
      * Performs the heavy-lifting associated with generating 
      * the list of SearchResultItemSummary objects that are 
-     * set in the model as "results".
+     * set in the model as "results".  Summaries stored by the
+     * search implementation are used when they were generated
+     * with the current configuration.  Stale summaries are 
+     * regenerated from the metadata in the search results and 
+     * the stored preview and, if the SearchManager supports it,
+     * saved (all at once) so that later searches needn't 
+     * regenerate them.  When no summary was stored and the 
+     * ItemManager supports it, the summaries are built from the
+     * metadata with all of the previews resolved in a single
+     * batch, otherwise each item is fetched.
      */
     public void onRender() {
         super.onRender();
-        ItemManager im = this.getItemManager();
+        if (searchResults == null && searchDescriptor != null) {
+            rehydrateSearchResults();
+        }
+        if (searchResults == null) {
+            save.setDisabled(true);
+            return;
+        }
         List<SearchResultItemSummary> results = new ArrayList<SearchResultItemSummary>();
         if (searchResults.getResults() != null) {
+            String version = super.collection.getSummaryVersion();
+            List<String> idsWithoutSummaries = new ArrayList<String>();
             for (ItemMetadata item : searchResults.getResults()) {
+                if (searchResults.getStoredSummary(item.getId()) == null) {
+                    idsWithoutSummaries.add(item.getId());
+                }
+            }
+            BatchPreviewItemManager bpim = this.getBatchPreviewItemManager();
+            Map<String, DataView> previews = null;
+            if (bpim != null && !idsWithoutSummaries.isEmpty()) {
                 try {
-                    SearchResultItemSummary summary = new SearchResultItemSummary(im.fetchItem(item.getId()), super.collection); 
-                    results.add(summary);
+                    previews = bpim.fetchPreviews(idsWithoutSummaries);
                 } catch (RepositoryException ex) {
-                    results.add(null);
+                    LOGGER.warn("Unable to fetch previews for search results.", ex);
+                    previews = new HashMap<String, DataView>();
+                }
+            }
+            ItemManager im = this.getItemManager();
+            Map<ItemMetadata, SearchResultItemSummary> regenerated = new LinkedHashMap<ItemMetadata, SearchResultItemSummary>();
+            for (ItemMetadata item : searchResults.getResults()) {
+                SearchResultItemSummary stored = searchResults.getStoredSummary(item.getId());
+                if (stored != null && version.equals(stored.getConfigurationVersion())) {
+                    results.add(stored);
+                } else if (stored != null) {
+                    SearchResultItemSummary summary = new SearchResultItemSummary(item, stored.getImageUrl(), super.collection);
+                    regenerated.put(item, summary);
+                    results.add(summary);
+                } else if (previews != null) {
+                    results.add(new SearchResultItemSummary(item, previews.get(item.getId()), super.collection));
+                } else {
+                    try {
+                        SearchResultItemSummary summary = new SearchResultItemSummary(im.fetchItem(item.getId()), super.collection); 
+                        results.add(summary);
+                    } catch (RepositoryException ex) {
+                        results.add(null);
+                    }
+                }
+            }
+            SearchManager sm = this.getSearchManager();
+            if (!regenerated.isEmpty() && sm instanceof SummaryStoringSearchManager) {
+                try {
+                    ((SummaryStoringSearchManager) sm).storeSummaries(regenerated);
+                } catch (SearchException ex) {
+                    LOGGER.warn("Unable to store " + regenerated.size() + " regenerated summaries.", ex);
                 }
             }
         }
         addModel("results", results);
         addModel("resultsSummaryText", getMessage("results-summary", new Integer(searchResults.getStartingIndex() + 1), new Integer(this.searchResults.getStartingIndex() + this.searchResults.getResults().size()), new Integer(this.searchResults.getTotalResultCount())));
         
-        if (searchResults == null || searchResults.getTotalResultCount() == 0) {
+        if (searchResults.getTotalResultCount() == 0) {
             save.setDisabled(true);
+        } else {
+            addModel("exportParameters", getExportParameters(searchResults.getSearchQuery()));
         }
     }
     
+    /**
+     * Gets the URL-encoded request parameters for the 
+     * SearchExportServlet to export all the results of the 
+     * given query.
+     */
+    private String getExportParameters(SearchQuery query) {
+        try {
+            StringBuilder params = new StringBuilder();
+            params.append("cid=" + URLEncoder.encode(query.getCollectionId(), "UTF-8"));
+            if (query.getEnteredQuery() != null) {
+                params.append("&query=" + URLEncoder.encode(query.getEnteredQuery(), "UTF-8"));
+            }
+            if (query.getFilterQuery() != null) {
+                params.append("&filter=" + URLEncoder.encode(query.getFilterQuery(), "UTF-8"));
+            }
+            return params.toString();
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new AssertionError(ex);
+        }
+    }
+    
+    /**
+     * Stores a compact descriptor of the current search results 
+     * in the session and the results themselves in the 
+     * application-wide SearchResultsCache.
+     */
     private void storeSearchResults() {
-        getContext().getSession().setAttribute("saved-search-results", searchResults);
+        searchDescriptor = SearchResultsCache.getInstance().put(searchResults);
+        getContext().getSession().setAttribute(SAVED_SEARCH_ATTRIBUTE, searchDescriptor);
+        LOGGER.debug("Stored search descriptor for " + searchDescriptor.getIds().size() + " results in the session (approximately " + searchDescriptor.getApproximateSize() + " bytes).");
     }
     
+    /**
+     * Loads the descriptor of the last search results from the 
+     * session.  The results themselves are not rehydrated until
+     * they are needed for rendering.
+     */
     private void loadSearchResults() {
-        searchResults = (SearchResults) getContext().getSession().getAttribute("saved-search-results");
-        if (searchResults != null) {
-            setUpCheckboxes();
+        searchDescriptor = (SearchResultsDescriptor) getContext().getSession().getAttribute(SAVED_SEARCH_ATTRIBUTE);
+        if (searchDescriptor != null) {
+            setUpCheckboxes(searchDescriptor.getIds());
+        }
+    }
+    
+    /**
+     * Recovers the search results described by the searchDescriptor
+     * from the SearchResultsCache or, if they've been evicted from 
+     * the cache, by repeating the search.
+     */
+    private void rehydrateSearchResults() {
+        searchResults = SearchResultsCache.getInstance().get(searchDescriptor);
+        if (searchResults == null) {
+            try {
+                searchResults = getSearchManager().search(searchDescriptor.getSearchQuery());
+                SearchResultsCache.getInstance().put(searchResults);
+            } catch (Exception ex) {
+                LOGGER.error("Unable to repeat search to recover search results!", ex);
+                errorMessage = getMessage("error-search", (ex.getMessage() != null ? " (" + ex.getMessage() + ")" : ""));
+            }
         }
     }
     
-    private void setUpCheckboxes() {
+    private void setUpCheckboxes(List<String> ids) {
         if (!checkboxes.isEmpty()) {
             for (Checkbox checkbox : checkboxes.values()) {
                 searchForm.remove(checkbox);
@@ -360,11 +491,11 @@ public class SearchPage extends CollectionPage {
         }
         int i = 0;
         if (!getBatchManager().listOpenBatches(user.getUsername(), collection.getId()).isEmpty()) {
-            for (ItemMetadata item : searchResults.getResults()) {
+            for (String id : ids) {
                 Checkbox checkbox = new Checkbox("checkbox-" + (i ++));
                 checkbox.addStyleClass("imageSelectCheck");
                 checkbox.setAttribute("onClick", "determineCheckBoxSelection(this)");
-                checkboxes.put(item.getId(), checkbox);
+                checkboxes.put(id, checkbox);
                 searchForm.add(checkbox);
             }
         }
@@ -38,6 +38,7 @@ import edu.indiana.dlib.catalog.config.CollectionConfiguration;
 import edu.indiana.dlib.catalog.config.DataView;
 import edu.indiana.dlib.catalog.config.FieldConfiguration;
 import edu.indiana.dlib.catalog.config.Item;
+import edu.indiana.dlib.catalog.config.ItemMetadata;
 import edu.indiana.dlib.catalog.config.NameValuePair;
 
 /**
@@ -57,24 +58,73 @@ public class SearchResultItemSummary {
     
     private String localIdentifier;
     
+    private String configurationVersion;
+    
     public SearchResultItemSummary(Item item, CollectionConfiguration config) {
-        this.identifier = item.getId();
-        this.localIdentifier = item.getIdWithinCollection();
-        DataView preview = item.getPreview();
-        if (preview != null) {
-            this.imageUrl = preview.getURL().toString();
-        }
+        this(item.getMetadata(), item.getPreview(), config);
+    }
+    
+    /**
+     * Creates a summary from the metadata (as returned with 
+     * search results) and the preview.  This constructor is 
+     * appropriate when the full Item was never fetched.
+     * @param metadata the metadata for the item
+     * @param preview the preview for the item, or null if the
+     * item has no preview
+     * @param config the configuration for the collection to which
+     * the item belongs
+     */
+    public SearchResultItemSummary(ItemMetadata metadata, DataView preview, CollectionConfiguration config) {
+        this(metadata, (preview != null ? preview.getURL().toString() : null), config);
+    }
+    
+    /**
+     * Creates a summary from the metadata and the URL of the 
+     * preview image.
+     * @param metadata the metadata for the item
+     * @param imageUrl the URL of the preview image or null if the
+     * item has no preview
+     * @param config the configuration for the collection to which
+     * the item belongs
+     */
+    public SearchResultItemSummary(ItemMetadata metadata, String imageUrl, CollectionConfiguration config) {
+        this.identifier = metadata.getId();
+        this.localIdentifier = getLocalIdentifier(this.identifier);
+        this.imageUrl = imageUrl;
+        this.configurationVersion = config.getSummaryVersion();
         
         // now we process the fields
         this.fieldsToDisplay = new ArrayList<NameValuePair>();
-        for (String fieldType : item.getMetadata().getRepresentedFieldTypes()) {
+        for (String fieldType : metadata.getRepresentedFieldTypes()) {
             FieldConfiguration fieldConf = config.getFieldConfiguration(fieldType);
             if (fieldConf != null && Boolean.TRUE.equals(fieldConf.isDisplayedInCatalogingBriefView())) {
-                this.fieldsToDisplay.add(new NameValuePair(fieldConf.getDisplayLabel(), config.getValueSummary(item.getMetadata(), fieldType)));
+                this.fieldsToDisplay.add(new NameValuePair(fieldConf.getDisplayLabel(), config.getValueSummary(metadata, fieldType)));
             }
         }
         
     }
+    
+    /**
+     * Recreates a summary that was previously generated (and 
+     * likely stored alongside the indexed record).
+     * @param identifier the identifier of the item
+     * @param imageUrl the URL of the preview image or null
+     * @param fields the display label and value summary for each
+     * of the fields to display
+     * @param configurationVersion the summary version of the 
+     * configuration that was used to generate the summary
+     */
+    public SearchResultItemSummary(String identifier, String imageUrl, List<NameValuePair> fields, String configurationVersion) {
+        this.identifier = identifier;
+        this.localIdentifier = getLocalIdentifier(identifier);
+        this.imageUrl = imageUrl;
+        this.fieldsToDisplay = fields;
+        this.configurationVersion = configurationVersion;
+    }
+    
+    private static String getLocalIdentifier(String identifier) {
+        return identifier.substring(identifier.lastIndexOf('/') + 1);
+    }
 
     /**
      * Gets the identifier of the search result item. 
@@ -107,4 +157,13 @@ public class SearchResultItemSummary {
     public List<NameValuePair> getFields() {
         return Collections.unmodifiableList(this.fieldsToDisplay);
     }
+    
+    /**
+     * Gets the summary version of the configuration (see 
+     * CollectionConfiguration.getSummaryVersion()) with which
+     * this summary was generated.
+     */
+    public String getConfigurationVersion() {
+        return this.configurationVersion;
+    }
 }
@@ -60,4 +60,15 @@ public interface SearchResults {
      */
     public List<ItemMetadata> getResults();
     
+    /**
+     * Gets the summary that was generated and stored for the 
+     * result with the given id when it was indexed.  Callers
+     * must compare the configuration version of the returned
+     * summary to that of the current configuration and 
+     * regenerate the summary if they differ.
+     * @return the stored summary or null if the underlying 
+     * search implementation didn't store one for the item
+     */
+    public SearchResultItemSummary getStoredSummary(String id);
+    
 }
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.search;
+
+import java.util.List;
+
+import edu.indiana.dlib.catalog.config.ItemMetadata;
+
+/**
+ * A handle on the complete set of results of a single search 
+ * from which pages of results may be read in order without 
+ * repeating the search for each page.  Implementations may hold 
+ * resources (like an open index reader) until close() is called.
+ */
+public interface SearchResultsPager {
+
+    /**
+     * Gets the total number of results in the search.
+     */
+    public int getTotalResultCount();
+    
+    /**
+     * Gets the results starting at the given index.
+     * @param startingIndex the index of the first result to
+     * return (0 represents the first search result)
+     * @param maxRecords the maximum number of results to return
+     */
+    public List<ItemMetadata> getResults(int startingIndex, int maxRecords) throws SearchException;
+    
+    /**
+     * Releases any resources held by this pager.  No results may
+     * be read once this has been called.
+     */
+    public void close();
+    
+}
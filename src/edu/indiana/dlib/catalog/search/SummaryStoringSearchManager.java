@@ -0,0 +1,56 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.search;
+
+import java.util.Map;
+
+import edu.indiana.dlib.catalog.config.ItemMetadata;
+
+/**
+ * An extension of SearchManager for implementations that store
+ * a pre-rendered SearchResultItemSummary with each indexed record
+ * (see SearchResults.getStoredSummary()).  Pages that have to 
+ * regenerate stale stored summaries should save them with this 
+ * so that later searches can use them as-is.
+ */
+public interface SummaryStoringSearchManager extends SearchManager {
+
+    /**
+     * Replaces the stored summaries for the items with the given
+     * metadata.  Implementations should save all of the summaries
+     * in a single update and should ignore the summary for any 
+     * item that was reindexed since its metadata was retrieved.
+     * @param summaries a map from the metadata, as returned in 
+     * the search results, to the summary generated from it
+     */
+    public void storeSummaries(Map<ItemMetadata, SearchResultItemSummary> summaries) throws SearchException;
+    
+}
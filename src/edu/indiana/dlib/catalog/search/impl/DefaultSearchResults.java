@@ -32,9 +32,11 @@ package edu.indiana.dlib.catalog.search.impl;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import edu.indiana.dlib.catalog.config.ItemMetadata;
 import edu.indiana.dlib.catalog.search.SearchQuery;
+import edu.indiana.dlib.catalog.search.SearchResultItemSummary;
 import edu.indiana.dlib.catalog.search.SearchResults;
 
 public class DefaultSearchResults implements SearchResults {
@@ -47,11 +49,18 @@ public class DefaultSearchResults implements SearchResults {
     
     private List<ItemMetadata> results;
     
+    private Map<String, SearchResultItemSummary> storedSummaries;
+    
     public DefaultSearchResults(int startIndex, int totalRecords, SearchQuery query, List<ItemMetadata> results) {
+        this(startIndex, totalRecords, query, results, null);
+    }
+    
+    public DefaultSearchResults(int startIndex, int totalRecords, SearchQuery query, List<ItemMetadata> results, Map<String, SearchResultItemSummary> storedSummaries) {
         this.startIndex = startIndex;
         this.totalRecords = totalRecords;
         this.query = query;
         this.results = results;
+        this.storedSummaries = storedSummaries;
     }
     
     public SearchQuery getSearchQuery(int startingIndex, int maxResultCount) {
@@ -73,5 +82,13 @@ public class DefaultSearchResults implements SearchResults {
     public Integer getTotalResultCount() {
         return this.totalRecords;
     }
+    
+    public SearchResultItemSummary getStoredSummary(String id) {
+        if (this.storedSummaries == null) {
+            return null;
+        } else {
+            return this.storedSummaries.get(id);
+        }
+    }
 
 }
@@ -32,20 +32,26 @@ package edu.indiana.dlib.catalog.search.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.util.Version;
 
 import edu.indiana.dlib.catalog.config.DataFormatException;
+import edu.indiana.dlib.catalog.config.ItemMetadata;
 import edu.indiana.dlib.catalog.index.ItemMetadataLuceneIndex;
 import edu.indiana.dlib.catalog.search.BrowseQuery;
 import edu.indiana.dlib.catalog.search.BrowseResults;
+import edu.indiana.dlib.catalog.search.PagingSearchManager;
 import edu.indiana.dlib.catalog.search.SearchException;
-import edu.indiana.dlib.catalog.search.SearchManager;
 import edu.indiana.dlib.catalog.search.SearchQuery;
+import edu.indiana.dlib.catalog.search.SearchResultItemSummary;
 import edu.indiana.dlib.catalog.search.SearchResults;
+import edu.indiana.dlib.catalog.search.SearchResultsPager;
+import edu.indiana.dlib.catalog.search.SummaryStoringSearchManager;
 import edu.indiana.dlib.catalog.search.UnsupportedQueryException;
 
 /**
@@ -56,7 +62,7 @@ import edu.indiana.dlib.catalog.search.UnsupportedQueryException;
  * is likely to be the cause of any related bugs when used in 
  * testing.
  */
-public class EmbeddedLuceneSearchManager implements SearchManager {
+public class EmbeddedLuceneSearchManager implements PagingSearchManager, SummaryStoringSearchManager {
 
     private ItemMetadataLuceneIndex index;
     
@@ -79,11 +85,8 @@ public class EmbeddedLuceneSearchManager implements SearchManager {
     }
     
     public SearchResults search(SearchQuery query) throws SearchException, UnsupportedQueryException {
-        String fullQuery = "+" + index.getCollectionIdFieldName() + ":\"" + query.getCollectionId() + "\"" + (query.getEnteredQuery() != null && query.getEnteredQuery().length() > 0 ? " AND (" + translateUserQuery(query.getEnteredQuery()) + ")" : "") + (query.getFilterQuery() != null ? " AND (" + query.getFilterQuery() + ")" : "");
         try {
-            return index.search(parser.parse(fullQuery), query);
-        } catch (ParseException ex) {
-            throw new UnsupportedQueryException(ex);
+            return index.search(parse(query), query);
         } catch (IOException ex) {
             throw new SearchException(ex);
         } catch (DataFormatException ex) {
@@ -91,6 +94,31 @@ public class EmbeddedLuceneSearchManager implements SearchManager {
         }
     }
     
+    public void storeSummaries(Map<ItemMetadata, SearchResultItemSummary> summaries) throws SearchException {
+        try {
+            index.updateStoredSummaries(summaries);
+        } catch (IOException ex) {
+            throw new SearchException(ex);
+        }
+    }
+    
+    public SearchResultsPager openPager(SearchQuery query) throws SearchException, UnsupportedQueryException {
+        try {
+            return index.openPager(parse(query));
+        } catch (IOException ex) {
+            throw new SearchException(ex);
+        }
+    }
+    
+    private Query parse(SearchQuery query) throws UnsupportedQueryException {
+        String fullQuery = "+" + index.getCollectionIdFieldName() + ":\"" + query.getCollectionId() + "\"" + (query.getEnteredQuery() != null && query.getEnteredQuery().length() > 0 ? " AND (" + translateUserQuery(query.getEnteredQuery()) + ")" : "") + (query.getFilterQuery() != null ? " AND (" + query.getFilterQuery() + ")" : "");
+        try {
+            return parser.parse(fullQuery);
+        } catch (ParseException ex) {
+            throw new UnsupportedQueryException(ex);
+        }
+    }
+    
     private String translateUserQuery(String userQuery) {
         return userQuery;
     }
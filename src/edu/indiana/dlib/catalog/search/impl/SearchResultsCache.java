@@ -0,0 +1,128 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.search.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.indiana.dlib.catalog.search.SearchResults;
+
+/**
+ * <p>
+ *   A small application-wide cache of recently displayed pages
+ *   of search results keyed by their SearchResultsDescriptor.  
+ *   This allows the session to store only the descriptor while 
+ *   still avoiding a repeat of the search for requests that 
+ *   operate on the page of results that was just displayed.
+ * </p>
+ * <p>
+ *   The cache is bounded both in the number of entries (least
+ *   recently used entries are discarded first) and in the age
+ *   of the entries.  This class is thread-safe.
+ * </p>
+ */
+public class SearchResultsCache {
+
+    /**
+     * The maximum number of pages of results retained.
+     */
+    private static final int MAX_ENTRIES = 200;
+    
+    /**
+     * The maximum age (in milliseconds) of a cached page of results.
+     */
+    private static final long MAX_AGE = 5 * 60 * 1000;
+    
+    private static SearchResultsCache INSTANCE;
+    
+    public static synchronized SearchResultsCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new SearchResultsCache();
+        }
+        return INSTANCE;
+    }
+    
+    private Map<SearchResultsDescriptor, CachedResults> cache;
+    
+    private SearchResultsCache() {
+        cache = new LinkedHashMap<SearchResultsDescriptor, CachedResults>(16, .75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<SearchResultsDescriptor, CachedResults> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+    
+    /**
+     * Adds the given results to the cache.
+     * @return the descriptor for the results which may be stored
+     * and later used to get the results from the cache
+     */
+    public SearchResultsDescriptor put(SearchResults results) {
+        SearchResultsDescriptor descriptor = new SearchResultsDescriptor(results);
+        synchronized (cache) {
+            cache.put(descriptor, new CachedResults(results));
+        }
+        return descriptor;
+    }
+    
+    /**
+     * Gets the results described by the given descriptor if they
+     * are still in the cache.
+     * @return the SearchResults or null if they are not cached
+     */
+    public SearchResults get(SearchResultsDescriptor descriptor) {
+        synchronized (cache) {
+            CachedResults cached = cache.get(descriptor);
+            if (cached == null) {
+                return null;
+            } else if (System.currentTimeMillis() - cached.created > MAX_AGE) {
+                cache.remove(descriptor);
+                return null;
+            } else {
+                return cached.results;
+            }
+        }
+    }
+    
+    private static class CachedResults {
+        
+        public long created;
+        
+        public SearchResults results;
+        
+        public CachedResults(SearchResults results) {
+            this.results = results;
+            this.created = System.currentTimeMillis();
+        }
+    }
+}
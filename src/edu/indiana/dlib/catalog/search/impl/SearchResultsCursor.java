@@ -0,0 +1,221 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.search.impl;
+
+import java.util.Iterator;
+import java.util.List;
+
+import edu.indiana.dlib.catalog.config.ItemMetadata;
+import edu.indiana.dlib.catalog.search.PagingSearchManager;
+import edu.indiana.dlib.catalog.search.SearchException;
+import edu.indiana.dlib.catalog.search.SearchManager;
+import edu.indiana.dlib.catalog.search.SearchQuery;
+import edu.indiana.dlib.catalog.search.SearchResults;
+import edu.indiana.dlib.catalog.search.SearchResultsPager;
+import edu.indiana.dlib.catalog.search.UnsupportedQueryException;
+
+/**
+ * A forward-only cursor over every result of a search.  Results
+ * are fetched from the SearchManager one page at a time and only 
+ * the current page is held in memory, so the memory required to 
+ * walk the results is independent of the total number of hits.
+ * When the SearchManager is a PagingSearchManager the search is 
+ * performed only once and every page is read from the resulting
+ * SearchResultsPager, otherwise the search is repeated for each
+ * page.  Callers must call close() when they're done with the
+ * cursor.
+ * 
+ * This class is not thread safe.
+ */
+public class SearchResultsCursor {
+
+    /**
+     * The default number of records requested from the
+     * SearchManager for each page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    
+    private SearchManager sm;
+    
+    private SearchQuery query;
+    
+    private int pageSize;
+    
+    /**
+     * The index of the next result that will be returned 
+     * by next().
+     */
+    private int position;
+    
+    /**
+     * The pager from which pages are read.  (null until the 
+     * first page is fetched)
+     */
+    private SearchResultsPager pager;
+    
+    /**
+     * The total number of results reported by the first
+     * page.  (null until the first page is fetched)
+     */
+    private Integer totalResultCount;
+    
+    private Iterator<ItemMetadata> currentPage;
+    
+    public SearchResultsCursor(SearchManager sm, SearchQuery query) {
+        this(sm, query, DEFAULT_PAGE_SIZE);
+    }
+    
+    /**
+     * Creates a cursor over all the results of the given query.
+     * The starting index and maximum records of the query are
+     * ignored.
+     */
+    public SearchResultsCursor(SearchManager sm, SearchQuery query, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive!");
+        }
+        this.sm = sm;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.position = 0;
+    }
+    
+    /**
+     * Gets the total number of results for the search, fetching
+     * the first page if necessary.
+     */
+    public int getTotalResultCount() throws SearchException, UnsupportedQueryException {
+        if (totalResultCount == null) {
+            fetchPage();
+        }
+        return totalResultCount;
+    }
+    
+    /**
+     * Returns true if there are more results, fetching the next 
+     * page from the SearchManager when the current one has been 
+     * exhausted.  The end of the results is determined by the
+     * total result count reported with the first page.
+     * @throws SearchException if the SearchManager returns an
+     * empty page before that many results have been read
+     */
+    public boolean hasNext() throws SearchException, UnsupportedQueryException {
+        if (currentPage != null && currentPage.hasNext()) {
+            return true;
+        }
+        if (totalResultCount != null && position >= totalResultCount) {
+            return false;
+        }
+        fetchPage();
+        if (position >= totalResultCount) {
+            return false;
+        }
+        if (!currentPage.hasNext()) {
+            throw new SearchException("An empty page was returned at index " + position + " of " + totalResultCount + " results!");
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the next result.
+     * @throws IllegalStateException if there are no more results
+     */
+    public ItemMetadata next() throws SearchException, UnsupportedQueryException {
+        if (!hasNext()) {
+            throw new IllegalStateException("There are no more results!");
+        }
+        position ++;
+        return currentPage.next();
+    }
+    
+    /**
+     * Releases the resources held by the underlying pager.  This
+     * cursor may not be used once it has been closed.
+     */
+    public void close() {
+        if (pager != null) {
+            pager.close();
+        }
+    }
+    
+    private void fetchPage() throws SearchException, UnsupportedQueryException {
+        if (pager == null) {
+            if (sm instanceof PagingSearchManager) {
+                pager = ((PagingSearchManager) sm).openPager(query);
+            } else {
+                pager = new RepeatedSearchPager(sm, query);
+            }
+        }
+        List<ItemMetadata> results = pager.getResults(position, pageSize);
+        if (totalResultCount == null) {
+            totalResultCount = pager.getTotalResultCount();
+        }
+        currentPage = results.iterator();
+    }
+    
+    /**
+     * A SearchResultsPager for SearchManagers that don't support 
+     * paging, which repeats the search for each page.  The total
+     * is that reported for the first page that was read.
+     */
+    private static class RepeatedSearchPager implements SearchResultsPager {
+        
+        private SearchManager sm;
+        
+        private SearchQuery query;
+        
+        private Integer totalResultCount;
+        
+        public RepeatedSearchPager(SearchManager sm, SearchQuery query) {
+            this.sm = sm;
+            this.query = query;
+        }
+        
+        public int getTotalResultCount() {
+            return totalResultCount;
+        }
+        
+        public List<ItemMetadata> getResults(int startingIndex, int maxRecords) throws SearchException {
+            try {
+                SearchResults results = sm.search(new DefaultSearchQuery(startingIndex, maxRecords, query.getEnteredQuery(), query.getFilterQuery(), query.getCollectionId()));
+                if (totalResultCount == null) {
+                    totalResultCount = results.getTotalResultCount();
+                }
+                return results.getResults();
+            } catch (UnsupportedQueryException ex) {
+                throw new SearchException(ex);
+            }
+        }
+        
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.search.impl;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import edu.indiana.dlib.catalog.search.SearchQuery;
+import edu.indiana.dlib.catalog.search.SearchResults;
+
+/**
+ * A compact, serializable description of a page of search 
+ * results suitable for storage in an HTTP session.  Only the
+ * query, the offset, the total and the identifiers of the 
+ * results are retained; the SearchResults themselves may be 
+ * recovered from the SearchResultsCache or by repeating the 
+ * search.
+ */
+public class SearchResultsDescriptor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String enteredQuery;
+    
+    private String filterQuery;
+    
+    private String collectionId;
+    
+    private int startingIndex;
+    
+    private int maxRecords;
+    
+    private int totalResultCount;
+    
+    private String[] ids;
+    
+    public SearchResultsDescriptor(SearchResults results) {
+        SearchQuery query = results.getSearchQuery();
+        this.enteredQuery = query.getEnteredQuery();
+        this.filterQuery = query.getFilterQuery();
+        this.collectionId = query.getCollectionId();
+        this.startingIndex = query.getStartingIndex();
+        this.maxRecords = query.getMaxRecords();
+        this.totalResultCount = results.getTotalResultCount();
+        this.ids = new String[results.getResults().size()];
+        for (int i = 0; i < this.ids.length; i ++) {
+            this.ids[i] = results.getResults().get(i).getId();
+        }
+    }
+    
+    /**
+     * Gets a query that can be used to repeat the search.
+     */
+    public SearchQuery getSearchQuery() {
+        return new DefaultSearchQuery(startingIndex, maxRecords, enteredQuery, filterQuery, collectionId);
+    }
+    
+    public int getStartingIndex() {
+        return this.startingIndex;
+    }
+    
+    public int getTotalResultCount() {
+        return this.totalResultCount;
+    }
+    
+    /**
+     * Gets the identifiers of the results in the order in 
+     * which they were returned.
+     */
+    public List<String> getIds() {
+        return Collections.unmodifiableList(Arrays.asList(this.ids));
+    }
+    
+    /**
+     * Gets a rough estimate of the number of bytes of heap used
+     * by this object, counting two bytes per character and a 
+     * fixed overhead per object.
+     */
+    public int getApproximateSize() {
+        int size = 64 + 16 + (ids.length * 4);
+        size += approximateSize(enteredQuery);
+        size += approximateSize(filterQuery);
+        size += approximateSize(collectionId);
+        for (String id : ids) {
+            size += approximateSize(id);
+        }
+        return size;
+    }
+    
+    private static int approximateSize(String value) {
+        return value == null ? 0 : 40 + (value.length() * 2);
+    }
+    
+    public boolean equals(Object o) {
+        if (o instanceof SearchResultsDescriptor) {
+            SearchResultsDescriptor other = (SearchResultsDescriptor) o;
+            return equals(other.enteredQuery, enteredQuery) && equals(other.filterQuery, filterQuery) && equals(other.collectionId, collectionId) && other.startingIndex == startingIndex && other.maxRecords == maxRecords;
+        } else {
+            return false;
+        }
+    }
+    
+    public int hashCode() {
+        return (enteredQuery == null ? 0 : enteredQuery.hashCode()) + (filterQuery == null ? 0 : filterQuery.hashCode()) + (collectionId == null ? 0 : collectionId.hashCode()) + (startingIndex * 31) + maxRecords;
+    }
+    
+    private static boolean equals(String one, String two) {
+        return one == null ? two == null : one.equals(two);
+    }
+    
+}
@@ -0,0 +1,433 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.servlets;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.springframework.context.ApplicationContext;
+
+import edu.indiana.dlib.catalog.accesscontrol.AuthenticationManager;
+import edu.indiana.dlib.catalog.accesscontrol.AuthorizationManager;
+import edu.indiana.dlib.catalog.accesscontrol.UserInfo;
+import edu.indiana.dlib.catalog.cache.ImageCache;
+import edu.indiana.dlib.catalog.config.CollectionConfiguration;
+import edu.indiana.dlib.catalog.config.ConfigurationManager;
+import edu.indiana.dlib.catalog.config.DataView;
+import edu.indiana.dlib.catalog.config.Item;
+import edu.indiana.dlib.catalog.config.ItemManager;
+import edu.indiana.dlib.catalog.pages.ApplicationPage;
+
+/**
+ * A servlet that serves item preview (thumbnail) and screen size
+ * images from the local ImageCache, fetching them from the 
+ * repository only when they aren't cached and revalidating cached
+ * images with conditional requests once they are older than
+ * REVALIDATION_INTERVAL.  Responses carry ETag and Last-Modified
+ * headers so that browsers may revalidate their own copies, and 
+ * image files are transferred to the response without being 
+ * copied through a buffer (using the container's sendfile support
+ * when available).  Concurrent requests for an image that isn't
+ * cached result in a single fetch.  If the image can't be fetched
+ * (for instance because the repository requires the user to 
+ * authenticate) an authorized user is redirected to the image's 
+ * URL, and further requests for that image are redirected without
+ * another attempt until UNAVAILABLE_RETRY_INTERVAL has passed.
+ * This servlet accepts the following request parameters:
+ * <ul>
+ *   <li>id - the id of the item (required)</li>
+ *   <li>view - "thumbnail" (the default) or "screen"</li>
+ * </ul>
+ */
+public class ImageProxyServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private Logger LOGGER = Logger.getLogger(ImageProxyServlet.class);
+    
+    public static final String THUMBNAIL = "thumbnail";
+    
+    public static final String SCREEN = "screen";
+    
+    /**
+     * The view name of the screen size image (as reported by
+     * DLPFedoraItem).  Items without such a view use their preview.
+     */
+    private static final String SCREEN_VIEW_NAME = "screen size image";
+    
+    /**
+     * The number of milliseconds after which a cached image is
+     * revalidated against its source.
+     */
+    private static final long REVALIDATION_INTERVAL = 10 * 60 * 1000;
+    
+    /**
+     * The number of milliseconds after a failure to fetch an image 
+     * before another attempt is made.
+     */
+    private static final long UNAVAILABLE_RETRY_INTERVAL = 10 * 60 * 1000;
+    
+    /**
+     * The number of seconds for which browsers may use their copy
+     * of an image without revalidating it.
+     */
+    private static final int BROWSER_MAX_AGE = 3600;
+    
+    private static final int CONNECT_TIMEOUT = 10000;
+    
+    private static final int READ_TIMEOUT = 30000;
+    
+    /**
+     * Gets the URL (relative to the server) at which this servlet
+     * serves the given view of the given item.
+     * @param contextPath the context path of the web application
+     * @param id the id of the item
+     * @param view THUMBNAIL or SCREEN
+     */
+    public static String getImageUrl(String contextPath, String id, String view) {
+        try {
+            return contextPath + "/image?id=" + URLEncoder.encode(id, "UTF-8") + (THUMBNAIL.equals(view) ? "" : "&view=" + view);
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new AssertionError(ex);
+        }
+    }
+    
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        process(req, resp);
+    }
+    
+    private void process(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String id = req.getParameter("id");
+        String view = req.getParameter("view") == null ? THUMBNAIL : req.getParameter("view");
+        if (id == null || !(view.equals(THUMBNAIL) || view.equals(SCREEN))) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The \"id\" parameter is required and \"view\" must be \"" + THUMBNAIL + "\" or \"" + SCREEN + "\".");
+            return;
+        }
+        ApplicationContext context = ApplicationPage.getApplicationContext(req.getSession().getServletContext());
+        if (context == null) {
+            throw new RuntimeException("Unable to find the ApplicationContext!");
+        }
+        AuthorizationManager am =  (AuthorizationManager) context.getBean("authorizationManager");
+        ConfigurationManager cm = (ConfigurationManager) context.getBean("configurationManager");
+        ItemManager im = (ItemManager) context.getBean("itemManager");
+        try {
+            UserInfo currentUser = ((AuthenticationManager) context.getBean("authenticationManager")).getCurrentUser(req);
+            ImageCache cache = ImageCache.getInstance();
+            if (!cache.isEnabled()) {
+                Item item = im.fetchItem(id);
+                DataView dataView = (item == null ? null : getDataView(item, view));
+                if (dataView == null || dataView.getURL() == null) {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                } else if (isAuthorized(am, cm, item.getCollectionId(), currentUser)) {
+                    resp.sendRedirect(dataView.getURL().toString());
+                } else {
+                    resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                }
+                return;
+            }
+            
+            String key = view + " " + id;
+            ImageCache.Entry entry = cache.get(key);
+            Item item = null;
+            String collectionId = null;
+            if (entry != null) {
+                collectionId = entry.getCollectionId();
+            } else {
+                ImageCache.UnavailableSource unavailable = cache.getUnavailableSource(key);
+                if (unavailable != null && unavailable.getAge() < UNAVAILABLE_RETRY_INTERVAL) {
+                    redirect(unavailable.getSourceUrl(), unavailable.getCollectionId(), am, cm, currentUser, resp);
+                    return;
+                }
+                item = im.fetchItem(id);
+                if (item == null) {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                collectionId = item.getCollectionId();
+            }
+            // authorize before anything is fetched into the cache
+            if (!isAuthorized(am, cm, collectionId, currentUser)) {
+                resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            if (entry == null || entry.getAge() > REVALIDATION_INTERVAL) {
+                try {
+                    entry = cache.load(key, new ImageLoader(cache, key, item, view, entry));
+                } catch (SourceUnavailableException ex) {
+                    LOGGER.debug("Unable to cache " + ex.getSourceUrl() + ".", ex);
+                    resp.sendRedirect(ex.getSourceUrl());
+                    return;
+                }
+            }
+            if (entry == null) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            } else {
+                serve(entry, req, resp);
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Error serving " + view + " image for " + id + "!", t);
+            throw new ServletException(t);
+        }
+    }
+    
+    /**
+     * Redirects the user to the source of an image that couldn't be
+     * cached, if the user may view the collection to which it 
+     * belongs.
+     */
+    private static void redirect(String sourceUrl, String collectionId, AuthorizationManager am, ConfigurationManager cm, UserInfo user, HttpServletResponse resp) throws Exception {
+        if (isAuthorized(am, cm, collectionId, user)) {
+            resp.sendRedirect(sourceUrl);
+        } else {
+            resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        }
+    }
+    
+    private static boolean isAuthorized(AuthorizationManager am, ConfigurationManager cm, String collectionId, UserInfo user) throws Exception {
+        CollectionConfiguration config = (collectionId == null ? null : cm.getCollectionConfiguration(collectionId, false));
+        return config != null && am.canViewCollection(config, user);
+    }
+    
+    private static DataView getDataView(Item item, String view) {
+        if (view.equals(SCREEN)) {
+            for (DataView dataView : item.listDataViews()) {
+                if (SCREEN_VIEW_NAME.equals(dataView.getViewName())) {
+                    return dataView;
+                }
+            }
+        }
+        return item.getPreview();
+    }
+    
+    /**
+     * Writes the cached image to the response, or just a 304 (Not 
+     * Modified) status if the request's validators match.
+     */
+    private void serve(ImageCache.Entry entry, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setHeader("ETag", entry.getETag());
+        resp.setDateHeader("Last-Modified", entry.getLastModified());
+        resp.setHeader("Cache-Control", "private, max-age=" + BROWSER_MAX_AGE);
+        if (isNotModified(entry, req)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setContentType(entry.getContentType());
+        resp.setHeader("Content-Length", String.valueOf(entry.getSize()));
+        if (Boolean.TRUE.equals(req.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            // let the container send the file directly
+            req.setAttribute("org.apache.tomcat.sendfile.filename", entry.getFile().getAbsolutePath());
+            req.setAttribute("org.apache.tomcat.sendfile.start", Long.valueOf(0));
+            req.setAttribute("org.apache.tomcat.sendfile.end", Long.valueOf(entry.getSize()));
+            return;
+        }
+        FileInputStream fis = new FileInputStream(entry.getFile());
+        try {
+            FileChannel channel = fis.getChannel();
+            WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, out);
+            }
+        } finally {
+            fis.close();
+        }
+    }
+    
+    private static boolean isNotModified(ImageCache.Entry entry, HttpServletRequest req) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(entry.getETag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+            // HTTP dates have a resolution of one second
+            return ifModifiedSince != -1 && ifModifiedSince >= (entry.getLastModified() / 1000) * 1000;
+        } catch (IllegalArgumentException ex) {
+            // an unparsable date is ignored
+            return false;
+        }
+    }
+    
+    /**
+     * Fetches an image that isn't cached or revalidates one that 
+     * is stale.  A stale image is served as-is if its source can't
+     * be reached.
+     */
+    private class ImageLoader implements Callable<ImageCache.Entry> {
+        
+        private ImageCache cache;
+        
+        private String key;
+        
+        private Item item;
+        
+        private String view;
+        
+        private ImageCache.Entry stale;
+        
+        /**
+         * Creates a loader for the given view of an image.
+         * @param item the item whose image isn't cached, or null if
+         * the stale entry is to be revalidated
+         * @param stale the stale entry or null if the image isn't 
+         * cached
+         */
+        public ImageLoader(ImageCache cache, String key, Item item, String view, ImageCache.Entry stale) {
+            this.cache = cache;
+            this.key = key;
+            this.item = item;
+            this.view = view;
+            this.stale = stale;
+        }
+        
+        public ImageCache.Entry call() throws Exception {
+            if (stale != null) {
+                try {
+                    URLConnection conn = openConnection(new URL(stale.getSourceUrl()));
+                    if (conn instanceof HttpURLConnection) {
+                        HttpURLConnection http = (HttpURLConnection) conn;
+                        if (stale.getSourceETag() != null) {
+                            http.setRequestProperty("If-None-Match", stale.getSourceETag());
+                        }
+                        if (stale.getSourceLastModified() != null) {
+                            http.setRequestProperty("If-Modified-Since", stale.getSourceLastModified());
+                        }
+                        int status = http.getResponseCode();
+                        if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                            http.disconnect();
+                            cache.markValidated(stale);
+                            return stale;
+                        } else if (status != HttpURLConnection.HTTP_OK) {
+                            http.disconnect();
+                            LOGGER.warn("Unable to revalidate " + stale.getSourceUrl() + " (" + status + "), serving the cached copy.");
+                            return stale;
+                        }
+                    } else if (conn.getLastModified() != 0 && conn.getLastModified() == stale.getLastModified()) {
+                        conn.getInputStream().close();
+                        cache.markValidated(stale);
+                        return stale;
+                    }
+                    return cache.put(key, conn.getInputStream(), conn.getContentType(), stale.getSourceUrl(), conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"), conn.getLastModified(), stale.getCollectionId());
+                } catch (IOException ex) {
+                    LOGGER.warn("Unable to revalidate " + stale.getSourceUrl() + ", serving the cached copy.", ex);
+                    return stale;
+                }
+            }
+            
+            DataView dataView = getDataView(item, view);
+            if (dataView == null || dataView.getURL() == null) {
+                return null;
+            }
+            String sourceUrl = dataView.getURL().toString();
+            try {
+                URLConnection conn = openConnection(dataView.getURL());
+                if (conn instanceof HttpURLConnection && ((HttpURLConnection) conn).getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    ((HttpURLConnection) conn).disconnect();
+                    throw new SourceUnavailableException(sourceUrl, item.getCollectionId(), null);
+                }
+                return cache.put(key, conn.getInputStream(), conn.getContentType() != null ? conn.getContentType() : dataView.getMimeType(), sourceUrl, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"), conn.getLastModified(), item.getCollectionId());
+            } catch (SourceUnavailableException ex) {
+                cache.markUnavailable(key, sourceUrl, item.getCollectionId());
+                throw ex;
+            } catch (IOException ex) {
+                cache.markUnavailable(key, sourceUrl, item.getCollectionId());
+                throw new SourceUnavailableException(sourceUrl, item.getCollectionId(), ex);
+            }
+        }
+        
+        private URLConnection openConnection(URL url) throws IOException {
+            URLConnection conn = url.openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            if (conn instanceof HttpURLConnection) {
+                // a redirect is likely to a login page
+                ((HttpURLConnection) conn).setInstanceFollowRedirects(false);
+            }
+            return conn;
+        }
+    }
+    
+    /**
+     * Thrown when an image that isn't cached can't be fetched from
+     * its source.
+     */
+    private static class SourceUnavailableException extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private String sourceUrl;
+        
+        private String collectionId;
+        
+        public SourceUnavailableException(String sourceUrl, String collectionId, Throwable cause) {
+            super("Unable to fetch " + sourceUrl);
+            if (cause != null) {
+                initCause(cause);
+            }
+            this.sourceUrl = sourceUrl;
+            this.collectionId = collectionId;
+        }
+        
+        public String getSourceUrl() {
+            return sourceUrl;
+        }
+        
+        public String getCollectionId() {
+            return collectionId;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.servlets;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+import org.springframework.context.ApplicationContext;
+
+import edu.indiana.dlib.catalog.accesscontrol.AuthenticationManager;
+import edu.indiana.dlib.catalog.accesscontrol.AuthorizationManager;
+import edu.indiana.dlib.catalog.accesscontrol.UserInfo;
+import edu.indiana.dlib.catalog.config.CollectionConfiguration;
+import edu.indiana.dlib.catalog.config.ConfigurationManager;
+import edu.indiana.dlib.catalog.config.FieldConfiguration;
+import edu.indiana.dlib.catalog.config.FieldData;
+import edu.indiana.dlib.catalog.config.ItemMetadata;
+import edu.indiana.dlib.catalog.config.NameValuePair;
+import edu.indiana.dlib.catalog.config.XPathHelper;
+import edu.indiana.dlib.catalog.pages.ApplicationPage;
+import edu.indiana.dlib.catalog.search.SearchManager;
+import edu.indiana.dlib.catalog.search.impl.DefaultSearchQuery;
+import edu.indiana.dlib.catalog.search.impl.SearchResultsCursor;
+
+/**
+ * A servlet that streams every result of a search to the response
+ * as either CSV or a sequence of itemMetadata XML elements.  The 
+ * results are paged through the SearchManager using a 
+ * SearchResultsCursor and written out as they're read so that
+ * memory use doesn't grow with the number of results.
+ * This servlet accepts the following request parameters:
+ * <ul>
+ *   <li>cid - the id of the collection (required)</li>
+ *   <li>query - the entered query (optional)</li>
+ *   <li>filter - the filter query (optional)</li>
+ *   <li>format - "csv" (the default) or "xml"</li>
+ * </ul>
+ */
+public class SearchExportServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private Logger LOGGER = Logger.getLogger(SearchExportServlet.class);
+    
+    /**
+     * The size of the character buffer between the serializers 
+     * and the response stream.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * The separator placed between multiple values of a field in
+     * a CSV cell.
+     */
+    private static final String VALUE_SEPARATOR = "; ";
+    
+    /**
+     * The separator placed between the parts of a single value
+     * in a CSV cell.
+     */
+    private static final String PART_SEPARATOR = " ";
+    
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        process(req, resp);
+    }
+    
+    private void process(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String collectionId = req.getParameter("cid");
+        String query = req.getParameter("query");
+        String filter = req.getParameter("filter");
+        boolean xml = "xml".equals(req.getParameter("format"));
+        if (collectionId == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The \"cid\" parameter is required.");
+            return;
+        }
+        ApplicationContext context = ApplicationPage.getApplicationContext(req.getSession().getServletContext());
+        if (context == null) {
+            throw new RuntimeException("Unable to find the ApplicationContext!");
+        }
+        AuthorizationManager am =  (AuthorizationManager) context.getBean("authorizationManager");
+        ConfigurationManager cm = (ConfigurationManager) context.getBean("configurationManager");
+        SearchManager sm = (SearchManager) context.getBean("searchManager");
+        try {
+            UserInfo currentUser = ((AuthenticationManager) context.getBean("authenticationManager")).getCurrentUser(req);
+            CollectionConfiguration config = cm.getCollectionConfiguration(collectionId, false);
+            if (config == null) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            } else if (am.canViewCollection(config, currentUser)) {
+                SearchResultsCursor cursor = new SearchResultsCursor(sm, new DefaultSearchQuery(0, SearchResultsCursor.DEFAULT_PAGE_SIZE, query, filter, collectionId));
+                resp.setContentType(xml ? "text/xml" : "text/csv");
+                resp.setCharacterEncoding("UTF-8");
+                resp.setHeader("Content-disposition", "attachment; filename=\"" + collectionId.substring(collectionId.lastIndexOf('/') + 1) + "-export." + (xml ? "xml" : "csv") + "\"");
+                Writer writer = new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), "UTF-8"), BUFFER_SIZE);
+                long start = System.currentTimeMillis();
+                int count = 0;
+                try {
+                    count = (xml ? writeXml(cursor, writer) : writeCsv(cursor, config, writer));
+                } finally {
+                    cursor.close();
+                }
+                writer.close();
+                LOGGER.info("Exported " + count + " records from " + collectionId + " in " + (System.currentTimeMillis() - start) + "ms.");
+            } else {
+                resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Error exporting search results (collection = " + collectionId + ", query = " + query + ", filter = " + filter + ")", t);
+            throw new ServletException(t);
+        }
+    }
+    
+    /**
+     * Writes one CSV row for each search result, with one column
+     * for the item id and one for each configured field.
+     * @return the number of records written
+     */
+    int writeCsv(SearchResultsCursor cursor, CollectionConfiguration config, Writer writer) throws Exception {
+        List<FieldConfiguration> fields = config.listFieldConfigurations();
+        writer.write("id");
+        for (FieldConfiguration field : fields) {
+            writer.write(',');
+            writeCsvCell(field.getDisplayLabel() != null ? field.getDisplayLabel() : field.getFieldType(), writer);
+        }
+        writer.write("\r\n");
+        
+        StringBuilder cell = new StringBuilder();
+        int count = 0;
+        while (cursor.hasNext()) {
+            ItemMetadata item = cursor.next();
+            writeCsvCell(item.getId(), writer);
+            for (FieldConfiguration field : fields) {
+                writer.write(',');
+                FieldData data = item.getFieldData(field.getFieldType());
+                if (data != null) {
+                    cell.setLength(0);
+                    for (List<NameValuePair> parts : data.getParts()) {
+                        if (parts.isEmpty()) {
+                            continue;
+                        }
+                        if (cell.length() > 0) {
+                            cell.append(VALUE_SEPARATOR);
+                        }
+                        for (int i = 0; i < parts.size(); i ++) {
+                            if (i > 0) {
+                                cell.append(PART_SEPARATOR);
+                            }
+                            cell.append(parts.get(i).getValue());
+                        }
+                    }
+                    writeCsvCell(cell, writer);
+                }
+            }
+            writer.write("\r\n");
+            count ++;
+        }
+        return count;
+    }
+    
+    /**
+     * Writes a single CSV cell, quoting it if it contains a comma,
+     * quote or line break (as described in RFC 4180).
+     */
+    private static void writeCsvCell(CharSequence value, Writer writer) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i ++) {
+            char c = value.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+        }
+        if (!quote) {
+            writer.append(value);
+        } else {
+            writer.write('"');
+            for (int i = 0; i < value.length(); i ++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    writer.write('"');
+                }
+                writer.write(c);
+            }
+            writer.write('"');
+        }
+    }
+    
+    /**
+     * Writes an "items" element containing the itemMetadata 
+     * element for each search result.
+     * @return the number of records written
+     */
+    int writeXml(SearchResultsCursor cursor, Writer writer) throws Exception {
+        XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
+        try {
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeStartElement("items");
+            xml.writeNamespace("m", XPathHelper.M_URI);
+            xml.setPrefix("m", XPathHelper.M_URI);
+            int count = 0;
+            while (cursor.hasNext()) {
+                cursor.next().writeOutXML(xml);
+                count ++;
+            }
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            return count;
+        } finally {
+            try {
+                xml.flush();
+            } catch (XMLStreamException ex) {
+                LOGGER.warn("Unable to flush XML export!", ex);
+            }
+        }
+    }
+}
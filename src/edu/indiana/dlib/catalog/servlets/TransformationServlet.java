@@ -31,18 +31,14 @@
 package edu.indiana.dlib.catalog.servlets;
 
 import java.io.IOException;
-import java.net.URL;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 
 import org.apache.log4j.Logger;
 import org.springframework.context.ApplicationContext;
@@ -52,7 +48,10 @@ import edu.indiana.dlib.catalog.accesscontrol.AuthorizationManager;
 import edu.indiana.dlib.catalog.accesscontrol.UserInfo;
 import edu.indiana.dlib.catalog.config.ConfigurationManager;
 import edu.indiana.dlib.catalog.config.ItemManager;
+import edu.indiana.dlib.catalog.config.ItemMetadata;
+import edu.indiana.dlib.catalog.config.MetadataItemManager;
 import edu.indiana.dlib.catalog.config.TransformationConfiguration;
+import edu.indiana.dlib.catalog.config.TransformationHelper;
 import edu.indiana.dlib.catalog.pages.ApplicationPage;
 
 /**
@@ -63,6 +62,7 @@ import edu.indiana.dlib.catalog.pages.ApplicationPage;
  *   <li>cid - the id of the collection</li>
  *   <li>tid - the id of the transformation in the collection configuration</li>
  * </ul>
+ * The compiled stylesheets are cached by the TransformationHelper.
  */
 public class TransformationServlet extends HttpServlet {
 
@@ -86,19 +86,22 @@ public class TransformationServlet extends HttpServlet {
         try {
             UserInfo currentUser = ((AuthenticationManager) context.getBean("authenticationManager")).getCurrentUser(req);
             if (am.canViewCollection(cm.getCollectionConfiguration(collectionId, false), currentUser)) {
-                TransformerFactory transformerFactory = TransformerFactory.newInstance();
                 String xsltUrl = null;
                 for (TransformationConfiguration tc : cm.getCollectionConfiguration(collectionId, false).getTransformationConfigurations()) {
                     if (tc.getId().equals(transformationId)) {
                         xsltUrl = tc.getXsltUrl();
                     }
                 }
-                Templates templates = transformerFactory.newTemplates(new StreamSource(new URL(xsltUrl).openStream()));
-                Transformer transformer = templates.newTransformer();
+                if (xsltUrl == null) {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                Transformer transformer = TransformationHelper.getInstance().getTemplates(xsltUrl).newTransformer();
                 resp.setContentType("text/xml");
                 resp.setCharacterEncoding("UTF-8");
                 resp.setHeader("Content-disposition", "attachment; filename=\"" + id.substring(id.lastIndexOf('/') + 1) + ".xml\"");
-                DOMSource source = new DOMSource(im.fetchItem(id).getMetadata().generateDocument());
+                ItemMetadata metadata = (im instanceof MetadataItemManager ? ((MetadataItemManager) im).fetchItemMetadata(id) : im.fetchItem(id).getMetadata());
+                DOMSource source = new DOMSource(metadata.generateDocument());
                 transformer.transform(source, new StreamResult(resp.getOutputStream()));
                 resp.getOutputStream().close();
                 return;
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the StAX reader and writer for item metadata with the
+ * DOM path (parsing to a Document and walking it, or generating a
+ * Document and serializing it).  This is a plain timing harness
+ * rather than a JMH benchmark: each case is run for WARMUP_ROUNDS
+ * untimed rounds and then MEASURED_ROUNDS timed rounds of 
+ * OPERATIONS_PER_ROUND operations, and the mean and best time per
+ * operation are reported.  It is run by the "benchmark" target of
+ * the build.
+ */
+public class ItemMetadataCodecBenchmark {
+
+    private static final int WARMUP_ROUNDS = 10;
+    
+    private static final int MEASURED_ROUNDS = 10;
+    
+    private static final int OPERATIONS_PER_ROUND = 2000;
+    
+    /**
+     * A value derived from the result of every operation so that 
+     * the work can't be optimized away.
+     */
+    private static long sink;
+    
+    private static abstract class Case {
+        
+        private String name;
+        
+        public Case(String name) {
+            this.name = name;
+        }
+        
+        public abstract int run() throws Exception;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        final ItemMetadata item = createItem(20, 3);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        item.writeOutXML(baos);
+        final byte[] xml = baos.toByteArray();
+        System.out.println("Item metadata record: " + xml.length + " bytes");
+        
+        Case[] cases = new Case[] {
+            new Case("read (StAX)") {
+                public int run() throws Exception {
+                    ItemMetadata im = new ItemMetadata();
+                    im.parseInputStream(new ByteArrayInputStream(xml), false);
+                    return im.getRepresentedFieldTypes().size();
+                }},
+            new Case("read (DOM)") {
+                public int run() throws Exception {
+                    ItemMetadata im = new ItemMetadata();
+                    im.parseDOMNode(DocumentHelper.getInstance().parseDocument(new ByteArrayInputStream(xml)));
+                    return im.getRepresentedFieldTypes().size();
+                }},
+            new Case("write (StAX)") {
+                public int run() throws Exception {
+                    ByteArrayOutputStream os = new ByteArrayOutputStream(xml.length);
+                    item.writeOutXML(os);
+                    return os.size();
+                }},
+            new Case("write (DOM)") {
+                public int run() throws Exception {
+                    ByteArrayOutputStream os = new ByteArrayOutputStream(xml.length);
+                    DocumentHelper.writeOutDocument(os, item.generateDocument());
+                    return os.size();
+                }},
+        };
+        for (Case c : cases) {
+            for (int i = 0; i < WARMUP_ROUNDS; i ++) {
+                runRound(c);
+            }
+            double total = 0;
+            double best = Double.MAX_VALUE;
+            for (int i = 0; i < MEASURED_ROUNDS; i ++) {
+                double perOperation = runRound(c);
+                total += perOperation;
+                best = Math.min(best, perOperation);
+            }
+            System.out.println(String.format("%-14s mean %8.1f us/op, best %8.1f us/op", c.name, total / MEASURED_ROUNDS, best));
+        }
+        System.out.println("(" + sink + ")");
+    }
+    
+    /**
+     * Runs one round of the given case.
+     * @return the mean number of microseconds per operation
+     */
+    private static double runRound(Case c) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS_PER_ROUND; i ++) {
+            sink += c.run();
+        }
+        return (System.nanoTime() - start) / 1000.0 / OPERATIONS_PER_ROUND;
+    }
+    
+    /**
+     * Creates an item with the given number of fields, each with an
+     * attribute and the given number of two-part values.
+     */
+    private static ItemMetadata createItem(int fieldCount, int valueCount) {
+        ItemMetadata item = new ItemMetadata("benchmark/item1", "benchmark");
+        for (int f = 0; f < fieldCount; f ++) {
+            List<NameValuePair> attributes = new ArrayList<NameValuePair>();
+            attributes.add(new NameValuePair("source", "benchmark"));
+            List<List<NameValuePair>> values = new ArrayList<List<NameValuePair>>();
+            for (int v = 0; v < valueCount; v ++) {
+                List<NameValuePair> parts = new ArrayList<NameValuePair>();
+                parts.add(new NameValuePair("text", "Value " + v + " of field " + f + ", with some & characters < to escape"));
+                parts.add(new NameValuePair("authority", "local"));
+                values.add(parts);
+            }
+            item.setFieldValue("field" + f, new FieldData("field" + f, attributes, values));
+        }
+        return item;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.indiana.dlib.catalog.config.FieldData;
+import edu.indiana.dlib.catalog.config.ItemMetadata;
+import edu.indiana.dlib.catalog.config.NameValuePair;
+import edu.indiana.dlib.catalog.config.impl.fedora.FedoraStandIn;
+
+/**
+ * Measures the fedora-backed FedoraItemManager operations against
+ * a FedoraStandIn populated with ITEM_COUNT items, each with a 
+ * metadata datastream and a thumbnail.  A fixed latency (with 
+ * jitter) is added to every request to approximate a remote 
+ * fedora server, so the results reflect the number and 
+ * concurrency of the requests rather than the speed of the 
+ * stand-in.  For each case the mean time per operation and the
+ * number of fedora requests per operation are reported.  This 
+ * is a plain timing harness that is run by the "benchmark" target 
+ * of the build.
+ * Usage: FedoraItemManagerBenchmark [latencyMillis [jitterMillis]]
+ */
+public class FedoraItemManagerBenchmark {
+
+    private static final int ITEM_COUNT = 200;
+    
+    private static final int WARMUP_ROUNDS = 1;
+    
+    private static final int MEASURED_ROUNDS = 3;
+    
+    /**
+     * The number of items in the search results page whose previews
+     * are resolved by each fetchPreviews() operation.
+     */
+    private static final int PREVIEW_PAGE_SIZE = 50;
+    
+    private static final String CONTENT_MODEL = "cmodel:benchmark-item";
+    
+    private static final String METADATA_DS_ID = "METADATA";
+    
+    private static final int PREVIEW_THREADS = 8;
+    
+    private static final int MAX_CONNECTIONS = 20;
+    
+    /**
+     * A value derived from the result of every operation so that 
+     * the work can't be optimized away.
+     */
+    private static long sink;
+    
+    private static abstract class Case {
+        
+        private String name;
+        
+        private int operationsPerRound;
+        
+        public Case(String name, int operationsPerRound) {
+            this.name = name;
+            this.operationsPerRound = operationsPerRound;
+        }
+        
+        public abstract int run(int operation) throws Exception;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        long latency = (args.length > 0 ? Long.parseLong(args[0]) : 5);
+        long jitter = (args.length > 1 ? Long.parseLong(args[1]) : 2);
+        File dir = File.createTempFile("fedora-benchmark", "");
+        dir.delete();
+        FedoraStandIn fedora = new FedoraStandIn(dir, "fedora", 0);
+        final List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < ITEM_COUNT; i ++) {
+            String pid = "benchmark:" + i;
+            String id = "benchmark/item" + i;
+            fedora.addObject(pid, id, CONTENT_MODEL);
+            fedora.putDatastream(pid, METADATA_DS_ID, "text/xml", createItemMetadata(id));
+            fedora.putDatastream(pid, "THUMBNAIL", "image/jpeg", new byte[1024]);
+            ids.add(id);
+        }
+        fedora.start();
+        fedora.setLatency(latency, jitter);
+        System.out.println(ITEM_COUNT + " items, " + latency + "ms (+/- " + jitter + "ms) latency per request");
+        
+        // a manager that caches nothing, and one that caches every 
+        // item but validates it on every fetch
+        final FedoraItemManager uncached = new FedoraItemManager(null, null, "localhost", "fedora", fedora.getPort(), CONTENT_MODEL, METADATA_DS_ID, PREVIEW_THREADS, MAX_CONNECTIONS, 1, 0);
+        final FedoraItemManager cached = new FedoraItemManager(null, null, "localhost", "fedora", fedora.getPort(), CONTENT_MODEL, METADATA_DS_ID, PREVIEW_THREADS, MAX_CONNECTIONS, ITEM_COUNT, 0);
+        try {
+            Case[] cases = new Case[] {
+                new Case("fetchItem (uncached)", ITEM_COUNT) {
+                    public int run(int operation) throws Exception {
+                        return uncached.fetchItem(ids.get(operation)).getMetadata().getRepresentedFieldTypes().size();
+                    }},
+                new Case("fetchItem (validated)", ITEM_COUNT) {
+                    public int run(int operation) throws Exception {
+                        return cached.fetchItem(ids.get(operation)).getMetadata().getRepresentedFieldTypes().size();
+                    }},
+                new Case("fetchItemMetadata", ITEM_COUNT) {
+                    public int run(int operation) throws Exception {
+                        return uncached.fetchItemMetadata(ids.get(operation)).getRepresentedFieldTypes().size();
+                    }},
+                new Case("fetchPreviews (" + PREVIEW_PAGE_SIZE + ")", ITEM_COUNT / PREVIEW_PAGE_SIZE) {
+                    public int run(int operation) throws Exception {
+                        return uncached.fetchPreviews(ids.subList(operation * PREVIEW_PAGE_SIZE, (operation + 1) * PREVIEW_PAGE_SIZE)).size();
+                    }},
+            };
+            for (Case c : cases) {
+                for (int i = 0; i < WARMUP_ROUNDS; i ++) {
+                    runRound(c);
+                }
+                double total = 0;
+                double best = Double.MAX_VALUE;
+                long requests = fedora.getRequestCount();
+                for (int i = 0; i < MEASURED_ROUNDS; i ++) {
+                    double perOperation = runRound(c);
+                    total += perOperation;
+                    best = Math.min(best, perOperation);
+                }
+                double requestsPerOperation = (double) (fedora.getRequestCount() - requests) / (MEASURED_ROUNDS * c.operationsPerRound);
+                System.out.println(String.format("%-22s mean %8.2f ms/op, best %8.2f ms/op, %6.2f requests/op", c.name, total / MEASURED_ROUNDS, best, requestsPerOperation));
+            }
+            System.out.println("(" + sink + ")");
+        } finally {
+            uncached.destroy();
+            cached.destroy();
+            fedora.stop(0);
+            delete(dir);
+        }
+    }
+    
+    /**
+     * Runs one round of the given case.
+     * @return the mean number of milliseconds per operation
+     */
+    private static double runRound(Case c) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < c.operationsPerRound; i ++) {
+            sink += c.run(i);
+        }
+        return (System.nanoTime() - start) / 1000000.0 / c.operationsPerRound;
+    }
+    
+    /**
+     * Creates the serialized metadata for an item with a few 
+     * single-valued fields.
+     */
+    private static byte[] createItemMetadata(String id) throws Exception {
+        ItemMetadata item = new ItemMetadata(id, "benchmark");
+        for (int f = 0; f < 10; f ++) {
+            List<List<NameValuePair>> values = new ArrayList<List<NameValuePair>>();
+            List<NameValuePair> parts = new ArrayList<NameValuePair>();
+            parts.add(new NameValuePair("text", "Value of field " + f + " for " + id));
+            values.add(parts);
+            item.setFieldValue("field" + f, new FieldData("field" + f, new ArrayList<NameValuePair>(), values));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        item.writeOutXML(baos);
+        return baos.toByteArray();
+    }
+    
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
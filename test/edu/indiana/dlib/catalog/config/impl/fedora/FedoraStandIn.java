@@ -0,0 +1,1011 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.config.impl.fedora;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ *   An embedded HTTP server that stands in for fedora so that the
+ *   code in this package (and the managers built on it) can be
+ *   exercised, load-tested and benchmarked without a live fedora
+ *   installation.  Only the subset of the fedora 3 REST API and
+ *   resource index that is used by FedoraRestApiWrapper is 
+ *   implemented:
+ *   <ul>
+ *     <li>GET /objects/{pid}</li>
+ *     <li>GET /objects/{pid}/datastreams</li>
+ *     <li>GET and POST /objects/{pid}/datastreams/{dsId}</li>
+ *     <li>GET /objects/{pid}/datastreams/{dsId}/content (with optional asOfDateTime)</li>
+ *     <li>GET /objects/{pid}/datastreams/{dsId}/history</li>
+ *     <li>GET /get/{pid}/{dsId}</li>
+ *     <li>GET /risearch for the handful of query shapes that 
+ *         FedoraRestApiWrapper issues, answered in the "Sparql" 
+ *         format</li>
+ *   </ul>
+ *   Authentication is not enforced and all responses are XML 
+ *   regardless of the requested format.
+ * </p>
+ * <p>
+ *   The repository is backed by a local directory containing one
+ *   subdirectory for each object.  Each object directory has an 
+ *   "object.properties" file with the object's "pid", its 
+ *   "identifier" (dc:identifier), its "state" (A, I or D) and any
+ *   relationships (named by the local name of the predicate, like 
+ *   "hasModel" or "hasMetadata") as space-separated lists of pids.
+ *   The mime type and label of each datastream are stored as 
+ *   "{dsId}.mimeType" and "{dsId}.label".  Each datastream is a
+ *   subdirectory of the object directory containing one file for
+ *   each version, named by its creation time in milliseconds.  
+ *   Objects may be created by hand, or with addObject(), 
+ *   addRelationship() and putDatastream().
+ * </p>
+ * <p>
+ *   To approximate a remote fedora under load, a fixed latency 
+ *   (plus a random jitter) may be added to every request and a 
+ *   fraction of requests may be failed with a 500 response.  
+ *   These settings may be changed while the server is running.
+ * </p>
+ */
+public class FedoraStandIn {
+
+    private static final Logger LOGGER = Logger.getLogger(FedoraStandIn.class);
+    
+    public static final String OBJECT_PROPERTIES = "object.properties";
+    
+    private static final String ACCESS_NS = "http://www.fedora.info/definitions/1/0/access/";
+    
+    private static final String MANAGEMENT_NS = "http://www.fedora.info/definitions/1/0/management/";
+    
+    private static final String SPARQL_NS = "http://www.w3.org/2001/sw/DataAccess/rf1/result";
+    
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    
+    /**
+     * "select $member from <#ri> where $member <dc:identifier> 'X'"
+     */
+    private static final Pattern IDENTIFIER_QUERY = Pattern.compile("select \\$member from <#ri> where \\$member <dc:identifier> '(.*)'");
+    
+    /**
+     * "select $member $identifier from <#ri> where $member 
+     * <fedora-model:hasModel> <info:fedora/X> and $member 
+     * <dc:identifier> $identifier"
+     */
+    private static final Pattern MODEL_QUERY = Pattern.compile("select \\$member \\$identifier from <#ri> where \\$member <fedora-model:hasModel> <info:fedora/([^>]+)> and \\$member <dc:identifier> \\$identifier");
+    
+    /**
+     * "select $child from <#ri> where $child <R> <info:fedora/X>"
+     * optionally followed by a clause that excludes deleted objects.
+     */
+    private static final Pattern RELATIONSHIP_QUERY = Pattern.compile("select \\$child from <#ri> where \\$child <([^>]+)> <info:fedora/([^>]+)> ?(minus \\$child <fedora-model:state> <info:fedora/fedora-system:def/model#Deleted>)?");
+    
+    /**
+     * Matches each item in the FILTER clause of the query issued by 
+     * FedoraRestApiWrapper.listDatastreamsWithMetadataObjects().
+     */
+    private static final Pattern FILTER_ITEM = Pattern.compile("\\?item = <info:fedora/([^>]+)>");
+    
+    /**
+     * The directory in which the objects are stored.
+     */
+    private File directory;
+    
+    /**
+     * The context name (the first path segment of every URL) at 
+     * which fedora is served.
+     */
+    private String contextName;
+    
+    /**
+     * A map from pid to each object in the repository.  Modifications
+     * of an object are synchronized on that object.
+     */
+    private Map<String, StoredObject> objects;
+    
+    private HttpServer server;
+    
+    private ExecutorService executor;
+    
+    private volatile long latency;
+    
+    private volatile long latencyJitter;
+    
+    private volatile double errorRate;
+    
+    private Random random;
+    
+    private AtomicLong requestCount;
+    
+    private AtomicLong injectedErrorCount;
+    
+    /**
+     * Creates a stand-in for fedora backed by the given directory 
+     * (which is created if it doesn't exist).  The server isn't
+     * started until start() is called.
+     * @param directory the directory containing the objects
+     * @param contextName the context name at which fedora is served 
+     * (typically "fedora")
+     * @param port the port on which to listen or 0 to use any free
+     * port
+     */
+    public FedoraStandIn(File directory, String contextName, int port) throws IOException {
+        this.directory = directory;
+        this.contextName = contextName;
+        this.objects = new ConcurrentHashMap<String, StoredObject>();
+        this.random = new Random();
+        this.requestCount = new AtomicLong();
+        this.injectedErrorCount = new AtomicLong();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory + "!");
+        }
+        load();
+        
+        // the server writes the headers and body of each response 
+        // separately, so without TCP_NODELAY most responses are held
+        // up by the client's delayed ACK (about 40ms) which would 
+        // swamp any measurement
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/" + contextName, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }});
+        // a cached pool, so that injected latency doesn't limit 
+        // the number of concurrent requests
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+    }
+    
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        this.server.start();
+        LOGGER.info("Fedora stand-in for " + this.directory + " listening at http://localhost:" + getPort() + "/" + this.contextName);
+    }
+    
+    /**
+     * Stops accepting requests, waiting up to the given number of
+     * seconds for requests in progress to complete.
+     */
+    public void stop(int delaySeconds) {
+        this.server.stop(delaySeconds);
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Gets the port on which this server is listening.  This is 
+     * useful when the server was created with port 0.
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+    
+    public String getContextName() {
+        return this.contextName;
+    }
+    
+    /**
+     * Sets the latency that is added to every request.
+     * @param millis the number of milliseconds to wait before 
+     * handling each request
+     * @param jitterMillis the maximum number of milliseconds 
+     * (chosen uniformly at random for each request) that are 
+     * added to that wait
+     */
+    public void setLatency(long millis, long jitterMillis) {
+        this.latency = millis;
+        this.latencyJitter = jitterMillis;
+    }
+    
+    /**
+     * Sets the fraction (from 0 to 1) of requests that fail with
+     * a 500 response (after the injected latency).
+     */
+    public void setErrorRate(double errorRate) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("The error rate must be between 0 and 1!");
+        }
+        this.errorRate = errorRate;
+    }
+    
+    /**
+     * Gets the number of requests received since the server was
+     * created.
+     */
+    public long getRequestCount() {
+        return this.requestCount.get();
+    }
+    
+    /**
+     * Gets the number of requests that were failed because of the
+     * configured error rate.
+     */
+    public long getInjectedErrorCount() {
+        return this.injectedErrorCount.get();
+    }
+    
+    /**
+     * Adds an (active) object to the repository.
+     * @param pid the pid of the new object
+     * @param identifier the dc:identifier of the object, or null
+     * @param contentModelPid the pid of the object's content model
+     * or null
+     * @throws IllegalStateException if the object already exists
+     */
+    public void addObject(String pid, String identifier, String contentModelPid) throws IOException {
+        File objectDir = new File(this.directory, pid.replace(':', '_'));
+        if (this.objects.containsKey(pid) || objectDir.exists()) {
+            throw new IllegalStateException("Object " + pid + " already exists!");
+        }
+        if (!objectDir.mkdirs()) {
+            throw new IOException("Unable to create " + objectDir + "!");
+        }
+        StoredObject object = new StoredObject(pid, objectDir, new Properties());
+        object.properties.setProperty("pid", pid);
+        object.properties.setProperty("state", "A");
+        if (identifier != null) {
+            object.properties.setProperty("identifier", identifier);
+        }
+        if (contentModelPid != null) {
+            object.properties.setProperty("hasModel", contentModelPid);
+        }
+        object.storeProperties();
+        this.objects.put(pid, object);
+    }
+    
+    /**
+     * Adds a relationship from the object with the given pid to 
+     * another object.
+     * @param relationship the local name of the predicate, like 
+     * "hasMetadata"
+     */
+    public void addRelationship(String pid, String relationship, String objectPid) throws IOException {
+        StoredObject object = getExistingObject(pid);
+        synchronized (object) {
+            List<String> pids = object.getRelated(relationship);
+            if (!pids.contains(objectPid)) {
+                String value = object.properties.getProperty(relationship);
+                object.properties.setProperty(relationship, (value == null || value.trim().length() == 0 ? "" : value + " ") + objectPid);
+                object.storeProperties();
+            }
+        }
+    }
+    
+    /**
+     * Adds a new version of the given datastream.
+     */
+    public void putDatastream(String pid, String dsId, String mimeType, byte[] content) throws IOException {
+        StoredObject object = getExistingObject(pid);
+        synchronized (object) {
+            object.addVersion(dsId, mimeType, null, content);
+        }
+    }
+    
+    private StoredObject getExistingObject(String pid) {
+        StoredObject object = this.objects.get(pid);
+        if (object == null) {
+            throw new IllegalArgumentException("Object " + pid + " does not exist!");
+        }
+        return object;
+    }
+    
+    /**
+     * Loads every object from the directory.
+     */
+    private void load() throws IOException {
+        File[] objectDirs = this.directory.listFiles();
+        for (File objectDir : objectDirs) {
+            File propertiesFile = new File(objectDir, OBJECT_PROPERTIES);
+            if (propertiesFile.isFile()) {
+                Properties p = new Properties();
+                FileInputStream fis = new FileInputStream(propertiesFile);
+                try {
+                    p.load(fis);
+                } finally {
+                    fis.close();
+                }
+                String pid = p.getProperty("pid");
+                if (pid == null) {
+                    LOGGER.warn("Skipping " + objectDir + " because no pid is specified.");
+                    continue;
+                }
+                StoredObject object = new StoredObject(pid, objectDir, p);
+                for (File dsDir : objectDir.listFiles()) {
+                    if (dsDir.isDirectory()) {
+                        List<Version> versions = new ArrayList<Version>();
+                        for (File versionFile : dsDir.listFiles()) {
+                            try {
+                                versions.add(new Version(Long.parseLong(versionFile.getName()), versionFile, md5(versionFile)));
+                            } catch (NumberFormatException ex) {
+                                // not a version file (possibly an incomplete write)
+                            }
+                        }
+                        if (!versions.isEmpty()) {
+                            Collections.sort(versions);
+                            object.datastreams.put(dsDir.getName(), versions);
+                        }
+                    }
+                }
+                this.objects.put(pid, object);
+            }
+        }
+        LOGGER.info("Loaded " + this.objects.size() + " objects from " + this.directory + ".");
+    }
+    
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        try {
+            this.requestCount.incrementAndGet();
+            long delay = this.latency + (this.latencyJitter > 0 ? (long) (this.random.nextDouble() * this.latencyJitter) : 0);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            if (this.errorRate > 0 && this.random.nextDouble() < this.errorRate) {
+                this.injectedErrorCount.incrementAndGet();
+                sendText(exchange, 500, "Injected failure.");
+                return;
+            }
+            
+            String path = exchange.getRequestURI().getPath().substring(this.contextName.length() + 1);
+            List<String> segments = new ArrayList<String>();
+            for (String segment : path.split("/")) {
+                if (segment.length() > 0) {
+                    segments.add(segment);
+                }
+            }
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+            int count = segments.size();
+            if (count == 0) {
+                sendText(exchange, 404, "Not found.");
+            } else if (segments.get(0).equals("objects") && count > 1) {
+                StoredObject object = this.objects.get(segments.get(1));
+                if (object == null) {
+                    sendText(exchange, 404, "No object " + segments.get(1) + ".");
+                } else if (count == 2 && method.equals("GET")) {
+                    sendObjectProfile(exchange, object);
+                } else if (count == 3 && segments.get(2).equals("datastreams") && method.equals("GET")) {
+                    sendDatastreamList(exchange, object);
+                } else if (count == 4 && segments.get(2).equals("datastreams") && method.equals("GET")) {
+                    sendDatastreamProfile(exchange, object, segments.get(3));
+                } else if (count == 4 && segments.get(2).equals("datastreams") && method.equals("POST")) {
+                    addOrModifyDatastream(exchange, object, segments.get(3), params);
+                } else if (count == 5 && segments.get(2).equals("datastreams") && segments.get(4).equals("content") && method.equals("GET")) {
+                    sendContent(exchange, object, segments.get(3), params.get("asOfDateTime"));
+                } else if (count == 5 && segments.get(2).equals("datastreams") && segments.get(4).equals("history") && method.equals("GET")) {
+                    sendDatastreamHistory(exchange, object, segments.get(3));
+                } else {
+                    sendText(exchange, 405, "Unsupported request: " + method + " " + path);
+                }
+            } else if (segments.get(0).equals("get") && count == 3 && method.equals("GET")) {
+                StoredObject object = this.objects.get(segments.get(1));
+                if (object == null) {
+                    sendText(exchange, 404, "No object " + segments.get(1) + ".");
+                } else {
+                    sendContent(exchange, object, segments.get(2), null);
+                }
+            } else if (segments.get(0).equals("risearch") && count == 1) {
+                resourceIndexSearch(exchange, params);
+            } else {
+                sendText(exchange, 404, "Unsupported request: " + method + " " + path);
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Error handling " + exchange.getRequestURI() + "!", t);
+            try {
+                sendText(exchange, 500, String.valueOf(t.getMessage()));
+            } catch (IOException ex) {
+                // the response was already started
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    private void sendObjectProfile(HttpExchange exchange, StoredObject object) throws IOException, XMLStreamException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XMLStreamWriter w = OUTPUT_FACTORY.createXMLStreamWriter(baos, "UTF-8");
+        w.writeStartDocument("UTF-8", "1.0");
+        w.writeStartElement("objectProfile");
+        w.writeDefaultNamespace(ACCESS_NS);
+        w.writeAttribute("pid", object.pid);
+        writeElement(w, "objLabel", object.properties.getProperty("label", ""));
+        writeElement(w, "objState", object.getState());
+        w.writeEndElement();
+        w.writeEndDocument();
+        w.close();
+        sendBytes(exchange, 200, "text/xml", baos.toByteArray());
+    }
+    
+    private void sendDatastreamList(HttpExchange exchange, StoredObject object) throws IOException, XMLStreamException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XMLStreamWriter w = OUTPUT_FACTORY.createXMLStreamWriter(baos, "UTF-8");
+        w.writeStartDocument("UTF-8", "1.0");
+        w.writeStartElement("objectDatastreams");
+        w.writeDefaultNamespace(ACCESS_NS);
+        w.writeAttribute("pid", object.pid);
+        synchronized (object) {
+            for (String dsId : object.datastreams.keySet()) {
+                w.writeEmptyElement("datastream");
+                w.writeAttribute("dsid", dsId);
+                w.writeAttribute("label", object.properties.getProperty(dsId + ".label", ""));
+                w.writeAttribute("mimeType", object.getMimeType(dsId));
+            }
+        }
+        w.writeEndElement();
+        w.writeEndDocument();
+        w.close();
+        sendBytes(exchange, 200, "text/xml", baos.toByteArray());
+    }
+    
+    private void sendDatastreamProfile(HttpExchange exchange, StoredObject object, String dsId) throws IOException, XMLStreamException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XMLStreamWriter w = OUTPUT_FACTORY.createXMLStreamWriter(baos, "UTF-8");
+        synchronized (object) {
+            List<Version> versions = object.datastreams.get(dsId);
+            if (versions == null) {
+                sendText(exchange, 404, "No datastream " + dsId + " on " + object.pid + ".");
+                return;
+            }
+            w.writeStartDocument("UTF-8", "1.0");
+            writeProfile(w, object, dsId, versions.size() - 1, true);
+            w.writeEndDocument();
+            w.close();
+        }
+        sendBytes(exchange, 200, "text/xml", baos.toByteArray());
+    }
+    
+    private void sendDatastreamHistory(HttpExchange exchange, StoredObject object, String dsId) throws IOException, XMLStreamException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XMLStreamWriter w = OUTPUT_FACTORY.createXMLStreamWriter(baos, "UTF-8");
+        synchronized (object) {
+            List<Version> versions = object.datastreams.get(dsId);
+            if (versions == null) {
+                sendText(exchange, 404, "No datastream " + dsId + " on " + object.pid + ".");
+                return;
+            }
+            w.writeStartDocument("UTF-8", "1.0");
+            w.writeStartElement("datastreamHistory");
+            w.writeDefaultNamespace(MANAGEMENT_NS);
+            w.writeAttribute("pid", object.pid);
+            w.writeAttribute("dsID", dsId);
+            for (int i = versions.size() - 1; i >= 0; i --) {
+                writeProfile(w, object, dsId, i, false);
+            }
+            w.writeEndElement();
+            w.writeEndDocument();
+            w.close();
+        }
+        sendBytes(exchange, 200, "text/xml", baos.toByteArray());
+    }
+    
+    /**
+     * Writes a datastreamProfile element for the given version.
+     * Must be called while synchronized on the object.
+     */
+    private void writeProfile(XMLStreamWriter w, StoredObject object, String dsId, int index, boolean root) throws XMLStreamException {
+        Version version = object.datastreams.get(dsId).get(index);
+        w.writeStartElement("datastreamProfile");
+        if (root) {
+            w.writeDefaultNamespace(MANAGEMENT_NS);
+            w.writeAttribute("pid", object.pid);
+            w.writeAttribute("dsID", dsId);
+        }
+        writeElement(w, "dsLabel", object.properties.getProperty(dsId + ".label", ""));
+        writeElement(w, "dsVersionID", dsId + "." + index);
+        writeElement(w, "dsCreateDate", FedoraRestApiWrapper.printFedoraDateString(new Date(version.created)));
+        writeElement(w, "dsState", "A");
+        writeElement(w, "dsMIME", object.getMimeType(dsId));
+        writeElement(w, "dsFormatURI", "");
+        writeElement(w, "dsControlGroup", object.properties.getProperty(dsId + ".controlGroup", "M"));
+        writeElement(w, "dsSize", String.valueOf(version.file.length()));
+        writeElement(w, "dsVersionable", "true");
+        writeElement(w, "dsInfoType", "");
+        writeElement(w, "dsLocation", object.pid + "+" + dsId + "+" + dsId + "." + index);
+        writeElement(w, "dsLocationType", "INTERNAL_ID");
+        writeElement(w, "dsChecksumType", "MD5");
+        writeElement(w, "dsChecksum", version.checksum);
+        w.writeEndElement();
+    }
+    
+    private void sendContent(HttpExchange exchange, StoredObject object, String dsId, String asOfDateTime) throws IOException, ParseException {
+        Version version = null;
+        String mimeType = null;
+        synchronized (object) {
+            List<Version> versions = object.datastreams.get(dsId);
+            if (versions != null) {
+                long asOf = asOfDateTime == null ? Long.MAX_VALUE : FedoraRestApiWrapper.parseFedoraDate(asOfDateTime).getTime();
+                for (Version v : versions) {
+                    if (v.created <= asOf) {
+                        version = v;
+                    }
+                }
+                mimeType = object.getMimeType(dsId);
+            }
+        }
+        if (version == null) {
+            sendText(exchange, 404, "No datastream " + dsId + " on " + object.pid + (asOfDateTime != null ? " as of " + asOfDateTime : "") + ".");
+            return;
+        }
+        // version files are never modified once written, so they 
+        // may be read without holding the lock
+        exchange.getResponseHeaders().set("Content-Type", mimeType);
+        exchange.sendResponseHeaders(200, version.file.length());
+        InputStream is = new FileInputStream(version.file);
+        try {
+            copy(is, exchange.getResponseBody());
+        } finally {
+            is.close();
+        }
+    }
+    
+    /**
+     * Handles the POST used both to add a datastream and to modify
+     * an existing one.  Like fedora, the modification fails with a 
+     * 409 response if a "lastModifiedDate" is given and the 
+     * datastream has been modified since that date.
+     */
+    private void addOrModifyDatastream(HttpExchange exchange, StoredObject object, String dsId, Map<String, String> params) throws IOException, XMLStreamException, ParseException {
+        byte[] content = readRequestContent(exchange);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XMLStreamWriter w = OUTPUT_FACTORY.createXMLStreamWriter(baos, "UTF-8");
+        boolean created = false;
+        synchronized (object) {
+            List<Version> versions = object.datastreams.get(dsId);
+            created = (versions == null);
+            if (!created && params.get("lastModifiedDate") != null) {
+                long lastModified = FedoraRestApiWrapper.parseFedoraDate(params.get("lastModifiedDate")).getTime();
+                if (versions.get(versions.size() - 1).created > lastModified) {
+                    sendText(exchange, 409, "Datastream " + dsId + " on " + object.pid + " was modified after " + params.get("lastModifiedDate") + ".");
+                    return;
+                }
+            }
+            object.addVersion(dsId, params.get("mimeType"), params.get("dsLabel"), content);
+            if (created && params.get("controlGroup") != null) {
+                object.properties.setProperty(dsId + ".controlGroup", params.get("controlGroup"));
+                object.storeProperties();
+            }
+            w.writeStartDocument("UTF-8", "1.0");
+            writeProfile(w, object, dsId, object.datastreams.get(dsId).size() - 1, true);
+            w.writeEndDocument();
+            w.close();
+        }
+        sendBytes(exchange, created ? 201 : 200, "text/xml", baos.toByteArray());
+    }
+    
+    /**
+     * Reads the content of the datastream from the request, which
+     * is either the single part of a multipart/form-data request or
+     * the entire request body.
+     */
+    private byte[] readRequestContent(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), baos);
+        byte[] body = baos.toByteArray();
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.startsWith("multipart/form-data")) {
+            return body;
+        }
+        Matcher m = Pattern.compile("boundary=\"?([^\";]+)\"?").matcher(contentType);
+        if (!m.find()) {
+            throw new IOException("No boundary in multipart request!");
+        }
+        byte[] delimiter = ("--" + m.group(1)).getBytes("ISO-8859-1");
+        int partStart = indexOf(body, delimiter, 0);
+        int headerEnd = partStart == -1 ? -1 : indexOf(body, "\r\n\r\n".getBytes("ISO-8859-1"), partStart);
+        int partEnd = headerEnd == -1 ? -1 : indexOf(body, ("\r\n" + new String(delimiter, "ISO-8859-1")).getBytes("ISO-8859-1"), headerEnd);
+        if (partEnd == -1) {
+            throw new IOException("Malformed multipart request!");
+        }
+        byte[] content = new byte[partEnd - (headerEnd + 4)];
+        System.arraycopy(body, headerEnd + 4, content, 0, content.length);
+        return content;
+    }
+    
+    /**
+     * Answers the resource index queries issued by the 
+     * FedoraRestApiWrapper by recognizing their shape rather than
+     * by evaluating them.  Unrecognized queries result in a 400 
+     * response.
+     */
+    private void resourceIndexSearch(HttpExchange exchange, Map<String, String> params) throws IOException, XMLStreamException {
+        String query = params.get("query");
+        if (query == null) {
+            sendText(exchange, 400, "No query specified.");
+            return;
+        }
+        query = query.replaceAll("\\s+", " ").trim();
+        List<String> variables = new ArrayList<String>();
+        List<String[]> results = new ArrayList<String[]>();
+        Matcher m = null;
+        if ((m = IDENTIFIER_QUERY.matcher(query)).matches()) {
+            variables.add("member");
+            for (StoredObject object : this.objects.values()) {
+                if (m.group(1).equals(object.properties.getProperty("identifier"))) {
+                    results.add(new String[] { uri(object.pid) });
+                }
+            }
+        } else if ((m = MODEL_QUERY.matcher(query)).matches()) {
+            variables.add("member");
+            variables.add("identifier");
+            for (StoredObject object : this.objects.values()) {
+                String identifier = object.properties.getProperty("identifier");
+                if (identifier != null && object.getRelated("hasModel").contains(m.group(1))) {
+                    results.add(new String[] { uri(object.pid), identifier });
+                }
+            }
+        } else if ((m = RELATIONSHIP_QUERY.matcher(query)).matches()) {
+            variables.add("child");
+            String relationship = m.group(1).substring(Math.max(m.group(1).lastIndexOf('#'), m.group(1).lastIndexOf(':')) + 1);
+            boolean excludeDeleted = m.group(3) != null;
+            for (StoredObject object : this.objects.values()) {
+                if (object.getRelated(relationship).contains(m.group(2)) && !(excludeDeleted && "D".equals(object.getState()))) {
+                    results.add(new String[] { uri(object.pid) });
+                }
+            }
+        } else if (query.startsWith("select ?item ?obj ?ds where") && query.contains("view#disseminates") && query.contains("FILTER")) {
+            variables.add("item");
+            variables.add("obj");
+            variables.add("ds");
+            m = FILTER_ITEM.matcher(query);
+            while (m.find()) {
+                StoredObject item = this.objects.get(m.group(1));
+                if (item != null) {
+                    for (String dsId : item.getDatastreamIds()) {
+                        results.add(new String[] { uri(item.pid), null, uri(item.pid + "/" + dsId) });
+                    }
+                    for (String objPid : item.getRelated("hasMetadata")) {
+                        StoredObject obj = this.objects.get(objPid);
+                        if (obj != null) {
+                            for (String dsId : obj.getDatastreamIds()) {
+                                results.add(new String[] { uri(item.pid), uri(obj.pid), uri(obj.pid + "/" + dsId) });
+                            }
+                        }
+                    }
+                }
+            }
+        } else {
+            LOGGER.warn("Unsupported resource index query: " + query);
+            sendText(exchange, 400, "Unsupported query: " + query);
+            return;
+        }
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XMLStreamWriter w = OUTPUT_FACTORY.createXMLStreamWriter(baos, "UTF-8");
+        w.writeStartDocument("UTF-8", "1.0");
+        w.writeStartElement("sparql");
+        w.writeDefaultNamespace(SPARQL_NS);
+        w.writeStartElement("head");
+        for (String variable : variables) {
+            w.writeEmptyElement("variable");
+            w.writeAttribute("name", variable);
+        }
+        w.writeEndElement();
+        w.writeStartElement("results");
+        for (String[] result : results) {
+            w.writeStartElement("result");
+            for (int i = 0; i < result.length; i ++) {
+                if (result[i] == null) {
+                    w.writeEmptyElement(variables.get(i));
+                    w.writeAttribute("bound", "false");
+                } else if (result[i].startsWith("info:fedora/")) {
+                    w.writeEmptyElement(variables.get(i));
+                    w.writeAttribute("uri", result[i]);
+                } else {
+                    writeElement(w, variables.get(i), result[i]);
+                }
+            }
+            w.writeEndElement();
+        }
+        w.writeEndElement();
+        w.writeEndElement();
+        w.writeEndDocument();
+        w.close();
+        sendBytes(exchange, 200, "text/xml", baos.toByteArray());
+    }
+    
+    private static String uri(String pid) {
+        return "info:fedora/" + pid;
+    }
+    
+    private static void writeElement(XMLStreamWriter w, String name, String value) throws XMLStreamException {
+        w.writeStartElement(name);
+        w.writeCharacters(value);
+        w.writeEndElement();
+    }
+    
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        sendBytes(exchange, status, "text/plain", message.getBytes("UTF-8"));
+    }
+    
+    private static void sendBytes(HttpExchange exchange, int status, String contentType, byte[] bytes) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+    
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (rawQuery != null) {
+            for (String param : rawQuery.split("&")) {
+                int equals = param.indexOf('=');
+                if (equals != -1) {
+                    params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"), URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+                } else if (param.length() > 0) {
+                    params.put(URLDecoder.decode(param, "UTF-8"), "");
+                }
+            }
+        }
+        return params;
+    }
+    
+    private static int indexOf(byte[] data, byte[] target, int start) {
+        for (int i = start; i <= data.length - target.length; i ++) {
+            int j = 0;
+            while (j < target.length && data[i + j] == target[j]) {
+                j ++;
+            }
+            if (j == target.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+    }
+    
+    private static String md5(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(content)) {
+                hex.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private static String md5(File file) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            copy(fis, baos);
+        } finally {
+            fis.close();
+        }
+        return md5(baos.toByteArray());
+    }
+    
+    /**
+     * An object in the repository.  All access to the properties 
+     * and datastreams must be synchronized on the object.
+     */
+    private static class StoredObject {
+        
+        private String pid;
+        
+        private File dir;
+        
+        private Properties properties;
+        
+        /**
+         * A map from datastream id to the versions of that datastream
+         * (oldest first).
+         */
+        private Map<String, List<Version>> datastreams;
+        
+        public StoredObject(String pid, File dir, Properties properties) {
+            this.pid = pid;
+            this.dir = dir;
+            this.properties = properties;
+            this.datastreams = new TreeMap<String, List<Version>>();
+        }
+        
+        public synchronized String getState() {
+            return this.properties.getProperty("state", "A");
+        }
+        
+        public synchronized String getMimeType(String dsId) {
+            return this.properties.getProperty(dsId + ".mimeType", "text/xml");
+        }
+        
+        public synchronized List<String> getRelated(String relationship) {
+            List<String> pids = new ArrayList<String>();
+            String value = this.properties.getProperty(relationship);
+            if (value != null) {
+                for (String pid : value.trim().split("\\s+")) {
+                    if (pid.length() > 0) {
+                        pids.add(pid);
+                    }
+                }
+            }
+            return pids;
+        }
+        
+        public synchronized List<String> getDatastreamIds() {
+            return new ArrayList<String>(this.datastreams.keySet());
+        }
+        
+        /**
+         * Writes the content as a new version of the datastream.  The
+         * version is written to a temporary file and renamed so that 
+         * version files are never seen partially written.
+         */
+        public synchronized void addVersion(String dsId, String mimeType, String label, byte[] content) throws IOException {
+            List<Version> versions = this.datastreams.get(dsId);
+            if (versions == null) {
+                versions = new ArrayList<Version>();
+            }
+            // creation dates must be unique and increasing
+            long created = System.currentTimeMillis();
+            if (!versions.isEmpty() && created <= versions.get(versions.size() - 1).created) {
+                created = versions.get(versions.size() - 1).created + 1;
+            }
+            File dsDir = new File(this.dir, dsId);
+            if (!dsDir.exists() && !dsDir.mkdirs()) {
+                throw new IOException("Unable to create " + dsDir + "!");
+            }
+            File tempFile = new File(dsDir, "." + created + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                fos.write(content);
+            } finally {
+                fos.close();
+            }
+            File versionFile = new File(dsDir, String.valueOf(created));
+            if (!tempFile.renameTo(versionFile)) {
+                tempFile.delete();
+                throw new IOException("Unable to write " + versionFile + "!");
+            }
+            versions.add(new Version(created, versionFile, md5(content)));
+            this.datastreams.put(dsId, versions);
+            
+            boolean propertiesChanged = false;
+            if (mimeType != null && !mimeType.equals(this.properties.getProperty(dsId + ".mimeType"))) {
+                this.properties.setProperty(dsId + ".mimeType", mimeType);
+                propertiesChanged = true;
+            }
+            if (label != null && !label.equals(this.properties.getProperty(dsId + ".label"))) {
+                this.properties.setProperty(dsId + ".label", label);
+                propertiesChanged = true;
+            }
+            if (propertiesChanged) {
+                storeProperties();
+            }
+        }
+        
+        public synchronized void storeProperties() throws IOException {
+            File tempFile = new File(this.dir, "." + OBJECT_PROPERTIES + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                this.properties.store(fos, null);
+            } finally {
+                fos.close();
+            }
+            File propertiesFile = new File(this.dir, OBJECT_PROPERTIES);
+            if (!tempFile.renameTo(propertiesFile)) {
+                tempFile.delete();
+                throw new IOException("Unable to write " + propertiesFile + "!");
+            }
+        }
+    }
+    
+    /**
+     * A version of a datastream.  Versions are immutable.
+     */
+    private static class Version implements Comparable<Version> {
+        
+        private long created;
+        
+        private File file;
+        
+        private String checksum;
+        
+        public Version(long created, File file, String checksum) {
+            this.created = created;
+            this.file = file;
+            this.checksum = checksum;
+        }
+
+        public int compareTo(Version o) {
+            return this.created < o.created ? -1 : (this.created == o.created ? 0 : 1);
+        }
+    }
+    
+    /**
+     * Runs a stand-in for fedora until the process is killed.
+     * Usage: FedoraStandIn directory port [latencyMillis [jitterMillis [errorRate]]]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: FedoraStandIn directory port [latencyMillis [jitterMillis [errorRate]]]");
+            System.exit(1);
+        }
+        FedoraStandIn fedora = new FedoraStandIn(new File(args[0]), "fedora", Integer.parseInt(args[1]));
+        fedora.setLatency(args.length > 2 ? Long.parseLong(args[2]) : 0, args.length > 3 ? Long.parseLong(args[3]) : 0);
+        fedora.setErrorRate(args.length > 4 ? Double.parseDouble(args[4]) : 0);
+        fedora.start();
+    }
+}
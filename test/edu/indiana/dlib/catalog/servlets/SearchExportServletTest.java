@@ -0,0 +1,178 @@
+/**
+ * Copyright 2011, Trustees of Indiana University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *   Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ *   Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ *   Neither the name of Indiana University nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE. 
+ */
+package edu.indiana.dlib.catalog.servlets;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import edu.indiana.dlib.catalog.config.DataView;
+import edu.indiana.dlib.catalog.config.FieldData;
+import edu.indiana.dlib.catalog.config.ItemMetadata;
+import edu.indiana.dlib.catalog.config.NameValuePair;
+import edu.indiana.dlib.catalog.config.XPathHelper;
+import edu.indiana.dlib.catalog.config.impl.DefaultItem;
+import edu.indiana.dlib.catalog.index.ItemMetadataLuceneIndex;
+import edu.indiana.dlib.catalog.search.BrowseQuery;
+import edu.indiana.dlib.catalog.search.BrowseResults;
+import edu.indiana.dlib.catalog.search.SearchException;
+import edu.indiana.dlib.catalog.search.SearchManager;
+import edu.indiana.dlib.catalog.search.SearchQuery;
+import edu.indiana.dlib.catalog.search.SearchResults;
+import edu.indiana.dlib.catalog.search.UnsupportedQueryException;
+import edu.indiana.dlib.catalog.search.impl.DefaultSearchQuery;
+import edu.indiana.dlib.catalog.search.impl.EmbeddedLuceneSearchManager;
+import edu.indiana.dlib.catalog.search.impl.SearchResultsCursor;
+
+/**
+ * Exports the results of a search against an embedded lucene 
+ * index that holds more than one page of items and verifies that
+ * every item is written exactly once, both when the pages are read
+ * from a single search and when the search is repeated for each 
+ * page.  This test is run by the 
+ * "test" target of the build and fails by throwing an exception.
+ */
+public class SearchExportServletTest {
+
+    private static final String COLLECTION_ID = "test";
+    
+    private static final int ITEM_COUNT = (SearchResultsCursor.DEFAULT_PAGE_SIZE * 2) + 50;
+    
+    public static void main(String[] args) throws Exception {
+        File indexDir = File.createTempFile("export-test", "");
+        indexDir.delete();
+        indexDir.mkdirs();
+        try {
+            ItemMetadataLuceneIndex index = new ItemMetadataLuceneIndex(indexDir);
+            for (int i = 0; i < ITEM_COUNT; i ++) {
+                ItemMetadata im = new ItemMetadata(COLLECTION_ID + "/item" + i, COLLECTION_ID);
+                List<List<NameValuePair>> values = new ArrayList<List<NameValuePair>>();
+                List<NameValuePair> parts = new ArrayList<NameValuePair>();
+                parts.add(new NameValuePair("text", "Item " + i));
+                values.add(parts);
+                im.setFieldValue("title", new FieldData("title", new ArrayList<NameValuePair>(), values));
+                index.indexItem(new DefaultItem(im, new ArrayList<DataView>(), null, new ArrayList<NameValuePair>()));
+            }
+            
+            EmbeddedLuceneSearchManager sm = new EmbeddedLuceneSearchManager(indexDir.getAbsolutePath());
+            verifyExport(sm, "one search");
+            verifyExport(new NonPagingSearchManager(sm), "a search per page");
+        } finally {
+            for (File file : indexDir.listFiles()) {
+                file.delete();
+            }
+            indexDir.delete();
+        }
+    }
+    
+    /**
+     * Exports every item in the test collection with the given
+     * SearchManager and verifies that each is written exactly once.
+     */
+    private static void verifyExport(SearchManager sm, String description) throws Exception {
+        SearchResultsCursor cursor = new SearchResultsCursor(sm, new DefaultSearchQuery(0, SearchResultsCursor.DEFAULT_PAGE_SIZE, null, null, COLLECTION_ID));
+        StringWriter writer = new StringWriter();
+        int count = 0;
+        try {
+            count = new SearchExportServlet().writeXml(cursor, writer);
+        } finally {
+            cursor.close();
+        }
+        if (count != ITEM_COUNT) {
+            throw new AssertionError("Exported " + count + " of " + ITEM_COUNT + " records!");
+        }
+        
+        Set<String> ids = new HashSet<String>();
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(writer.toString().getBytes("UTF-8")));
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && "id".equals(reader.getLocalName()) && XPathHelper.M_URI.equals(reader.getNamespaceURI())) {
+                String id = reader.getElementText();
+                if (!ids.add(id)) {
+                    throw new AssertionError("Record " + id + " was exported more than once!");
+                }
+            }
+        }
+        if (ids.size() != ITEM_COUNT) {
+            throw new AssertionError("Parsed " + ids.size() + " of " + ITEM_COUNT + " records from the export!");
+        }
+        System.out.println("Exported " + count + " records in " + ((ITEM_COUNT + SearchResultsCursor.DEFAULT_PAGE_SIZE - 1) / SearchResultsCursor.DEFAULT_PAGE_SIZE) + " pages using " + description + ".");
+    }
+    
+    /**
+     * Hides the PagingSearchManager implementation of the wrapped 
+     * SearchManager so that SearchResultsCursor repeats the search
+     * for each page.
+     */
+    private static class NonPagingSearchManager implements SearchManager {
+        
+        private SearchManager sm;
+        
+        public NonPagingSearchManager(SearchManager sm) {
+            this.sm = sm;
+        }
+        
+        public SearchResults search(SearchQuery query) throws SearchException, UnsupportedQueryException {
+            return sm.search(query);
+        }
+
+        public String getSyntaxNotes() {
+            return sm.getSyntaxNotes();
+        }
+
+        public BrowseResults browse(BrowseQuery browseQuery) throws SearchException, UnsupportedQueryException {
+            return sm.browse(browseQuery);
+        }
+
+        public String getFieldAttributeIndexName(String fieldType, String attributeName) {
+            return sm.getFieldAttributeIndexName(fieldType, attributeName);
+        }
+
+        public String getFieldPartIndexName(String fieldType, String partName) {
+            return sm.getFieldPartIndexName(fieldType, partName);
+        }
+
+        public String getPartExactMatchQueryClause(String fieldType, String partName, String value) {
+            return sm.getPartExactMatchQueryClause(fieldType, partName, value);
+        }
+
+        public String getAttributeExactMatchQueryClause(String fieldType, String attributeName, String value) {
+            return sm.getAttributeExactMatchQueryClause(fieldType, attributeName, value);
+        }
+    }
+}